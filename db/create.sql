@@ -12,7 +12,10 @@ CREATE TABLE Association (
     issuedDate datetime default NULL,
     lifetime int(11) default NULL,
     associationType varchar(255) default NULL,
-    PRIMARY KEY  (id)
+    expiresAt bigint NOT NULL,
+    PRIMARY KEY  (id),
+    UNIQUE KEY handle (handle),
+    KEY Association_expiresAt (expiresAt)
 );
 
 
@@ -20,5 +23,7 @@ CREATE TABLE Nonce (
    id int(11) NOT NULL auto_increment,
    nonce varchar(255) default NULL,
    checkedDate datetime default NULL,
-   PRIMARY KEY  (id)
+   PRIMARY KEY  (id),
+   UNIQUE KEY nonce (nonce),
+   KEY Nonce_checkedDate (checkedDate)
 );
\ No newline at end of file
@@ -0,0 +1,13 @@
+-- Upgrades an Association table created before the expiresAt column.
+-- Run this before starting the new version, since Hibernate cannot load
+-- a row whose expiresAt is NULL, and the sweeper would never delete it.
+
+-- skip this if Hibernate (hbm2ddl.auto=update) has already added it
+ALTER TABLE Association ADD COLUMN expiresAt bigint default NULL;
+
+UPDATE Association
+   SET expiresAt = (UNIX_TIMESTAMP(issuedDate) + lifetime) * 1000
+ WHERE expiresAt IS NULL;
+
+ALTER TABLE Association MODIFY expiresAt bigint NOT NULL;
+CREATE INDEX Association_expiresAt ON Association (expiresAt);
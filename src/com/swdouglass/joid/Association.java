@@ -20,7 +20,6 @@
 package com.swdouglass.joid;
 
 import java.util.Date;
-import java.util.Calendar;
 import java.math.BigInteger;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -171,17 +170,43 @@ public class Association implements java.io.Serializable {
     return publicKey;
   }
 
+  /**
+   * Returns the time at which this association expires, that is, the issued
+   * date plus the lifetime.
+   *
+   * @return the expiry time in milliseconds since the epoch.
+   */
+  public long getExpiresAt() {
+    return issuedDate.getTime() + (lifetime.longValue() * 1000);
+  }
+
+  /**
+   * For Hibernate, which persists the expiry time so that expired rows can
+   * be found by index. The value is always derived from the issued date and
+   * lifetime, so what is loaded is ignored.
+   */
+  @SuppressWarnings("unused")
+  private void setExpiresAt(long expiresAt) {
+  }
+
   public boolean hasExpired() {
-    Calendar now = Calendar.getInstance();
-    Calendar expired = Calendar.getInstance();
-    expired.setTime(issuedDate);
-    expired.add(Calendar.SECOND, lifetime.intValue());
+    return hasExpired(System.currentTimeMillis());
+  }
+
+  /**
+   * Returns whether this association has expired at the given time.
+   *
+   * @param now the time to check against, in milliseconds since the epoch.
+   * @return true if the association has expired at <code>now</code>.
+   */
+  public boolean hasExpired(long now) {
+    long expired = getExpiresAt();
     if (log.isDebugEnabled()) {
-      log.debug("now: " + now.toString());
+      log.debug("now: " + new Date(now));
       log.debug("issuedDate: " + issuedDate.toString());
-      log.debug("expired: " + expired.toString());
-      log.debug("now.after(expired): " + now.after(expired));
+      log.debug("expired: " + new Date(expired));
+      log.debug("now.after(expired): " + (now > expired));
     }
-    return now.after(expired);
+    return now > expired;
   }
 }
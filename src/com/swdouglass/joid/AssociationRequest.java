@@ -128,10 +128,28 @@ public class AssociationRequest extends Request {
    * @param crypto the Crypto implementation to use.
    * @return an AssociationRequest.
    * @throws OpenIdException
+   * @deprecated use {@link #create(DiffieHellman)}.
    */
+  @Deprecated
   public static AssociationRequest create(Crypto crypto) {
+    return create(crypto.getPublicKey());
+  }
+
+  /**
+   * Creates a standard association request. Default values are
+   * <code>HMAC-SHA1</code> for association type, and <code>DH-SHA1</code>
+   * for session type.
+   *
+   * @param dh the key pair whose public key is sent; keep it to decrypt
+   * the MAC key in the response.
+   * @return an AssociationRequest.
+   */
+  public static AssociationRequest create(DiffieHellman dh) {
+    return create(dh.getPublicKey());
+  }
+
+  private static AssociationRequest create(BigInteger pubKey) {
     try {
-      BigInteger pubKey = crypto.getPublicKey();
       Map<String,String> map = new HashMap<String,String>();
       map.put("openid.mode", "associate");
       map.put(OPENID_ASSOCIATION_TYPE, HMAC_SHA1);
@@ -213,7 +231,12 @@ public class AssociationRequest extends Request {
     Store store = si.getStore();
     Crypto crypto = si.getCrypto();
     Association a = store.generateAssociation(this, crypto);
-    store.saveAssociation(a);
+    KeyRing keyRing = si.getKeyRing();
+    if (keyRing != null && keyRing.isSealing()) {
+      keyRing.sealAssociation(a);
+    } else {
+      store.saveAssociation(a);
+    }
     return new AssociationResponse(this, a, crypto);
   }
 
@@ -320,20 +320,30 @@ public class AuthenticationRequest extends Request {
   public Response processUsing(ServerInfo si) throws OpenIdException {
     Store store = si.getStore();
     Crypto crypto = si.getCrypto();
+    KeyRing keyRing = si.getKeyRing();
     Association assoc = null;
     String invalidate = null;
-    if (handle != null) {
+    if (KeyRing.isSealedHandle(handle)) {
+      assoc = (keyRing == null) ? null : keyRing.openAssociation(handle);
+    } else if (handle != null && !KeyRing.isPrivateHandle(handle)) {
+      // private handles are only good for check_authentication
       assoc = store.findAssociation(handle);
-      if (assoc != null && assoc.hasExpired()) {
-        log.info("Association handle has expired: " + handle);
-        assoc = null;
-      }
+    }
+    if (assoc != null && assoc.hasExpired()) {
+      log.info("Association handle has expired: " + handle);
+      assoc = null;
     }
     if (handle == null || assoc == null) {
       log.info("Invalidating association handle: " + handle);
       invalidate = handle;
-      assoc = store.generateAssociation(statelessAr, crypto);
-      store.saveAssociation(assoc);
+      if (keyRing != null) {
+        assoc = keyRing.createPrivateAssociation(
+          AssociationRequest.HMAC_SHA1, store.getAssociationLifetime());
+      } else {
+        // without a key ring, private associations are kept in the store
+        assoc = store.generateAssociation(statelessAr, crypto);
+        store.saveAssociation(assoc);
+      }
     }
     return new AuthenticationResponse(si, this, assoc, crypto, invalidate);
   }
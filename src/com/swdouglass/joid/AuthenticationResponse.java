@@ -42,6 +42,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.TimeZone;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.Log;
 
@@ -160,6 +161,7 @@ public class AuthenticationResponse extends Response {
     String crumb = Crypto.generateCrumb();
     //http://www.iso.org/iso/support/faqs/faqs_widely_used_standards/widely_used_standards_other/date_and_time_format.htm
     SimpleDateFormat dateTime = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+    dateTime.setTimeZone(TimeZone.getTimeZone("UTC"));
     return dateTime.format(new Date()) + crumb;
   }
 
@@ -76,17 +76,29 @@ public class CheckAuthenticationRequest extends Request {
     Store store = si.getStore();
     String nonceStr = ar.getNonce();
     if (nonceStr != null) {
-      Nonce n = store.findNonce(nonceStr);
-      if (n != null) {
+      if (!store.isNonceInWindow(nonceStr)) {
+        String s = "Nonce is outside the allowed time window";
+        log.debug(s);
+        throw new OpenIdException(s);
+      }
+      if (!store.recordNonce(nonceStr)) {
         String s = "Nonce has already been checked";
         log.debug(s);
         throw new OpenIdException(s);
-      } else {
-        n = store.generateNonce(nonceStr);
-        store.saveNonce(n);
       }
     }
-    Association assoc = store.findAssociation(handle);
+    Association assoc;
+    if (KeyRing.isPrivateHandle(handle)) {
+      assoc = (si.getKeyRing() == null) ? null
+        : si.getKeyRing().findPrivateAssociation(handle);
+    } else if (KeyRing.isSealedHandle(handle)) {
+      // sealed associations are shared, and OpenID 2.0 11.4.2.1 forbids
+      // verifying signatures made with a shared association here
+      log.debug("Refusing to check a shared association: " + handle);
+      assoc = null;
+    } else {
+      assoc = store.findAssociation(handle);
+    }
     if ((assoc == null) || (assoc.hasExpired())) {
       invalidate = handle;
     }
@@ -127,6 +127,7 @@ public class CheckAuthenticationResponse extends Response {
       map.put(OPENID_MODE, "id_res");
     }
     map.put(CheckAuthenticationResponse.OPENID_IS_VALID, isValid ? "true" : "false");
+    this.invalidateHandle = invalidateHandle;
     if (invalidateHandle != null) {
       map.put(CheckAuthenticationResponse.OPENID_INVALIDATE_HANDLE,
          invalidateHandle);
@@ -36,14 +36,18 @@ import java.math.BigInteger;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 import org.apache.commons.codec.binary.Base64;
 
 /**
- * Implements the cryptography needed for OpenID.
+ * Implements the cryptography needed for OpenID. Instances are thread safe
+ * when used through the methods that take the {@link DiffieHellman} key
+ * pair as a parameter; the deprecated methods that keep a key pair in this
+ * instance are not.
  */
 public class Crypto {
 
@@ -55,6 +59,51 @@ public class Crypto {
   
   private DiffieHellman dh;
 
+  /**
+   * Mac and MessageDigest instances of the calling thread, by algorithm.
+   * Looking up a JCA provider costs more than signing an OpenID message,
+   * and neither class is thread safe, so each thread keeps its own.
+   */
+  private static final ThreadLocal<Map<String, Mac>> macs =
+    new ThreadLocal<Map<String, Mac>>() {
+
+      @Override
+      protected Map<String, Mac> initialValue() {
+        return new HashMap<String, Mac>();
+      }
+    };
+  private static final ThreadLocal<Map<String, MessageDigest>> digests =
+    new ThreadLocal<Map<String, MessageDigest>>() {
+
+      @Override
+      protected Map<String, MessageDigest> initialValue() {
+        return new HashMap<String, MessageDigest>();
+      }
+    };
+
+  private static Mac getMac(String algorithm) throws NoSuchAlgorithmException {
+    Map<String, Mac> map = macs.get();
+    Mac m = map.get(algorithm);
+    if (m == null) {
+      m = Mac.getInstance(algorithm);
+      map.put(algorithm, m);
+    }
+    return m;
+  }
+
+  private static MessageDigest getDigest(String algorithm)
+    throws NoSuchAlgorithmException {
+    Map<String, MessageDigest> map = digests.get();
+    MessageDigest d = map.get(algorithm);
+    if (d == null) {
+      d = MessageDigest.getInstance(algorithm);
+      map.put(algorithm, d);
+    } else {
+      d.reset();
+    }
+    return d;
+  }
+
   /**
    * Digests a message using SHA-1.
    * @param text the bytes to digest.
@@ -62,8 +111,7 @@ public class Crypto {
    * @throws NoSuchAlgorithmException if SHA-1 is not available.
    */
   public static byte[] sha1(byte[] text) throws NoSuchAlgorithmException {
-    MessageDigest d = MessageDigest.getInstance("SHA-1");
-    return d.digest(text);
+    return getDigest("SHA-1").digest(text);
   }
 
   /**
@@ -73,8 +121,7 @@ public class Crypto {
    * @throws NoSuchAlgorithmException if SHA-256 is not available.
    */
   public static byte[] sha256(byte[] text) throws NoSuchAlgorithmException {
-    MessageDigest d = MessageDigest.getInstance("SHA-256");
-    return d.digest(text);
+    return getDigest("SHA-256").digest(text);
   }
 
   /**
@@ -108,21 +155,11 @@ public class Crypto {
   private static byte[] hmacShaX(String keySpec, byte[] key, byte[] text)
   throws InvalidKeyException, NoSuchAlgorithmException {
     SecretKey sk = new SecretKeySpec(key, keySpec);
-    Mac m = Mac.getInstance(sk.getAlgorithm());
+    Mac m = getMac(sk.getAlgorithm());
+    // init() resets whatever state an earlier failed use left behind
     m.init(sk);
     return m.doFinal(text);
   }
-  private static SecureRandom random;
-
-
-  static {
-    try {
-      random = SecureRandom.getInstance("SHA1PRNG");
-    } catch (NoSuchAlgorithmException e) {
-      throw new RuntimeException("No secure random available.");
-    }
-  }
-
   /**
    * Generates a random handle, in UUID format.
    *
@@ -139,7 +176,7 @@ public class Crypto {
    */
   public static String generateCrumb() {
     byte[] b = new byte[4];
-    random.nextBytes(b);
+    RandomSource.nextBytes(b);
     return convertToString(b);
   }
 
@@ -164,25 +201,34 @@ public class Crypto {
       len = 32;
     }
     byte[] result = new byte[len];
-    random.nextBytes(result);
+    RandomSource.nextBytes(result);
     return result;
   }
 
   /**
-   * Sets the Diffie-Hellman key values.
+   * Sets the Diffie-Hellman key values. The key pair is taken from the
+   * {@link DiffieHellmanPool} when the modulus and generator are pooled.
    *
    * @param mod the Diffie-Hellman modulus.
    * @param gen the Diffie-Hellman generator.
+   * @deprecated not thread safe; take a key pair from
+   * {@link DiffieHellmanPool#take} and pass it to
+   * {@link #encryptSecret(DiffieHellman, BigInteger, byte[])}.
    */
+  @Deprecated
   public void setDiffieHellman(BigInteger mod, BigInteger gen) {
-    this.dh = new DiffieHellman(mod, gen);
+    this.dh = DiffieHellmanPool.take(mod, gen);
   }
 
   /**
    * Sets the Diffie-Hellman key values.
    *
    * @param dh the Diffie-Hellman value.
+   * @deprecated not thread safe; pass the key pair to
+   * {@link #encryptSecret(DiffieHellman, BigInteger, byte[])} or
+   * {@link #decryptSecret(DiffieHellman, BigInteger, byte[])}.
    */
+  @Deprecated
   public void setDiffieHellman(DiffieHellman dh) {
     this.dh = dh;
   }
@@ -194,7 +240,9 @@ public class Crypto {
    * @return the Diffie-Hellman public key.
    * @throws IllegalArgumentException if this crypto instance has not
    * yet been initialized.
+   * @deprecated use {@link DiffieHellman#getPublicKey()}.
    */
+  @Deprecated
   public BigInteger getPublicKey() {
     if (dh == null) {
       throw new IllegalArgumentException("DH not yet initialized");
@@ -208,10 +256,12 @@ public class Crypto {
    * @param consumerPublic the public key used to decrypt.
    * @param secret the value to decrypt.
    * @return the decrypted value.
+   * @deprecated use {@link #decryptSecret(DiffieHellman, BigInteger, byte[])}.
    */
+  @Deprecated
   public byte[] decryptSecret(BigInteger consumerPublic, byte[] secret)
   throws OpenIdException {
-    return encryptSecret(consumerPublic, secret);
+    return encryptSecret(dh, consumerPublic, secret);
   }
 
   /**
@@ -220,9 +270,37 @@ public class Crypto {
    * @param consumerPublic the public key used to encrypt.
    * @param secret the value to encrypt.
    * @return the encrypted secret value.
+   * @deprecated use {@link #encryptSecret(DiffieHellman, BigInteger, byte[])}.
    */
+  @Deprecated
   public byte[] encryptSecret(BigInteger consumerPublic, byte[] secret)
   throws OpenIdException {
+    return encryptSecret(dh, consumerPublic, secret);
+  }
+
+  /**
+   * Decrypts a secret using Diffie-Hellman.
+   *
+   * @param dh our key pair.
+   * @param serverPublic the other party's public key.
+   * @param secret the value to decrypt.
+   * @return the decrypted value.
+   */
+  public byte[] decryptSecret(DiffieHellman dh, BigInteger serverPublic,
+    byte[] secret) throws OpenIdException {
+    return encryptSecret(dh, serverPublic, secret);
+  }
+
+  /**
+   * Encrypts a secret using Diffie-Hellman.
+   *
+   * @param dh our key pair.
+   * @param consumerPublic the other party's public key.
+   * @param secret the value to encrypt.
+   * @return the encrypted secret value.
+   */
+  public byte[] encryptSecret(DiffieHellman dh, BigInteger consumerPublic,
+    byte[] secret) throws OpenIdException {
     if (dh == null) {
       throw new IllegalArgumentException("No DH implementation set");
     }
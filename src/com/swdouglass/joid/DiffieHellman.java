@@ -32,24 +32,30 @@
 //
 package com.swdouglass.joid;
 
-import java.security.SecureRandom;
 import java.math.BigInteger;
 import java.security.NoSuchAlgorithmException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 /**
- * Implements the underlying Diffie-Hellman cryptography.
+ * Implements the underlying Diffie-Hellman cryptography. Instances are
+ * immutable key pairs and may be shared between threads; each association
+ * should use its own instance.
  */
 public class DiffieHellman {
 
-  private BigInteger modulus;
-  private BigInteger generator;
-  private BigInteger privateKey;
-  private BigInteger publicKey;
+  private final BigInteger modulus;
+  private final BigInteger generator;
+  private final BigInteger privateKey;
+  private final BigInteger publicKey;
   private final static Log log = LogFactory.getLog(DiffieHellman.class);
 
-  private DiffieHellman() {
+  private DiffieHellman(BigInteger modulus, BigInteger generator,
+    BigInteger privateKey, BigInteger publicKey) {
+    this.modulus = modulus;
+    this.generator = generator;
+    this.privateKey = privateKey;
+    this.publicKey = publicKey;
   }
   /**
    * The default modulus defined in the specification.
@@ -81,16 +87,6 @@ public class DiffieHellman {
     BigInteger g = DiffieHellman.DEFAULT_GENERATOR;
     return new DiffieHellman(p, g);
   }
-  private static SecureRandom random;
-
-
-  static {
-    try {
-      random = SecureRandom.getInstance("SHA1PRNG");
-    } catch (NoSuchAlgorithmException e) {
-      throw new RuntimeException("No secure random available!");
-    }
-  }
 
   /**
    * Returns the private key.
@@ -118,19 +114,21 @@ public class DiffieHellman {
   public DiffieHellman(BigInteger mod, BigInteger gen) {
     modulus = (mod != null ? mod : DiffieHellman.DEFAULT_MODULUS);
     generator = (gen != null ? gen : DiffieHellman.DEFAULT_GENERATOR);
+    privateKey = generatePrivateKey(modulus);
+    publicKey = generator.modPow(privateKey, modulus);
+  }
 
+  private static BigInteger generatePrivateKey(BigInteger modulus) {
     int bits = modulus.bitLength();
     BigInteger max = modulus.subtract(BigInteger.ONE);
     while (true) {
-      BigInteger pkey = new BigInteger(bits, random);
+      BigInteger pkey = new BigInteger(bits, RandomSource.get());
       if (pkey.compareTo(max) >= 0) { //too large
         continue;
       } else if (pkey.compareTo(BigInteger.ONE) <= 0) {//too small
         continue;
       }
-      privateKey = pkey;
-      publicKey = generator.modPow(privateKey, modulus);
-      break;
+      return pkey;
     }
   }
 
@@ -144,18 +142,7 @@ public class DiffieHellman {
     if (privateKey == null || modulus == null) {
       throw new IllegalArgumentException("Null parameter");
     }
-    DiffieHellman dh = new DiffieHellman();
-    dh.setPrivateKey(privateKey);
-    dh.setModulus(modulus);
-    return dh;
-  }
-
-  private void setPrivateKey(BigInteger privateKey) {
-    this.privateKey = privateKey;
-  }
-
-  private void setModulus(BigInteger modulus) {
-    this.modulus = modulus;
+    return new DiffieHellman(modulus, null, privateKey, null);
   }
 
   /**
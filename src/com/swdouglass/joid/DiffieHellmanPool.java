@@ -0,0 +1,228 @@
+/*
+ * MODIFICATIONS to the original source have been made by
+ * Scott Douglass <scott@swdouglass.com>
+ *
+ * Copyright 2009 Scott Douglass <scott@swdouglass.com>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.swdouglass.joid;
+
+import java.math.BigInteger;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps ready-made Diffie-Hellman key pairs, so that an association request
+ * only pays for computing the shared secret, not also for generating the
+ * server's public key. Pools are filled by a background thread.
+ *
+ * Only the default modulus and generator, and pairs that have been
+ * {@link #register registered}, are pooled; key pairs for any other
+ * modulus a consumer sends are generated on the spot. A pool that runs dry
+ * falls back to the same.
+ */
+public class DiffieHellmanPool {
+
+  private final static Log log = LogFactory.getLog(DiffieHellmanPool.class);
+
+  /**
+   * The number of key pairs kept for the default modulus and generator.
+   * Must be set before the first association is made; see also
+   * {@link #register}.
+   */
+  public static int DEFAULT_SIZE = 64;
+
+  private static final ConcurrentMap<Key, Pool> pools =
+    new ConcurrentHashMap<Key, Pool>();
+
+  private static final ExecutorService filler =
+    Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "joid-dh-pool");
+        t.setDaemon(true);
+        t.setPriority(Thread.NORM_PRIORITY - 1);
+        return t;
+      }
+    });
+
+  private DiffieHellmanPool() {
+  }
+
+  /**
+   * Returns a new Diffie-Hellman key pair, from the pool if there is one
+   * for the modulus and generator. Each key pair is handed out only once.
+   *
+   * @param mod the modulus to use. If null, use
+   * {@link DiffieHellman#DEFAULT_MODULUS}.
+   * @param gen the generator to use. If null, use
+   * {@link DiffieHellman#DEFAULT_GENERATOR}.
+   * @return a key pair with a random private key.
+   */
+  public static DiffieHellman take(BigInteger mod, BigInteger gen) {
+    Key key = new Key(mod, gen);
+    Pool pool = pools.get(key);
+    if (pool == null && key.isDefault()) {
+      pool = register(key, DEFAULT_SIZE);
+    }
+    if (pool == null) {
+      return new DiffieHellman(key.modulus, key.generator);
+    }
+    return pool.take();
+  }
+
+  /**
+   * Starts pooling key pairs for a modulus and generator, or resizes the
+   * pool if there already is one. A size of 0 disables pooling.
+   *
+   * @param mod the modulus. If null, use
+   * {@link DiffieHellman#DEFAULT_MODULUS}.
+   * @param gen the generator. If null, use
+   * {@link DiffieHellman#DEFAULT_GENERATOR}.
+   * @param size the number of key pairs to keep ready.
+   */
+  public static void register(BigInteger mod, BigInteger gen, int size) {
+    register(new Key(mod, gen), size);
+  }
+
+  /**
+   * Returns the number of ready key pairs for a modulus and generator.
+   */
+  public static int available(BigInteger mod, BigInteger gen) {
+    Pool pool = pools.get(new Key(mod, gen));
+    return (pool == null) ? 0 : pool.keys.size();
+  }
+
+  private static Pool register(Key key, int size) {
+    // a disabled pool stays registered, so take() does not create the
+    // default one again
+    size = Math.max(size, 0);
+    Pool pool = new Pool(key, size);
+    Pool previous = pools.get(key);
+    if (previous != null) {
+      if (previous.size == size) {
+        return previous;
+      }
+      previous.keys.drainTo(pool.keys, size);
+      pools.put(key, pool);
+    } else {
+      previous = pools.putIfAbsent(key, pool);
+      if (previous != null) {
+        return previous;
+      }
+    }
+    if (size == 0) {
+      debug("not pooling DH key pairs for generator " + key.generator);
+      return pool;
+    }
+    debug("pooling " + size + " DH key pairs for generator " + key.generator);
+    pool.refill();
+    return pool;
+  }
+
+  private static void debug(String s) {
+    if (log.isDebugEnabled()) {
+      log.debug(s);
+    }
+  }
+
+  private static class Key {
+
+    final BigInteger modulus;
+    final BigInteger generator;
+
+    Key(BigInteger mod, BigInteger gen) {
+      modulus = (mod != null ? mod : DiffieHellman.DEFAULT_MODULUS);
+      generator = (gen != null ? gen : DiffieHellman.DEFAULT_GENERATOR);
+    }
+
+    boolean isDefault() {
+      return DiffieHellman.DEFAULT_MODULUS.equals(modulus)
+        && DiffieHellman.DEFAULT_GENERATOR.equals(generator);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key k = (Key) o;
+      return modulus.equals(k.modulus) && generator.equals(k.generator);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * modulus.hashCode() + generator.hashCode();
+    }
+  }
+
+  private static class Pool implements Runnable {
+
+    final Key key;
+    final int size;
+    final BlockingQueue<DiffieHellman> keys;
+    final AtomicBoolean filling = new AtomicBoolean();
+
+    Pool(Key key, int size) {
+      this.key = key;
+      this.size = size;
+      this.keys = new ArrayBlockingQueue<DiffieHellman>(Math.max(size, 1));
+    }
+
+    DiffieHellman take() {
+      if (size == 0) {
+        return new DiffieHellman(key.modulus, key.generator);
+      }
+      DiffieHellman dh = keys.poll();
+      refill();
+      if (dh == null) {
+        debug("DH pool empty, generating key pair on request");
+        dh = new DiffieHellman(key.modulus, key.generator);
+      }
+      return dh;
+    }
+
+    void refill() {
+      if (size > 0 && keys.remainingCapacity() > 0
+        && filling.compareAndSet(false, true)) {
+        filler.execute(this);
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (keys.remainingCapacity() > 0 && pools.get(key) == this) {
+          keys.offer(new DiffieHellman(key.modulus, key.generator));
+        }
+      } finally {
+        filling.set(false);
+      }
+      // a take() may have drained a key after the loop ended but before
+      // filling was cleared, and not scheduled a refill
+      if (pools.get(key) == this) {
+        refill();
+      }
+    }
+  }
+}
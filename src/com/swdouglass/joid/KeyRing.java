@@ -0,0 +1,446 @@
+/*
+ * MODIFICATIONS to the original source have been made by
+ * Scott Douglass <scott@swdouglass.com>
+ *
+ * Copyright 2009 Scott Douglass <scott@swdouglass.com>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.swdouglass.joid;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Server keys derived from a master secret, one per rotation period.
+ *
+ * The key of a period is HMAC-SHA256(master, "joid-key:" + period), so
+ * every node configured with the same master secret agrees on the keys
+ * without coordination and no key is ever written to the store.
+ *
+ * The key ring issues private associations for stateless ("dumb mode")
+ * relying parties. The handle carries the period, issue time, lifetime and
+ * type of the association, and the MAC key is derived from the period key
+ * and the handle itself. The association can therefore be recreated from
+ * its handle when the relying party calls check_authentication, instead of
+ * being saved and looked up for every authentication. A tampered handle
+ * simply derives a different key, so its signature does not verify.
+ *
+ * Optionally the key ring also seals shared associations into their
+ * handles: the MAC key, type, issue time and lifetime are encrypted with
+ * AES-CBC and authenticated with HMAC-SHA256 under keys of the current
+ * period. Any node sharing the master secret opens the handle again, so
+ * neither checkid nor check_authentication has to consult a store.
+ */
+public class KeyRing {
+
+  private final static Log log = LogFactory.getLog(KeyRing.class);
+  /** Default rotation period, in seconds. */
+  public static long DEFAULT_ROTATION = 3600;
+  /** Minimum length, in bytes, of a configured master secret. */
+  public static final int MIN_SECRET_LENGTH = 16;
+  private static final String PRIVATE_PREFIX = "p.";
+  private static final String SHA1_CODE = "1";
+  private static final String SHA256_CODE = "2";
+  private static final String SEALED_PREFIX = "s.";
+  private static final int IV_LENGTH = 16;
+  private static final int TAG_LENGTH = 16;
+  private static final int HANDLE_RANDOM_LENGTH = 12;
+  /** Number of derived keys kept before the cache is cleared. */
+  private static final int MAX_CACHED_KEYS = 16;
+
+  private final byte[] master;
+  private final long rotation;
+  private final ConcurrentMap<String, byte[]> keys =
+    new ConcurrentHashMap<String, byte[]>();
+  private volatile boolean sealing;
+
+  /** AES ciphers of the calling thread; Cipher is not thread safe. */
+  private static final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>();
+
+  /**
+   * Creates a key ring with a random master secret. Only this instance can
+   * verify what it issues, which suits a single server.
+   */
+  public KeyRing() {
+    this(DEFAULT_ROTATION);
+  }
+
+  /**
+   * Creates a key ring with a random master secret.
+   *
+   * @param rotationSeconds the rotation period in seconds.
+   */
+  public KeyRing(long rotationSeconds) {
+    this(randomSecret(), rotationSeconds);
+  }
+
+  /**
+   * Creates a key ring. Servers sharing the master secret and rotation
+   * period can verify each other's private associations.
+   *
+   * @param master the master secret, at least {@link #MIN_SECRET_LENGTH}
+   * bytes.
+   * @param rotationSeconds the rotation period in seconds.
+   */
+  public KeyRing(byte[] master, long rotationSeconds) {
+    if (master == null || master.length < MIN_SECRET_LENGTH) {
+      throw new IllegalArgumentException("Master secret must be at least "
+        + MIN_SECRET_LENGTH + " bytes");
+    }
+    if (rotationSeconds <= 0) {
+      throw new IllegalArgumentException("Rotation must be positive: "
+        + rotationSeconds);
+    }
+    this.master = master.clone();
+    this.rotation = rotationSeconds * 1000;
+  }
+
+  /**
+   * Returns the rotation period.
+   *
+   * @return the rotation period in seconds.
+   */
+  public long getRotation() {
+    return rotation / 1000;
+  }
+
+  /**
+   * Returns the rotation period a time falls into.
+   *
+   * @param time milliseconds since the epoch.
+   * @return the period number.
+   */
+  public long getPeriod(long time) {
+    return time / rotation;
+  }
+
+  /**
+   * Returns the key of a rotation period.
+   *
+   * @param period the period number.
+   * @return a 32 byte key.
+   * @throws OpenIdException if the key cannot be derived.
+   */
+  public byte[] getKey(long period) throws OpenIdException {
+    return getKey("joid-key:", period);
+  }
+
+  private byte[] getKey(String label, long period) throws OpenIdException {
+    String name = label + period;
+    byte[] key = keys.get(name);
+    if (key == null) {
+      key = hmac(master, name);
+      if (keys.size() >= MAX_CACHED_KEYS) {
+        keys.clear();
+      }
+      keys.put(name, key);
+    }
+    return key;
+  }
+
+  /**
+   * Returns whether shared associations are sealed into their handles
+   * instead of being saved to the store.
+   *
+   * @return true if sealing is enabled.
+   */
+  public boolean isSealing() {
+    return sealing;
+  }
+
+  /**
+   * Sets whether shared associations are sealed into their handles. Every
+   * node of a cluster must share the master secret to open them.
+   *
+   * @param sealing true to seal associations.
+   */
+  public void setSealing(boolean sealing) {
+    this.sealing = sealing;
+  }
+
+  /**
+   * Returns whether a handle was issued by {@link #createPrivateAssociation}.
+   * Such handles must never be accepted as shared association handles.
+   *
+   * @param handle the association handle.
+   * @return true if the handle names a private association.
+   */
+  public static boolean isPrivateHandle(String handle) {
+    return handle != null && handle.startsWith(PRIVATE_PREFIX);
+  }
+
+  /**
+   * Issues a private association. Nothing is stored.
+   *
+   * @param associationType the association type, HMAC-SHA1 or HMAC-SHA256.
+   * @param lifetime the lifetime in seconds.
+   * @return the association.
+   * @throws OpenIdException if the MAC key cannot be derived.
+   */
+  public Association createPrivateAssociation(String associationType,
+    long lifetime) throws OpenIdException {
+    String code = AssociationRequest.HMAC_SHA256.equals(associationType) ?
+      SHA256_CODE : SHA1_CODE;
+    long now = System.currentTimeMillis();
+    // whole seconds, so that the issue time survives the round trip
+    long issued = now / 1000;
+    byte[] random = new byte[HANDLE_RANDOM_LENGTH];
+    RandomSource.nextBytes(random);
+    StringBuilder handle = new StringBuilder(PRIVATE_PREFIX);
+    handle.append(Long.toString(getPeriod(issued * 1000), 36)).append('.');
+    handle.append(Long.toString(issued, 36)).append('.');
+    handle.append(Long.toString(lifetime, 36)).append('.');
+    handle.append(code).append('.');
+    handle.append(Crypto.convertToString(random));
+    return toAssociation(handle.toString(), issued, lifetime, code);
+  }
+
+  /**
+   * Recreates a private association from its handle.
+   *
+   * @param handle the association handle.
+   * @return the association, or null if the handle is not a well formed
+   * private handle. The association may have expired.
+   * @throws OpenIdException if the MAC key cannot be derived.
+   */
+  public Association findPrivateAssociation(String handle)
+    throws OpenIdException {
+    if (!isPrivateHandle(handle)) {
+      return null;
+    }
+    String[] parts = handle.substring(PRIVATE_PREFIX.length()).split("\\.");
+    if (parts.length != 5) {
+      return null;
+    }
+    long period, issued, lifetime;
+    try {
+      period = Long.parseLong(parts[0], 36);
+      issued = Long.parseLong(parts[1], 36);
+      lifetime = Long.parseLong(parts[2], 36);
+    } catch (NumberFormatException e) {
+      log.debug("Malformed private handle: " + handle);
+      return null;
+    }
+    String code = parts[3];
+    // the period must be the one the handle claims to be issued in, so a
+    // retired key can only ever vouch for associations that have expired
+    if (issued < 0 || lifetime < 0 || period != getPeriod(issued * 1000)
+      || !(SHA1_CODE.equals(code) || SHA256_CODE.equals(code))) {
+      log.debug("Malformed private handle: " + handle);
+      return null;
+    }
+    return toAssociation(handle, issued, lifetime, code);
+  }
+
+  /**
+   * Returns whether a handle was issued by {@link #sealAssociation}.
+   *
+   * @param handle the association handle.
+   * @return true if the handle carries a sealed association.
+   */
+  public static boolean isSealedHandle(String handle) {
+    return handle != null && handle.startsWith(SEALED_PREFIX);
+  }
+
+  /**
+   * Seals a shared association into a new handle. The handle of the
+   * association is replaced; nothing is stored.
+   *
+   * @param a the association, with its MAC key, type, issue time and
+   * lifetime set.
+   * @return the sealed handle.
+   * @throws OpenIdException if the association cannot be encrypted.
+   */
+  public String sealAssociation(Association a) throws OpenIdException {
+    long issued = a.getIssuedDate().getTime() / 1000;
+    long period = getPeriod(issued * 1000);
+    byte[] macKey = a.getMacKey();
+    ByteBuffer plain = ByteBuffer.allocate(17 + macKey.length);
+    plain.putLong(issued);
+    plain.putLong(a.getLifetime().longValue());
+    plain.put((byte) (AssociationRequest.HMAC_SHA256.equals(
+      a.getAssociationType()) ? 2 : 1));
+    plain.put(macKey);
+    byte[] iv = new byte[IV_LENGTH];
+    RandomSource.nextBytes(iv);
+    String prefix = SEALED_PREFIX + Long.toString(period, 36) + ".";
+    byte[] body;
+    try {
+      Cipher c = getCipher();
+      c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(
+        getKey("joid-seal:", period), 0, 16, "AES"),
+        new IvParameterSpec(iv));
+      byte[] sealed = c.doFinal(plain.array());
+      body = new byte[IV_LENGTH + sealed.length + TAG_LENGTH];
+      System.arraycopy(iv, 0, body, 0, IV_LENGTH);
+      System.arraycopy(sealed, 0, body, IV_LENGTH, sealed.length);
+      byte[] tag = tag(period, prefix, body, IV_LENGTH + sealed.length);
+      System.arraycopy(tag, 0, body, IV_LENGTH + sealed.length, TAG_LENGTH);
+    } catch (GeneralSecurityException e) {
+      throw new OpenIdException(e);
+    } finally {
+      Arrays.fill(plain.array(), (byte) 0);
+    }
+    String handle = prefix + Crypto.convertToString(body);
+    a.setHandle(handle);
+    return handle;
+  }
+
+  /**
+   * Opens a handle issued by {@link #sealAssociation}.
+   *
+   * @param handle the association handle.
+   * @return the association, or null if the handle is not a sealed handle
+   * of this key ring. The association may have expired.
+   * @throws OpenIdException if the handle cannot be decrypted.
+   */
+  public Association openAssociation(String handle) throws OpenIdException {
+    if (!isSealedHandle(handle)) {
+      return null;
+    }
+    int dot = handle.indexOf('.', SEALED_PREFIX.length());
+    if (dot < 0) {
+      return null;
+    }
+    long period;
+    try {
+      period = Long.parseLong(handle.substring(SEALED_PREFIX.length(), dot), 36);
+    } catch (NumberFormatException e) {
+      log.debug("Malformed sealed handle: " + handle);
+      return null;
+    }
+    String prefix = handle.substring(0, dot + 1);
+    byte[] body = Crypto.convertToBytes(handle.substring(dot + 1));
+    int length = body.length - IV_LENGTH - TAG_LENGTH;
+    if (period < 0 || length <= 0 || length % 16 != 0) {
+      log.debug("Malformed sealed handle: " + handle);
+      return null;
+    }
+    byte[] plain;
+    try {
+      byte[] tag = tag(period, prefix, body, IV_LENGTH + length);
+      byte[] expected = new byte[TAG_LENGTH];
+      System.arraycopy(body, IV_LENGTH + length, expected, 0, TAG_LENGTH);
+      byte[] actual = new byte[TAG_LENGTH];
+      System.arraycopy(tag, 0, actual, 0, TAG_LENGTH);
+      if (!MessageDigest.isEqual(expected, actual)) {
+        log.debug("Sealed handle failed authentication: " + handle);
+        return null;
+      }
+      Cipher c = getCipher();
+      c.init(Cipher.DECRYPT_MODE, new SecretKeySpec(
+        getKey("joid-seal:", period), 0, 16, "AES"),
+        new IvParameterSpec(body, 0, IV_LENGTH));
+      plain = c.doFinal(body, IV_LENGTH, length);
+    } catch (GeneralSecurityException e) {
+      throw new OpenIdException(e);
+    }
+    ByteBuffer b = ByteBuffer.wrap(plain);
+    long issued = b.getLong();
+    long lifetime = b.getLong();
+    byte code = b.get();
+    byte[] macKey = new byte[b.remaining()];
+    b.get(macKey);
+    Arrays.fill(plain, (byte) 0);
+    // as with private handles, a key only vouches for its own period
+    if (period != getPeriod(issued * 1000)) {
+      log.debug("Sealed handle issued outside its period: " + handle);
+      return null;
+    }
+    Association a = new Association();
+    a.setHandle(handle);
+    a.setSessionType(AssociationRequest.NO_ENCRYPTION);
+    a.setAssociationType(code == 2 ?
+      AssociationRequest.HMAC_SHA256 : AssociationRequest.HMAC_SHA1);
+    a.setMacKey(macKey);
+    a.setIssuedDate(new Date(issued * 1000));
+    a.setLifetime(new Long(lifetime));
+    return a;
+  }
+
+  /** Encrypt-then-MAC tag over the handle prefix and the encrypted body. */
+  private byte[] tag(long period, String prefix, byte[] body, int length)
+    throws OpenIdException, GeneralSecurityException {
+    byte[] text;
+    try {
+      byte[] p = prefix.getBytes("UTF-8");
+      text = new byte[p.length + length];
+      System.arraycopy(p, 0, text, 0, p.length);
+      System.arraycopy(body, 0, text, p.length, length);
+    } catch (UnsupportedEncodingException e) {
+      throw new OpenIdException(e);
+    }
+    return Crypto.hmacSha256(getKey("joid-seal-mac:", period), text);
+  }
+
+  private static Cipher getCipher() throws GeneralSecurityException {
+    Cipher c = ciphers.get();
+    if (c == null) {
+      c = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      ciphers.set(c);
+    }
+    return c;
+  }
+
+  private Association toAssociation(String handle, long issued,
+    long lifetime, String code) throws OpenIdException {
+    byte[] key = hmac(getKey(getPeriod(issued * 1000)), handle);
+    Association a = new Association();
+    a.setHandle(handle);
+    a.setSessionType(AssociationRequest.NO_ENCRYPTION);
+    if (SHA256_CODE.equals(code)) {
+      a.setAssociationType(AssociationRequest.HMAC_SHA256);
+      a.setMacKey(key);
+    } else {
+      a.setAssociationType(AssociationRequest.HMAC_SHA1);
+      byte[] sha1Key = new byte[20];
+      System.arraycopy(key, 0, sha1Key, 0, sha1Key.length);
+      a.setMacKey(sha1Key);
+    }
+    a.setIssuedDate(new Date(issued * 1000));
+    a.setLifetime(new Long(lifetime));
+    return a;
+  }
+
+  private static byte[] hmac(byte[] key, String text) throws OpenIdException {
+    try {
+      return Crypto.hmacSha256(key, text.getBytes("UTF-8"));
+    } catch (InvalidKeyException e) {
+      throw new OpenIdException(e);
+    } catch (NoSuchAlgorithmException e) {
+      throw new OpenIdException(e);
+    } catch (UnsupportedEncodingException e) {
+      throw new OpenIdException(e);
+    }
+  }
+
+  private static byte[] randomSecret() {
+    byte[] b = new byte[32];
+    RandomSource.nextBytes(b);
+    return b;
+  }
+}
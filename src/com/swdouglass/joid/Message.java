@@ -32,6 +32,7 @@
 //
 package com.swdouglass.joid;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -120,6 +121,27 @@ public abstract class Message {
     return MessageParser.toUrlString(this);
   }
 
+  /**
+   * Writes this message to <code>out</code>, as {@link #toPostString()}
+   * would return it, without building the string first.
+   *
+   * @param out where to write the message, e.g. a servlet response writer.
+   */
+  public void writePostString(Appendable out) throws IOException {
+    MessageParser.writePostString(this, out);
+  }
+
+  /**
+   * Writes this message to <code>out</code>, as {@link #toUrlString()}
+   * would return it, without building the string first.
+   *
+   * @param out where to write the message, e.g. a redirect URL being built.
+   */
+  public void writeUrlString(Appendable out)
+    throws IOException, OpenIdException {
+    MessageParser.writeUrlString(this, out);
+  }
+
   Map<String, String> toMap() {
     Map<String, String> map = new HashMap<String, String>();
     if (ns != null) {
@@ -10,7 +10,7 @@ import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.util.Map;
 import java.util.Set;
-import org.apache.commons.httpclient.HttpClient;
+import com.swdouglass.joid.util.HttpTransport;
 import org.apache.commons.httpclient.methods.PostMethod;
 
 /**
@@ -36,12 +36,8 @@ public class MessageFactory {
   public static Response parseResponse(String query) throws OpenIdException {
     Map<String, String> map;
     try {
-      if (MessageParser.numberOfNewlines(query) == 1) {
-        map = MessageParser.urlEncodedToMap(query);
-      } else {
-        map = MessageParser.postedToMap(query);
-      }
-    } catch (IOException e) {
+      map = MessageParser.parse(query);
+    } catch (UnsupportedEncodingException e) {
       throw new OpenIdException("Error parsing " + query + ": " + e.toString());
     }
 
@@ -101,11 +97,37 @@ public class MessageFactory {
     return MessageParser.urlEncodedToMap(query);
   }
 
+  /**
+   * Sends a request directly to an OpenID provider through the shared
+   * {@link HttpTransport}.
+   *
+   * @param req the request to send.
+   * @param dest the provider endpoint URL.
+   * @return the parsed response.
+   * @throws IOException if the request cannot be sent.
+   * @throws OpenIdException if the response cannot be parsed.
+   */
   public static Response send(Request req, String dest)
     throws IOException, OpenIdException {
+    return send(req, dest, HttpTransport.getDefault());
+  }
+
+  /**
+   * Sends a request directly to an OpenID provider.
+   *
+   * @param req the request to send.
+   * @param dest the provider endpoint URL.
+   * @param transport the HTTP transport to send it with.
+   * @return the parsed response.
+   * @throws IOException if the request cannot be sent.
+   * @throws OpenIdException if the response cannot be parsed.
+   */
+  public static Response send(Request req, String dest,
+    HttpTransport transport) throws IOException, OpenIdException {
     StringBuilder b = new StringBuilder();
 
     BufferedReader in = null;
+    PostMethod post = new PostMethod(dest);
     try {
 
       // Previously, HttpURLConnection was used here.
@@ -115,18 +137,21 @@ public class MessageFactory {
       // (of which a modified version is below) uses HttpClient, which is already
       // used by the Discover class. However, it probably would have worked
       // as originally written if we called HttpURLConnection.setRequestMethod("POST").
-      // TODO: Elminate HttpClient if possible, replace with HttpURLConnection.
-      // TODO: Some networks proxy all outbound HTTP, need to allow setup of a proxy server.
-      HttpClient client = new HttpClient();
-      PostMethod post = new PostMethod(dest);
-
+      // The HttpClient is now shared, with a pool of keep-alive connections
+      // and an optional proxy; see HttpTransport.
       for (Map.Entry param : req.toMap().entrySet()) {
         String key = (String) param.getKey();
         String value = (String) param.getValue();
         post.addParameter(key, value);
       }
+      if (req instanceof AssociationRequest) {
+        // an association made twice is harmless, so one sent on a pooled
+        // connection the server had closed may be sent again; unlike a
+        // check_authentication, whose nonce the server may have recorded
+        post.getParams().setBooleanParameter(HttpTransport.RETRY_SENT, true);
+      }
 
-      client.executeMethod(post);
+      transport.execute(post);
 
       in = new BufferedReader(new InputStreamReader(
         post.getResponseBodyAsStream()));
@@ -146,6 +171,7 @@ public class MessageFactory {
       if (in != null) {
         in.close();
       }
+      post.releaseConnection();
     }
     return parseResponse(b.toString());
   }
@@ -32,17 +32,13 @@
 //
 package com.swdouglass.joid;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
-import java.util.StringTokenizer;
 
 /**
  * Parses an OpenID message. 
@@ -53,6 +49,26 @@ public class MessageParser {
 
   static char newline = '\n';
 
+  private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+  /**
+   * The URL encoding of each ASCII character, as produced by
+   * {@link URLEncoder}; null where the character needs no encoding.
+   */
+  private static final String[] URL_ENCODED = new String[128];
+
+  static {
+    for (int c = 0; c < URL_ENCODED.length; c++) {
+      if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+        || (c >= '0' && c <= '9') || c == '.' || c == '-' || c == '*'
+        || c == '_') {
+        continue;
+      }
+      URL_ENCODED[c] = (c == ' ') ? "+"
+        : new String(new char[]{'%', HEX[c >> 4], HEX[c & 0xF]});
+    }
+  }
+
   /**
    * Unrolls a message as a string. This string will use the
    * <code>name:value</code> format of the specification. See also
@@ -61,7 +77,14 @@ public class MessageParser {
    * @return the message as a string.
    */
   static String toPostString(Message message) throws OpenIdException {
-    return toStringDelimitedBy(message, ":", newline);
+    StringBuilder sb = new StringBuilder();
+    try {
+      writePostString(message, sb);
+    } catch (IOException e) {
+      // should not happen
+      throw new RuntimeException("Internal error");
+    }
+    return sb.toString();
   }
 
   /**
@@ -71,50 +94,130 @@ public class MessageParser {
    * @return the message as a string.
    */
   static String toUrlString(Message message) throws OpenIdException {
-    return toStringDelimitedBy(message, "=", '&');
-  }
-
-  private static String toStringDelimitedBy(Message message, String kvDelim,
-    char lineDelim) throws OpenIdException {
-    Map map = message.toMap();
-    Set set = map.entrySet();
     StringBuilder sb = new StringBuilder();
     try {
-      for (Iterator iter = set.iterator(); iter.hasNext();) {
-        Map.Entry mapEntry = (Map.Entry) iter.next();
-        String key = (String) mapEntry.getKey();
-        String value = (String) mapEntry.getValue();
-
-        if (lineDelim == newline) {
-          sb.append(key + kvDelim + value);
-          sb.append(lineDelim);
-        } else {
-          if (value != null) {
-            sb.append(URLEncoder.encode(key, "UTF-8") + kvDelim + URLEncoder.encode(value, "UTF-8"));
-            if (iter.hasNext()) { // no java 5 for loop for this one
-              sb.append(lineDelim);
-            }
-          } else {
-            throw new OpenIdException("Value for key '" + key + "' is null in message map");
-          }
-        }
-
-      }
-      return sb.toString();
-    } catch (UnsupportedEncodingException e) {
+      writeUrlString(message, sb);
+    } catch (IOException e) {
       // should not happen
       throw new RuntimeException("Internal error");
     }
+    return sb.toString();
   }
 
-  static int numberOfNewlines(String query) throws IOException {
-    BufferedReader br = new BufferedReader(new StringReader(query));
-    int n = 0;
-    while (br.readLine() != null) {
-      n += 1;
+  /**
+   * Writes a message to <code>out</code> in the <code>name:value</code>
+   * format of the specification.
+   */
+  static void writePostString(Message message, Appendable out)
+    throws IOException {
+    for (Map.Entry<String,String> mapEntry : message.toMap().entrySet()) {
+      out.append(mapEntry.getKey());
+      out.append(':');
+      out.append(mapEntry.getValue());
+      out.append(newline);
+    }
+  }
+
+  /**
+   * Writes a message to <code>out</code> URL encoded. Nothing is written
+   * if the message has a null value.
+   */
+  static void writeUrlString(Message message, Appendable out)
+    throws IOException, OpenIdException {
+    Set<Map.Entry<String,String>> set = message.toMap().entrySet();
+    for (Map.Entry<String,String> mapEntry : set) {
+      if (mapEntry.getValue() == null) {
+        throw new OpenIdException("Value for key '" + mapEntry.getKey()
+          + "' is null in message map");
+      }
+    }
+    for (Iterator<Map.Entry<String,String>> iter = set.iterator(); iter.hasNext();) {
+      Map.Entry<String,String> mapEntry = iter.next();
+      urlEncode(mapEntry.getKey(), out);
+      out.append('=');
+      urlEncode(mapEntry.getValue(), out);
+      if (iter.hasNext()) {
+        out.append('&');
+      }
+    }
+  }
+
+  /**
+   * URL encodes <code>s</code> as UTF-8 onto <code>out</code>, the same as
+   * {@link URLEncoder#encode(String, String)} would, but appending runs of
+   * characters that need no encoding straight from <code>s</code>.
+   */
+  static void urlEncode(String s, Appendable out) throws IOException {
+    int len = s.length();
+    int plain = 0;
+    for (int i = 0; i < len; i++) {
+      char c = s.charAt(i);
+      if (c < 128 && URL_ENCODED[c] == null) {
+        continue;
+      }
+      if (plain < i) {
+        out.append(s, plain, i);
+      }
+      if (c < 128) {
+        out.append(URL_ENCODED[c]);
+      } else if (Character.isHighSurrogate(c) && i + 1 < len
+        && Character.isLowSurrogate(s.charAt(i + 1))) {
+        i++;
+        appendUtf8(Character.toCodePoint(c, s.charAt(i)), out);
+      } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+        // unpaired surrogate
+        out.append(URL_ENCODED['?']);
+      } else {
+        appendUtf8(c, out);
+      }
+      plain = i + 1;
+    }
+    if (plain == 0) {
+      out.append(s);
+    } else if (plain < len) {
+      out.append(s, plain, len);
+    }
+  }
+
+  private static void appendUtf8(int cp, Appendable out) throws IOException {
+    if (cp < 0x800) {
+      appendEscape(0xC0 | (cp >> 6), out);
+    } else if (cp < 0x10000) {
+      appendEscape(0xE0 | (cp >> 12), out);
+      appendEscape(0x80 | ((cp >> 6) & 0x3F), out);
+    } else {
+      appendEscape(0xF0 | (cp >> 18), out);
+      appendEscape(0x80 | ((cp >> 12) & 0x3F), out);
+      appendEscape(0x80 | ((cp >> 6) & 0x3F), out);
+    }
+    appendEscape(0x80 | (cp & 0x3F), out);
+  }
+
+  private static void appendEscape(int b, Appendable out) throws IOException {
+    out.append('%');
+    out.append(HEX[b >> 4]);
+    out.append(HEX[b & 0xF]);
+  }
+
+  /**
+   * Translates a message to a Map, whichever of the two forms of the
+   * specification it uses. A message spanning more than one line is taken
+   * to be in <code>name:value</code> form, anything else to be URL encoded.
+   * The form is detected while parsing: URL decoding stops at the first
+   * line break that is followed by more data, and the message is then
+   * parsed as <code>name:value</code> lines.
+   */
+  static Map<String,String> parse(String message)
+    throws UnsupportedEncodingException {
+    Map<String,String> map = new HashMap<String,String>();
+    if (message == null) {
+      return map;
     }
-    //log.warn ("number of lines="+n+" for "+query);
-    return n;
+    if (!parseUrlEncoded(message, map, true)) {
+      map.clear();
+      parsePosted(message, map);
+    }
+    return map;
   }
 
   /**
@@ -128,53 +231,178 @@ public class MessageParser {
     if (query == null) {
       return map;
     }
-    StringTokenizer st = new StringTokenizer(query, "?&=;", true);
-    String previous = null;
-    while (st.hasMoreTokens()) {
-      String current = st.nextToken();
-      if ("?".equals(current) || "&".equals(current) || ";".equals(current)) {
-        //ignore
-      } else if ("=".equals(current)) {
-        String name = URLDecoder.decode(previous, "UTF-8");
-        if (st.hasMoreTokens()) {
-          String value = URLDecoder.decode(st.nextToken(), "UTF-8");
-          if (isGoodValue(value)) {
+    parseUrlEncoded(query, map, false);
+    return map;
+  }
+
+  static Map<String,String> postedToMap(String query) {
+    Map<String,String> map = new HashMap<String,String>();
+    if (query == null) {
+      return map;
+    }
+    parsePosted(query, map);
+    return map;
+  }
+
+  /**
+   * Scans a URL encoded query once, putting each <code>name=value</code>
+   * pair into the map. Pairs are separated by any of <code>?&amp;;</code>;
+   * text before the first pair (e.g. a path) and pairs with an empty name
+   * or value are skipped. Only names and values that contain escapes are
+   * copied through the decode buffer; the rest are plain substrings.
+   *
+   * @return false if <code>stopAtLineBreak</code> is set and the query has
+   * a line break followed by more data, in which case the map is partial.
+   */
+  private static boolean parseUrlEncoded(String query, Map<String,String> map,
+    boolean stopAtLineBreak) throws UnsupportedEncodingException {
+    int len = query.length();
+    char[] buf = null;
+    int start = 0;
+    int eq = -1;
+    boolean nameEscaped = false;
+    boolean valueEscaped = false;
+    for (int i = 0; i <= len; i++) {
+      char c = (i < len) ? query.charAt(i) : '&';
+      switch (c) {
+        case '?':
+        case '&':
+        case ';':
+          if (eq > start && eq + 1 < i) {
+            if ((nameEscaped || valueEscaped) && buf == null) {
+              buf = new char[len];
+            }
+            String name = nameEscaped ? decode(query, start, eq, buf)
+              : query.substring(start, eq);
+            String value = valueEscaped ? decode(query, eq + 1, i, buf)
+              : query.substring(eq + 1, i);
             map.put(name, value);
           }
-        }
-      } else {
-        previous = current;
+          start = i + 1;
+          eq = -1;
+          nameEscaped = false;
+          valueEscaped = false;
+          break;
+        case '=':
+          if (eq < 0) {
+            eq = i;
+          }
+          break;
+        case '%':
+        case '+':
+          if (eq < 0) {
+            nameEscaped = true;
+          } else {
+            valueEscaped = true;
+          }
+          break;
+        case '\r':
+        case '\n':
+          if (stopAtLineBreak && nextLine(query, i) < len) {
+            return false;
+          }
+          break;
+        default:
+          break;
       }
     }
-    return map;
+    return true;
   }
 
-  private static boolean isGoodValue(String value) {
-    if ("&".equals(value) || ";".equals(value)) {
-      return false;
+  /**
+   * Splits <code>name:value</code> lines on the first colon. Values are
+   * not decoded; lines without a colon are skipped.
+   */
+  private static void parsePosted(String query, Map<String,String> map) {
+    int len = query.length();
+    int start = 0;
+    while (start < len) {
+      int colon = -1;
+      int end = start;
+      for (; end < len; end++) {
+        char c = query.charAt(end);
+        if (c == '\n' || c == '\r') {
+          break;
+        } else if (c == ':' && colon < 0) {
+          colon = end;
+        }
+      }
+      if (colon >= 0) {
+        map.put(query.substring(start, colon), query.substring(colon + 1, end));
+      }
+      start = nextLine(query, end);
     }
-    // more tests here perchance
-    return true;
   }
 
-  static Map<String,String> postedToMap(String query) throws IOException {
-    Map<String,String> map = new HashMap<String,String>();
-    if (query == null) {
-      return map;
+  /**
+   * Returns the index just past the line break at <code>i</code>, treating
+   * CR LF as a single break.
+   */
+  private static int nextLine(String s, int i) {
+    if (i < s.length() && s.charAt(i) == '\r' && i + 1 < s.length()
+      && s.charAt(i + 1) == '\n') {
+      return i + 2;
     }
-    BufferedReader br = new BufferedReader(new StringReader(query));
-    String s = br.readLine();
-    while (s != null) {
-      int index = s.indexOf(":");
-      if (index != -1) {
-        String name = s.substring(0, index);
-        String value = s.substring(index + 1, s.length());
-        if (name != null && value != null) {
-          map.put(name, value);
+    return i + 1;
+  }
+
+  /**
+   * Decodes <code>s[start, end)</code> from application/x-www-form-urlencoded
+   * UTF-8 into <code>buf</code>, which must hold at least
+   * <code>end - start</code> chars. A run of escapes is decoded together
+   * since it may encode a multi-byte character; runs that are all ASCII
+   * are copied straight into the buffer.
+   */
+  private static String decode(String s, int start, int end, char[] buf)
+    throws UnsupportedEncodingException {
+    int n = 0;
+    int i = start;
+    while (i < end) {
+      char c = s.charAt(i);
+      if (c == '+') {
+        buf[n++] = ' ';
+        i++;
+      } else if (c == '%') {
+        int runEnd = i;
+        boolean ascii = true;
+        while (runEnd < end && s.charAt(runEnd) == '%') {
+          if (hexByte(s, runEnd, end) >= 0x80) {
+            ascii = false;
+          }
+          runEnd += 3;
+        }
+        if (ascii) {
+          for (; i < runEnd; i += 3) {
+            buf[n++] = (char) hexByte(s, i, end);
+          }
+        } else {
+          byte[] bytes = new byte[(runEnd - i) / 3];
+          for (int k = 0; i < runEnd; i += 3) {
+            bytes[k++] = (byte) hexByte(s, i, end);
+          }
+          String decoded = new String(bytes, "UTF-8");
+          decoded.getChars(0, decoded.length(), buf, n);
+          n += decoded.length();
         }
+      } else {
+        buf[n++] = c;
+        i++;
       }
-      s = br.readLine();
     }
-    return map;
+    return new String(buf, 0, n);
+  }
+
+  private static int hexByte(String s, int i, int end) {
+    if (i + 2 >= end) {
+      throw new IllegalArgumentException("Incomplete escape (%) pattern at "
+        + i + " in " + s);
+    }
+    int hi = Character.digit(s.charAt(i + 1), 16);
+    int lo = Character.digit(s.charAt(i + 2), 16);
+    if (hi < 0 || lo < 0) {
+      throw new IllegalArgumentException("Illegal hex characters in escape (%) pattern at "
+        + i + " in " + s);
+    }
+    return (hi << 4) | lo;
   }
 }
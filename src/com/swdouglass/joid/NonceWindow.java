@@ -0,0 +1,247 @@
+/*
+ * MODIFICATIONS to the original source have been made by
+ * Scott Douglass <scott@swdouglass.com>
+ *
+ * Copyright 2009 Scott Douglass <scott@swdouglass.com>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.swdouglass.joid;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Remembers the response nonces seen within a sliding time window.
+ *
+ * OpenID 2.0 nonces start with their UTC creation time, for example
+ * <code>2005-05-15T17:11:51ZUNIQUE</code>. A nonce whose time lies more than
+ * the allowed skew away from the current time is rejected outright, so only
+ * the nonces inside the window need to be remembered. These are kept in a
+ * ring of buckets, each covering a slice of the window; a bucket is replaced
+ * as soon as its slice falls out of the window, which bounds memory by the
+ * traffic within the window rather than by uptime.
+ */
+public class NonceWindow {
+
+  /** Number of buckets each side of the window is divided into. */
+  private static final int BUCKETS_PER_SKEW = 4;
+  private final long skew;
+  private final long bucketWidth;
+  private final AtomicReferenceArray<Bucket> buckets;
+
+  /**
+   * Creates a nonce window.
+   *
+   * @param skewSeconds the maximum allowed difference, in seconds, between
+   * the time embedded in a nonce and the current time.
+   */
+  public NonceWindow(long skewSeconds) {
+    if (skewSeconds <= 0) {
+      throw new IllegalArgumentException("Skew must be positive: " + skewSeconds);
+    }
+    this.skew = skewSeconds * 1000;
+    this.bucketWidth = Math.max(1, this.skew / BUCKETS_PER_SKEW);
+    // a timestamp anywhere in [now - skew, now + skew] must map to a bucket
+    // that is not shared with any other live slice
+    int n = (int) ((2 * this.skew) / bucketWidth) + 2;
+    this.buckets = new AtomicReferenceArray<Bucket>(n);
+  }
+
+  /**
+   * Returns the allowed skew.
+   *
+   * @return the allowed skew in seconds.
+   */
+  public long getSkew() {
+    return skew / 1000;
+  }
+
+  /**
+   * Returns whether the given nonce carries a timestamp within the window.
+   *
+   * @param nonce the nonce to check.
+   * @param now the current time in milliseconds since the epoch.
+   * @return true if the nonce time is parseable and within the window.
+   */
+  public boolean isInWindow(String nonce, long now) {
+    long time = parseTime(nonce);
+    return time >= 0 && Math.abs(now - time) <= skew;
+  }
+
+  /**
+   * Records the nonce if it is within the window and has not been seen
+   * before. Checking and recording is a single atomic step, so of two
+   * concurrent callers with the same nonce exactly one succeeds.
+   *
+   * @param nonce the nonce to record.
+   * @param now the current time in milliseconds since the epoch.
+   * @return true if the nonce was recorded; false if it is outside the
+   * window or has already been recorded.
+   */
+  public boolean add(String nonce, long now) {
+    long time = parseTime(nonce);
+    if (time < 0 || Math.abs(now - time) > skew) {
+      return false;
+    }
+    Bucket bucket = bucketFor(time / bucketWidth);
+    if (bucket == null) {
+      return false;
+    }
+    return bucket.nonces.putIfAbsent(nonce, Boolean.TRUE) == null;
+  }
+
+  /**
+   * Returns whether the nonce has been recorded and is still within the
+   * window.
+   *
+   * @param nonce the nonce to look up.
+   * @param now the current time in milliseconds since the epoch.
+   * @return true if the nonce has been recorded.
+   */
+  public boolean contains(String nonce, long now) {
+    long time = parseTime(nonce);
+    if (time < 0 || Math.abs(now - time) > skew) {
+      return false;
+    }
+    long slot = time / bucketWidth;
+    Bucket bucket = buckets.get(index(slot));
+    return bucket != null && bucket.slot == slot &&
+      bucket.nonces.containsKey(nonce);
+  }
+
+  /**
+   * Records the nonces remembered by another window that are within this
+   * one, as when replacing a window with one of a different skew.
+   *
+   * @param other the window to copy nonces from.
+   * @param now the current time in milliseconds since the epoch.
+   */
+  public void addAll(NonceWindow other, long now) {
+    for (int i = 0; i < other.buckets.length(); i++) {
+      Bucket bucket = other.buckets.get(i);
+      if (bucket != null) {
+        for (String nonce : bucket.nonces.keySet()) {
+          add(nonce, now);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the number of nonces currently remembered, including those in
+   * buckets not yet rotated out.
+   *
+   * @return the number of nonces remembered.
+   */
+  public int size() {
+    int size = 0;
+    for (int i = 0; i < buckets.length(); i++) {
+      Bucket bucket = buckets.get(i);
+      if (bucket != null) {
+        size += bucket.nonces.size();
+      }
+    }
+    return size;
+  }
+
+  private int index(long slot) {
+    return (int) (slot % buckets.length());
+  }
+
+  /**
+   * Returns the bucket for the given slot, replacing the bucket of an
+   * older slot occupying the same position in the ring.
+   *
+   * @return the bucket, or null if the position is already taken by a
+   * newer slot (so the given slot has left the window).
+   */
+  private Bucket bucketFor(long slot) {
+    int i = index(slot);
+    while (true) {
+      Bucket bucket = buckets.get(i);
+      if (bucket != null) {
+        if (bucket.slot == slot) {
+          return bucket;
+        } else if (bucket.slot > slot) {
+          return null;
+        }
+      }
+      Bucket fresh = new Bucket(slot);
+      if (buckets.compareAndSet(i, bucket, fresh)) {
+        return fresh;
+      }
+    }
+  }
+
+  /**
+   * Parses the timestamp at the start of a nonce.
+   *
+   * @param nonce the nonce, formatted as <code>YYYY-MM-DDThh:mm:ssZ</code>
+   * followed by any unique characters.
+   * @return the time in milliseconds since the epoch, or -1 if the nonce
+   * does not start with a valid timestamp.
+   */
+  public static long parseTime(String nonce) {
+    if (nonce == null || nonce.length() < 20 ||
+      nonce.charAt(4) != '-' || nonce.charAt(7) != '-' ||
+      (nonce.charAt(10) != 'T' && nonce.charAt(10) != 't') ||
+      nonce.charAt(13) != ':' || nonce.charAt(16) != ':' ||
+      (nonce.charAt(19) != 'Z' && nonce.charAt(19) != 'z')) {
+      return -1;
+    }
+    int year = digits(nonce, 0, 4);
+    int month = digits(nonce, 5, 2);
+    int day = digits(nonce, 8, 2);
+    int hour = digits(nonce, 11, 2);
+    int minute = digits(nonce, 14, 2);
+    int second = digits(nonce, 17, 2);
+    if (year < 1970 || month < 1 || month > 12 || day < 1 || day > 31 ||
+      hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 ||
+      second > 60) {
+      return -1;
+    }
+    // days since the epoch of the proleptic Gregorian date
+    int y = (month <= 2) ? year - 1 : year;
+    int era = y / 400;
+    int yoe = y - era * 400;
+    int doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+    int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+    long days = era * 146097L + doe - 719468;
+    return ((days * 24 + hour) * 60 + minute) * 60000L + second * 1000L;
+  }
+
+  private static int digits(String s, int start, int len) {
+    int value = 0;
+    for (int i = start; i < start + len; i++) {
+      char c = s.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  private static class Bucket {
+
+    private final long slot;
+    private final ConcurrentMap<String, Boolean> nonces =
+      new ConcurrentHashMap<String, Boolean>();
+
+    Bucket(long slot) {
+      this.slot = slot;
+    }
+  }
+}
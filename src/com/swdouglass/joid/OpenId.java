@@ -57,6 +57,10 @@ import org.apache.commons.logging.Log;
  *
  * // then send the response back to the sender.
  * </pre> 
+ *
+ * Callers that need to inspect the request before processing it should
+ * parse it only once, with {@link #parseRequest(String)}, and pass the
+ * result to {@link #handleRequest(Request)}.
  */
 public class OpenId {
 
@@ -90,6 +94,23 @@ public class OpenId {
     }
   }
 
+  /**
+   * Parses a query into a request that can be passed to
+   * {@link #handleRequest(Request)}.
+   *
+   * @param query the query to parse.
+   * @return the parsed request.
+   * @throws OpenIdException if the query is not an OpenID request this
+   * implementation can handle.
+   */
+  public Request parseRequest(String query) throws OpenIdException {
+    try {
+      return MessageFactory.parseRequest(query);
+    } catch (UnsupportedEncodingException e) {
+      throw new OpenIdException(e);
+    }
+  }
+
   /**
    * Return the server info
    */
@@ -173,14 +194,8 @@ public class OpenId {
    * response will be name/value pair encoded as per specification.
    */
   public String handleRequest(String query) throws OpenIdException {
-    Request req = null;
-    try {
-      req = MessageFactory.parseRequest(query);
-    } catch (UnsupportedEncodingException e) {
-      log.warn("exception=" + e);
-      throw new OpenIdException(e);
-    }
-    Response resp = req.processUsing(serverInfo);
+    Request req = parseRequest(query);
+    Response resp = handleRequest(req);
     if (req instanceof AuthenticationRequest) {
       return resp.toUrlString();
     } else {
@@ -188,6 +203,19 @@ public class OpenId {
     }
   }
 
+  /**
+   * Processes an already parsed OpenID request into an OpenID response.
+   *
+   * @param req the request, as returned by {@link #parseRequest(String)}.
+   * @return the response. An {@link AuthenticationRequest} yields an
+   * {@link AuthenticationResponse} to be sent by redirect; other requests
+   * yield a response to be sent as the body of the reply.
+   * @throws OpenIdException if the request cannot be processed.
+   */
+  public Response handleRequest(Request req) throws OpenIdException {
+    return req.processUsing(serverInfo);
+  }
+
   /**
    * Returns whether the response is an error response.
    *
@@ -199,9 +227,20 @@ public class OpenId {
   public boolean isAnErrorResponse(String s) {
     try {
       Response resp = MessageFactory.parseResponse(s);
-      return (resp.getError() != null);
+      return isAnErrorResponse(resp);
     } catch (OpenIdException e) {
       return false;
     }
   }
+
+  /**
+   * Returns whether the response is an error response.
+   *
+   * @param resp the response, as returned by {@link #handleRequest(Request)}.
+   * @return true if processing the request yielded this response to contain
+   * an error; false otherwise.
+   */
+  public boolean isAnErrorResponse(Response resp) {
+    return (resp.getError() != null);
+  }
 }
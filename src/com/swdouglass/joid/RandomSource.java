@@ -0,0 +1,112 @@
+/*
+ * MODIFICATIONS to the original source have been made by
+ * Scott Douglass <scott@swdouglass.com>
+ *
+ * Copyright 2009 Scott Douglass <scott@swdouglass.com>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.swdouglass.joid;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Source of secure randomness for keys, secrets and crumbs. Each thread
+ * gets its own generator, so association bursts do not all queue on the
+ * lock of one shared <code>SecureRandom</code>.
+ *
+ * The algorithm defaults to <code>SHA1PRNG</code> and can be set with the
+ * <code>joid.random.algorithm</code> system property (e.g.
+ * <code>NativePRNGNonBlocking</code> or <code>DRBG</code> where the JRE
+ * provides them) or with {@link #setAlgorithm(String)}.
+ */
+public class RandomSource {
+
+  /** System property naming the SecureRandom algorithm to use. */
+  public static final String ALGORITHM_PROPERTY = "joid.random.algorithm";
+  public static final String DEFAULT_ALGORITHM = "SHA1PRNG";
+
+  private static volatile String algorithm;
+
+  private static final ThreadLocal<Generator> generators =
+    new ThreadLocal<Generator>();
+
+  static {
+    setAlgorithm(System.getProperty(ALGORITHM_PROPERTY, DEFAULT_ALGORITHM));
+  }
+
+  private RandomSource() {
+  }
+
+  /**
+   * Returns the generator of the calling thread. It must not be handed to
+   * other threads.
+   *
+   * @return a SecureRandom using the configured algorithm.
+   */
+  public static SecureRandom get() {
+    Generator g = generators.get();
+    String alg = algorithm;
+    if (g == null || g.algorithm != alg) {
+      g = new Generator(alg, newInstance(alg));
+      generators.set(g);
+    }
+    return g.random;
+  }
+
+  /**
+   * Fills <code>bytes</code> from the calling thread's generator.
+   */
+  public static void nextBytes(byte[] bytes) {
+    get().nextBytes(bytes);
+  }
+
+  /**
+   * Returns the configured SecureRandom algorithm.
+   */
+  public static String getAlgorithm() {
+    return algorithm;
+  }
+
+  /**
+   * Sets the SecureRandom algorithm. Each thread switches to it on its
+   * next use.
+   *
+   * @param alg the algorithm name.
+   * @throws IllegalArgumentException if the algorithm is not available.
+   */
+  public static void setAlgorithm(String alg) {
+    newInstance(alg);
+    algorithm = alg;
+  }
+
+  private static class Generator {
+
+    final String algorithm;
+    final SecureRandom random;
+
+    Generator(String algorithm, SecureRandom random) {
+      this.algorithm = algorithm;
+      this.random = random;
+    }
+  }
+
+  private static SecureRandom newInstance(String alg) {
+    try {
+      return SecureRandom.getInstance(alg);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalArgumentException("No secure random available: " + alg);
+    }
+  }
+}
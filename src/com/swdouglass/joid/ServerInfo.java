@@ -40,18 +40,35 @@ public class ServerInfo {
   private String urlEndPoint;
   private Store store;
   private Crypto crypto;
+  private KeyRing keyRing;
 
   /**
-   * Creates an instance of the server information.
+   * Creates an instance of the server information, without a key ring:
+   * private associations are saved to the store like shared ones.
    *
    * @param urlEndPoint the URL endpoint for the service.
    * @param store the store implementation to use.
    * @param crypto the crypto implementation to use.
    */
   public ServerInfo(String urlEndPoint, Store store, Crypto crypto) {
+    this(urlEndPoint, store, crypto, null);
+  }
+
+  /**
+   * Creates an instance of the server information.
+   *
+   * @param urlEndPoint the URL endpoint for the service.
+   * @param store the store implementation to use.
+   * @param crypto the crypto implementation to use.
+   * @param keyRing the keys used for private associations, or null to
+   * save them to the store.
+   */
+  public ServerInfo(String urlEndPoint, Store store, Crypto crypto,
+    KeyRing keyRing) {
     this.urlEndPoint = urlEndPoint;
     this.store = store;
     this.crypto = crypto;
+    this.keyRing = keyRing;
   }
 
   public String getUrlEndPoint() {
@@ -65,4 +82,12 @@ public class ServerInfo {
   public Crypto getCrypto() {
     return crypto;
   }
+
+  /**
+   * @return the key ring, or null if private associations are saved to the
+   * store.
+   */
+  public KeyRing getKeyRing() {
+    return keyRing;
+  }
 }
@@ -41,7 +41,16 @@ import java.util.Date;
 public abstract class Store {
 
   public static long DEFAULT_LIFESPAN = 600;
+  /** Default maximum age, in seconds, of a nonce that is checked. */
+  public static long DEFAULT_NONCE_SKEW = 300;
+  /**
+   * Default number of associations kept in memory by stores that cache
+   * lookups of a database or directory.
+   */
+  public static int DEFAULT_ASSOCIATION_CACHE_SIZE = 10000;
   private long associationLifetime = DEFAULT_LIFESPAN;
+  private long nonceSkew = DEFAULT_NONCE_SKEW;
+  private StoreSweeper sweeper;
 
   /**
    * Override constructor in the Store implementation.
@@ -82,10 +91,12 @@ public abstract class Store {
       secret = crypto.generateRandom(req.getAssociationType());
     } else {
       secret = crypto.generateRandom(req.getSessionType());
-      crypto.setDiffieHellman(req.getDhModulus(), req.getDhGenerator());
-      byte[] encryptedSecret = crypto.encryptSecret(req.getDhConsumerPublic(), secret);
+      DiffieHellman dh = DiffieHellmanPool.take(req.getDhModulus(),
+        req.getDhGenerator());
+      byte[] encryptedSecret = crypto.encryptSecret(dh,
+        req.getDhConsumerPublic(), secret);
       a.setEncryptedMacKey(encryptedSecret);
-      a.setPublicDhKey(crypto.getPublicKey());
+      a.setPublicDhKey(dh.getPublicKey());
     }
     a.setMacKey(secret);
     a.setIssuedDate(new Date());
@@ -112,6 +123,21 @@ public abstract class Store {
     return n;
   }
   
+  /**
+   * Returns whether the time at the start of the nonce lies within
+   * {@link #getNonceSkew()} seconds of the current time. Nonces outside
+   * this window are rejected without consulting the store, so a store
+   * need only remember the nonces that are inside it.
+   *
+   * @param nonce the nonce to check.
+   * @return true if the nonce time is parseable and within the window.
+   */
+  public boolean isNonceInWindow(String nonce) {
+    long time = NonceWindow.parseTime(nonce);
+    return time >= 0 &&
+      Math.abs(System.currentTimeMillis() - time) <= getNonceSkew() * 1000;
+  }
+
   /**
    * Deletes an association from the store.
    *
@@ -153,6 +179,78 @@ public abstract class Store {
    */
   public abstract void saveNonce(Nonce n) throws OpenIdException;
 
+  /**
+   * Records a nonce unless it has been recorded before. Checking and
+   * recording is one atomic step, so of two concurrent requests carrying
+   * the same nonce only one can succeed.
+   *
+   * The default implementation does a {@link #findNonce(String) findNonce()}
+   * followed by a {@link #saveNonce(Nonce) saveNonce()} while holding the
+   * lock on this store. Implementations should override this with a single
+   * native operation.
+   *
+   * @param nonce the nonce to record.
+   * @return true if the nonce was recorded; false if it had been already.
+   *
+   * @throws OpenIdException at unrecoverable errors.
+   */
+  public synchronized boolean recordNonce(String nonce)
+  throws OpenIdException {
+    if (findNonce(nonce) != null) {
+      return false;
+    }
+    saveNonce(generateNonce(nonce));
+    return true;
+  }
+
+  /**
+   * Deletes at most <code>batchSize</code> associations and nonces that
+   * have expired at <code>now</code>. Nonces expire once they are older
+   * than the nonce skew, since older ones are refused anyway. Called by
+   * {@link StoreSweeper}; the default implementation deletes nothing.
+   *
+   * @param now the current time in milliseconds since the epoch.
+   * @param batchSize the maximum number of records to delete.
+   * @return the number of records deleted; less than
+   * <code>batchSize</code> if there are no more expired records.
+   * @throws OpenIdException at storage errors.
+   */
+  public int deleteExpired(long now, int batchSize) throws OpenIdException {
+    return 0;
+  }
+
+  /**
+   * Starts sweeping this store of expired records in the background,
+   * replacing any sweeper started before.
+   *
+   * @param interval the interval between sweeps, in seconds.
+   * @param batchSize the maximum number of records deleted at once.
+   * @return the sweeper, for its statistics.
+   */
+  public synchronized StoreSweeper startSweeper(long interval, int batchSize) {
+    stopSweeper();
+    sweeper = new StoreSweeper(this, batchSize);
+    sweeper.start(interval);
+    return sweeper;
+  }
+
+  /**
+   * Stops the background sweeper, if there is one.
+   */
+  public synchronized void stopSweeper() {
+    if (sweeper != null) {
+      sweeper.stop();
+      sweeper = null;
+    }
+  }
+
+  /**
+   * @return the running sweeper, or null if none was started.
+   */
+  public synchronized StoreSweeper getSweeper() {
+    return sweeper;
+  }
+
   /**
    * @return the associationLifetime
    */
@@ -166,4 +264,18 @@ public abstract class Store {
   public void setAssociationLifetime(long associationLifetime) {
     this.associationLifetime = associationLifetime;
   }
+
+  /**
+   * @return the nonceSkew in seconds
+   */
+  public long getNonceSkew() {
+    return nonceSkew;
+  }
+
+  /**
+   * @param nonceSkew the nonceSkew in seconds to set
+   */
+  public void setNonceSkew(long nonceSkew) {
+    this.nonceSkew = nonceSkew;
+  }
 }
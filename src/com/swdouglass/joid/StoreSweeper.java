@@ -0,0 +1,180 @@
+/*
+ * MODIFICATIONS to the original source have been made by
+ * Scott Douglass <scott@swdouglass.com>
+ *
+ * Copyright 2009 Scott Douglass <scott@swdouglass.com>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.swdouglass.joid;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Periodically deletes expired associations and nonces from a
+ * {@link Store}, in batches of bounded size, and keeps counts of what it
+ * did. Sweepers are started with {@link Store#startSweeper(long, int)} and
+ * share one background thread.
+ */
+public class StoreSweeper implements Runnable {
+
+  private final static Log log = LogFactory.getLog(StoreSweeper.class);
+  /** Default interval, in seconds, between sweeps. */
+  public static long DEFAULT_INTERVAL = 300;
+  /** Default maximum number of records deleted per batch. */
+  public static int DEFAULT_BATCH_SIZE = 500;
+
+  private static ScheduledExecutorService executor;
+
+  private final Store store;
+  private final int batchSize;
+  private ScheduledFuture<?> future;
+  private final AtomicLong sweeps = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong totalRemoved = new AtomicLong();
+  private volatile long lastRemoved;
+  private volatile long lastDuration;
+  private volatile long lastSweep;
+
+  /**
+   * Creates a sweeper; it does nothing until {@link #start(long)} or
+   * {@link #sweep()} is called.
+   *
+   * @param store the store to sweep.
+   * @param batchSize the maximum number of records to delete at once.
+   */
+  public StoreSweeper(Store store, int batchSize) {
+    if (batchSize <= 0) {
+      throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+    }
+    this.store = store;
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Schedules sweeps every <code>interval</code> seconds, replacing any
+   * earlier schedule of this sweeper.
+   */
+  public synchronized void start(long interval) {
+    stop();
+    future = getExecutor().scheduleWithFixedDelay(this, interval, interval,
+      TimeUnit.SECONDS);
+  }
+
+  /**
+   * Cancels scheduled sweeps. A sweep in progress runs to completion.
+   */
+  public synchronized void stop() {
+    if (future != null) {
+      future.cancel(false);
+      future = null;
+    }
+  }
+
+  @Override
+  public void run() {
+    try {
+      sweep();
+    } catch (RuntimeException e) {
+      // keep the schedule alive
+      failures.incrementAndGet();
+      log.warn("Error sweeping expired entries", e);
+    }
+  }
+
+  /**
+   * Deletes all records that have expired now, one batch at a time, until
+   * a batch comes back short.
+   *
+   * @return the number of records deleted.
+   */
+  public long sweep() {
+    long start = System.currentTimeMillis();
+    long removed = 0;
+    try {
+      int n;
+      do {
+        n = store.deleteExpired(start, batchSize);
+        removed += n;
+      } while (n >= batchSize);
+    } catch (OpenIdException e) {
+      failures.incrementAndGet();
+      log.warn("Error sweeping expired entries", e);
+    }
+    long end = System.currentTimeMillis();
+    sweeps.incrementAndGet();
+    totalRemoved.addAndGet(removed);
+    lastRemoved = removed;
+    lastDuration = end - start;
+    lastSweep = end;
+    if (log.isDebugEnabled()) {
+      log.debug("Swept " + removed + " expired records in " + lastDuration + "ms");
+    }
+    return removed;
+  }
+
+  /** Returns the number of sweeps run. */
+  public long getSweeps() {
+    return sweeps.get();
+  }
+
+  /** Returns the number of sweeps, or batches, that failed. */
+  public long getFailures() {
+    return failures.get();
+  }
+
+  /** Returns the number of records deleted by all sweeps. */
+  public long getTotalRemoved() {
+    return totalRemoved.get();
+  }
+
+  /** Returns the number of records deleted by the last sweep. */
+  public long getLastRemoved() {
+    return lastRemoved;
+  }
+
+  /** Returns how long the last sweep took, in milliseconds. */
+  public long getLastDuration() {
+    return lastDuration;
+  }
+
+  /**
+   * Returns when the last sweep finished, in milliseconds since the
+   * epoch, or 0 if none has run.
+   */
+  public long getLastSweep() {
+    return lastSweep;
+  }
+
+  private static synchronized ScheduledExecutorService getExecutor() {
+    if (executor == null) {
+      executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "joid-store-sweeper");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return executor;
+  }
+}
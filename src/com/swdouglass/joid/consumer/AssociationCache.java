@@ -0,0 +1,297 @@
+/*
+ * MODIFICATIONS to the original source have been made by
+ * Scott Douglass <scott@swdouglass.com>
+ *
+ * Copyright 2009 Scott Douglass <scott@swdouglass.com>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.swdouglass.joid.consumer;
+
+import com.swdouglass.joid.OpenIdException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The associations a consumer holds, by server and by handle. Safe for use
+ * by many threads without a global lock.
+ *
+ * Only one thread at a time associates with a given server; others asking
+ * for the same server meanwhile wait for its result. An association is
+ * replaced once it comes within the refresh margin of its expiry, but stays
+ * known by its handle until it actually expires, so that responses to
+ * requests sent with it can still be verified.
+ */
+public class AssociationCache {
+
+  /**
+   * Seconds before expiry at which an association is no longer handed out
+   * for new requests. Capped at half the association's lifetime.
+   */
+  public static long DEFAULT_REFRESH_MARGIN = 60;
+
+  private final ConcurrentMap<String, FutureTask<ConsumerAssociation>> byServer =
+    new ConcurrentHashMap<String, FutureTask<ConsumerAssociation>>();
+  private final ConcurrentMap<String, ConsumerAssociation> byHandle =
+    new ConcurrentHashMap<String, ConsumerAssociation>();
+  // when each server was last asked for; see getServersUsedSince
+  private final ConcurrentMap<String, Long> lastUsed =
+    new ConcurrentHashMap<String, Long>();
+  private final long refreshMargin;
+
+  public AssociationCache() {
+    this(DEFAULT_REFRESH_MARGIN);
+  }
+
+  /**
+   * @param refreshMargin seconds before expiry at which an association is
+   * replaced.
+   */
+  public AssociationCache(long refreshMargin) {
+    this.refreshMargin = refreshMargin * 1000;
+  }
+
+  /**
+   * Returns the current association with a server, making one with
+   * <code>associate</code> if there is none or it is due for refresh.
+   * An association made during the call is returned even if it is due
+   * already, as one without a lifetime is, so that it is used once rather
+   * than made over and over.
+   *
+   * @param idServer the server URL.
+   * @param associate makes a new association with the server.
+   * @return the association.
+   * @throws OpenIdException if associating failed.
+   */
+  public ConsumerAssociation get(String idServer,
+    Callable<ConsumerAssociation> associate) throws OpenIdException {
+    long start = System.currentTimeMillis();
+    lastUsed.put(idServer, Long.valueOf(start));
+    while (true) {
+      FutureTask<ConsumerAssociation> f = byServer.get(idServer);
+      if (f == null) {
+        FutureTask<ConsumerAssociation> task = newTask(associate);
+        f = byServer.putIfAbsent(idServer, task);
+        if (f == null) {
+          f = task;
+          task.run();
+        }
+      }
+      ConsumerAssociation a = await(idServer, f);
+      if (a.getIssuedAt() >= start || !isDue(a, System.currentTimeMillis())) {
+        return a;
+      }
+      // only the first thread to get here replaces it
+      byServer.remove(idServer, f);
+    }
+  }
+
+  /**
+   * Associates anew with a server and makes the result its current
+   * association. Unlike {@link #get}, callers asking for the server
+   * meanwhile are not held up; they keep getting the old association
+   * until this one is in place. For background refreshes.
+   *
+   * @return the new association.
+   * @throws OpenIdException if associating failed; the old association
+   * is kept.
+   */
+  public ConsumerAssociation renew(String idServer,
+    Callable<ConsumerAssociation> associate) throws OpenIdException {
+    FutureTask<ConsumerAssociation> task = newTask(associate);
+    task.run();
+    ConsumerAssociation a = await(idServer, task);
+    byServer.put(idServer, task);
+    return a;
+  }
+
+  /**
+   * Returns whether a server's association will be due for refresh at the
+   * given time, or there is none. An association being made is not due.
+   *
+   * @param idServer the server URL.
+   * @param at the time to check for, in milliseconds since the epoch.
+   */
+  public boolean needsRefresh(String idServer, long at) {
+    FutureTask<ConsumerAssociation> f = byServer.get(idServer);
+    if (f == null) {
+      return true;
+    }
+    if (!f.isDone()) {
+      return false;
+    }
+    ConsumerAssociation a = result(f);
+    return a == null || isDue(a, at);
+  }
+
+  /**
+   * Returns the servers asked for since the given time, and forgets when
+   * the others were last asked for.
+   *
+   * @param since the time, in milliseconds since the epoch.
+   */
+  public Set<String> getServersUsedSince(long since) {
+    Set<String> servers = new HashSet<String>();
+    for (Iterator<Map.Entry<String, Long>> it = lastUsed.entrySet().iterator();
+      it.hasNext();) {
+      Map.Entry<String, Long> e = it.next();
+      if (e.getValue().longValue() >= since) {
+        servers.add(e.getKey());
+      } else {
+        it.remove();
+      }
+    }
+    return servers;
+  }
+
+  /**
+   * Returns the association with the given handle, or null if there is
+   * none or it has expired.
+   */
+  public ConsumerAssociation findByHandle(String handle) {
+    if (handle == null) {
+      return null;
+    }
+    ConsumerAssociation a = byHandle.get(handle);
+    if (a != null && a.hasExpired(System.currentTimeMillis())) {
+      byHandle.remove(handle, a);
+      return null;
+    }
+    return a;
+  }
+
+  /**
+   * Returns the server the association with the given handle was made
+   * with, even if it has expired, or null if the handle is no longer
+   * known.
+   */
+  public String findServerByHandle(String handle) {
+    if (handle == null) {
+      return null;
+    }
+    ConsumerAssociation a = byHandle.get(handle);
+    return (a == null) ? null : a.getIdServer();
+  }
+
+  /**
+   * Returns whether an association has been asked for with the server, and
+   * not forgotten since.
+   *
+   * @param idServer the server URL.
+   */
+  public boolean isKnownServer(String idServer) {
+    return byServer.containsKey(idServer) || lastUsed.containsKey(idServer);
+  }
+
+  /**
+   * Forgets the association with the given handle, so that the next
+   * request to its server makes a new one.
+   */
+  public void invalidate(String handle) {
+    ConsumerAssociation a = byHandle.remove(handle);
+    if (a != null) {
+      FutureTask<ConsumerAssociation> f = byServer.get(a.getIdServer());
+      if (f != null && f.isDone() && a == result(f)) {
+        byServer.remove(a.getIdServer(), f);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of associations known by handle.
+   */
+  public int size() {
+    return byHandle.size();
+  }
+
+  public void clear() {
+    byServer.clear();
+    byHandle.clear();
+    lastUsed.clear();
+  }
+
+  /**
+   * Drops the associations that have expired.
+   *
+   * @return the number of associations dropped.
+   */
+  public int removeExpired() {
+    return removeExpired(System.currentTimeMillis());
+  }
+
+  boolean isDue(ConsumerAssociation a, long now) {
+    long lifetime = a.getExpiresAt() - a.getIssuedAt();
+    return now >= a.getExpiresAt() - Math.min(refreshMargin, lifetime / 2);
+  }
+
+  private FutureTask<ConsumerAssociation> newTask(
+    final Callable<ConsumerAssociation> associate) {
+    return new FutureTask<ConsumerAssociation>(
+      new Callable<ConsumerAssociation>() {
+
+        @Override
+        public ConsumerAssociation call() throws Exception {
+          ConsumerAssociation a = associate.call();
+          removeExpired(System.currentTimeMillis());
+          byHandle.put(a.getHandle(), a);
+          return a;
+        }
+      });
+  }
+
+  private ConsumerAssociation await(String idServer,
+    FutureTask<ConsumerAssociation> f) throws OpenIdException {
+    try {
+      return f.get();
+    } catch (ExecutionException e) {
+      // let the next request try again
+      byServer.remove(idServer, f);
+      Throwable cause = e.getCause();
+      if (cause instanceof OpenIdException) {
+        throw (OpenIdException) cause;
+      }
+      throw new OpenIdException("Could not associate with " + idServer,
+        (cause instanceof Exception) ? (Exception) cause : e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new OpenIdException("Interrupted associating with " + idServer, e);
+    }
+  }
+
+  private static ConsumerAssociation result(FutureTask<ConsumerAssociation> f) {
+    try {
+      return f.get();
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  private int removeExpired(long now) {
+    int n = 0;
+    for (Iterator<ConsumerAssociation> it = byHandle.values().iterator();
+      it.hasNext();) {
+      ConsumerAssociation a = it.next();
+      if (a.hasExpired(now) && byHandle.remove(a.getHandle(), a)) {
+        n++;
+      }
+    }
+    return n;
+  }
+}
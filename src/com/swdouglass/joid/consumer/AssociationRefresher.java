@@ -0,0 +1,199 @@
+/*
+ * MODIFICATIONS to the original source have been made by
+ * Scott Douglass <scott@swdouglass.com>
+ *
+ * Copyright 2009 Scott Douglass <scott@swdouglass.com>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.swdouglass.joid.consumer;
+
+import com.swdouglass.joid.OpenIdException;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Periodically renews a {@link JoidConsumer}'s associations before they
+ * are due, so that logins do not wait for an association round trip.
+ * Servers listed for warm-up are associated with as soon as the refresher
+ * starts and kept fresh from then on; other servers are kept fresh while
+ * they have been asked for within the idle time. Refreshers are started
+ * with {@link JoidConsumer#startRefresher} and share one background thread.
+ */
+public class AssociationRefresher implements Runnable {
+
+  private final static Log log = LogFactory.getLog(AssociationRefresher.class);
+  /** Default interval, in seconds, between refreshes. */
+  public static long DEFAULT_INTERVAL = 60;
+  /**
+   * Default time, in seconds, after which a server not asked for is no
+   * longer kept fresh.
+   */
+  public static long DEFAULT_IDLE_TIME = 3600;
+
+  private static ScheduledExecutorService executor;
+
+  private final JoidConsumer consumer;
+  private final Set<String> warmup;
+  private final long idleTime;
+  private volatile long interval = DEFAULT_INTERVAL * 1000;
+  private ScheduledFuture<?> future;
+  private final AtomicLong runs = new AtomicLong();
+  private final AtomicLong renewals = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+
+  /**
+   * Creates a refresher; it does nothing until {@link #start(long)} or
+   * {@link #refresh()} is called.
+   *
+   * @param consumer the consumer whose associations to renew.
+   * @param warmup server URLs to keep associated with regardless of use;
+   * may be null.
+   * @param idleTime seconds after which a server not asked for is no
+   * longer kept fresh.
+   */
+  public AssociationRefresher(JoidConsumer consumer, Collection<String> warmup,
+    long idleTime) {
+    this.consumer = consumer;
+    this.warmup = new LinkedHashSet<String>();
+    if (warmup != null) {
+      this.warmup.addAll(warmup);
+    }
+    this.idleTime = idleTime * 1000;
+  }
+
+  /**
+   * Runs a refresh now, then every <code>interval</code> seconds,
+   * replacing any earlier schedule of this refresher.
+   */
+  public synchronized void start(long interval) {
+    stop();
+    this.interval = interval * 1000;
+    future = getExecutor().scheduleWithFixedDelay(this, 0, interval,
+      TimeUnit.SECONDS);
+  }
+
+  /**
+   * Cancels scheduled refreshes. A refresh in progress runs to completion.
+   */
+  public synchronized void stop() {
+    if (future != null) {
+      future.cancel(false);
+      future = null;
+    }
+  }
+
+  /**
+   * Renews the association with one server on the background thread, for
+   * one that the server has just invalidated.
+   */
+  public void renewSoon(final String idServer) {
+    getExecutor().execute(new Runnable() {
+
+      @Override
+      public void run() {
+        if (consumer.getAssociations().needsRefresh(idServer,
+          System.currentTimeMillis())) {
+          renew(idServer);
+        }
+      }
+    });
+  }
+
+  @Override
+  public void run() {
+    try {
+      refresh();
+    } catch (RuntimeException e) {
+      // keep the schedule alive
+      failures.incrementAndGet();
+      log.warn("Error refreshing associations", e);
+    }
+  }
+
+  /**
+   * Renews every kept association that will be due before the next run,
+   * and drops expired ones.
+   *
+   * @return the number of associations renewed.
+   */
+  public int refresh() {
+    long now = System.currentTimeMillis();
+    AssociationCache cache = consumer.getAssociations();
+    Set<String> servers = new LinkedHashSet<String>(warmup);
+    servers.addAll(cache.getServersUsedSince(now - idleTime));
+    int n = 0;
+    for (String idServer : servers) {
+      if (cache.needsRefresh(idServer, now + interval) && renew(idServer)) {
+        n++;
+      }
+    }
+    cache.removeExpired();
+    runs.incrementAndGet();
+    if (log.isDebugEnabled()) {
+      log.debug("Renewed " + n + " of " + servers.size() + " associations");
+    }
+    return n;
+  }
+
+  private boolean renew(String idServer) {
+    try {
+      consumer.renewAssociation(idServer);
+      renewals.incrementAndGet();
+      return true;
+    } catch (OpenIdException e) {
+      failures.incrementAndGet();
+      log.warn("Could not renew association with " + idServer, e);
+      return false;
+    }
+  }
+
+  /** Returns the number of refreshes run. */
+  public long getRuns() {
+    return runs.get();
+  }
+
+  /** Returns the number of associations renewed. */
+  public long getRenewals() {
+    return renewals.get();
+  }
+
+  /** Returns the number of renewals that failed. */
+  public long getFailures() {
+    return failures.get();
+  }
+
+  private static synchronized ScheduledExecutorService getExecutor() {
+    if (executor == null) {
+      executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "joid-association-refresher");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return executor;
+  }
+}
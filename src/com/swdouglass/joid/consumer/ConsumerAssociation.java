@@ -0,0 +1,105 @@
+/*
+ * MODIFICATIONS to the original source have been made by
+ * Scott Douglass <scott@swdouglass.com>
+ *
+ * Copyright 2009 Scott Douglass <scott@swdouglass.com>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.swdouglass.joid.consumer;
+
+import com.swdouglass.joid.AssociationResponse;
+import com.swdouglass.joid.Crypto;
+import com.swdouglass.joid.DiffieHellman;
+import com.swdouglass.joid.OpenIdException;
+
+/**
+ * An association the consumer holds with an OpenID server. The MAC key is
+ * decrypted once, when the association is made, so that verifying a
+ * response signed with it costs one HMAC and no Diffie-Hellman.
+ */
+public class ConsumerAssociation {
+
+  private final String idServer;
+  private final String handle;
+  private final String associationType;
+  private final long issuedAt;
+  private final long expiresAt;
+  private final byte[] macKey;
+
+  /**
+   * Creates an association from the server's response, decrypting the MAC
+   * key if it was sent encrypted.
+   *
+   * @param idServer the server URL.
+   * @param response the server's association response.
+   * @param dh the key pair the request was made with.
+   * @param now the time the request was made, in milliseconds since the
+   * epoch.
+   * @throws OpenIdException if the MAC key cannot be decrypted.
+   */
+  public ConsumerAssociation(String idServer, AssociationResponse response,
+    DiffieHellman dh, long now) throws OpenIdException {
+    this.idServer = idServer;
+    this.handle = response.getAssociationHandle();
+    this.associationType = response.getAssociationType();
+    this.issuedAt = now;
+    this.expiresAt = now + response.getExpiresIn() * 1000L;
+    if (response.getEncryptedMacKey() != null) {
+      this.macKey = new Crypto().decryptSecret(dh,
+        response.getDhServerPublic(), response.getEncryptedMacKey());
+    } else {
+      this.macKey = response.getMacKey();
+    }
+    if (macKey == null) {
+      throw new OpenIdException("No MAC key in association " + handle
+        + " from " + idServer);
+    }
+  }
+
+  public String getIdServer() {
+    return idServer;
+  }
+
+  public String getHandle() {
+    return handle;
+  }
+
+  public String getAssociationType() {
+    return associationType;
+  }
+
+  public long getIssuedAt() {
+    return issuedAt;
+  }
+
+  public long getExpiresAt() {
+    return expiresAt;
+  }
+
+  /**
+   * Returns whether this association has expired at the given time.
+   */
+  public boolean hasExpired(long now) {
+    return now >= expiresAt;
+  }
+
+  /**
+   * Returns a copy of the clear MAC key. The key itself is shared by every
+   * thread verifying with this association, so it is never handed out or
+   * cleared, even once the association has expired.
+   */
+  public byte[] getMacKey() {
+    return macKey.clone();
+  }
+}
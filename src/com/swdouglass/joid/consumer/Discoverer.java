@@ -19,40 +19,129 @@
 package com.swdouglass.joid.consumer;
 
 import com.swdouglass.joid.OpenIdException;
-import org.apache.commons.httpclient.HttpClient;
+import com.swdouglass.joid.util.HttpTransport;
+import com.swdouglass.joid.util.UrlUtils;
 import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.methods.GetMethod;
-import org.xml.sax.SAXException;
-import org.w3c.dom.Document;
-import org.w3c.dom.NodeList;
-import org.w3c.dom.Node;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.LinkedHashSet;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
-import javax.xml.parsers.DocumentBuilder;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.w3c.dom.NamedNodeMap;
 
 public class Discoverer {
 
   private static Log log = LogFactory.getLog(Discoverer.class);
+  /** OpenID service types, in the order a service is chosen by. */
+  private static final String[] SERVICE_TYPES = {
+    "http://specs.openid.net/auth/2.0/server",
+    "http://specs.openid.net/auth/2.0/signon",
+    "http://openid.net/signon/1.1",
+    "http://openid.net/signon/1.0"
+  };
+  private final HttpTransport transport;
+  private final DiscoveryCache cache;
+  private final XRDSParser parser;
+
+  /**
+   * Creates a discoverer using the shared {@link HttpTransport} and a
+   * {@link DiscoveryCache} with the default settings.
+   */
+  public Discoverer() {
+    this(null);
+  }
+
+  /**
+   * Creates a discoverer with a {@link DiscoveryCache} with the default
+   * settings.
+   *
+   * @param transport the HTTP transport to fetch identity pages with, or
+   * null for the shared transport at the time of each request.
+   */
+  public Discoverer(HttpTransport transport) {
+    this(transport, new DiscoveryCache());
+  }
+
+  /**
+   * Creates a discoverer.
+   *
+   * @param transport the HTTP transport to fetch identity pages with, or
+   * null for the shared transport at the time of each request.
+   * @param cache the cache of discovery results, or null to discover
+   * every time.
+   */
+  public Discoverer(HttpTransport transport, DiscoveryCache cache) {
+    this(transport, cache, new XRDSParser());
+  }
+
+  /**
+   * Creates a discoverer.
+   *
+   * @param transport the HTTP transport to fetch identity pages with, or
+   * null for the shared transport at the time of each request.
+   * @param cache the cache of discovery results, or null to discover
+   * every time.
+   * @param parser the parser of Yadis XRDS documents.
+   */
+  public Discoverer(HttpTransport transport, DiscoveryCache cache,
+    XRDSParser parser) {
+    this.transport = transport;
+    this.cache = cache;
+    this.parser = parser;
+  }
+
+  /**
+   * Returns the cache of discovery results.
+   *
+   * @return the cache, or null if results are not cached.
+   */
+  public DiscoveryCache getCache() {
+    return cache;
+  }
 
   public ServerAndDelegate findIdServer(String identityUrl)
     throws Exception {
-    ServerAndDelegate serverAndDelegate = new ServerAndDelegate();
     debug("identityUrl=" + identityUrl);
+    if (cache == null) {
+      return discover(identityUrl, null);
+    }
+
+    String key = UrlUtils.normalizeIdentifier(identityUrl);
+    long now = System.currentTimeMillis();
+    DiscoveryCache.Entry entry = cache.get(key, now);
+    if (entry != null) {
+      if (entry.isFresh(now)) {
+        cache.hit();
+        return entry.getResult();
+      }
+      List<DiscoveryCache.Document> documents = revalidate(entry);
+      if (documents != null) {
+        debug("revalidated discovery of " + key);
+        cache.revalidated();
+        cache.put(key, entry.getResult(), documents, now);
+        return entry.getResult();
+      }
+    }
+    cache.missed();
+    List<DiscoveryCache.Document> documents =
+      new ArrayList<DiscoveryCache.Document>();
+    ServerAndDelegate serverAndDelegate = discover(identityUrl, documents);
+    cache.put(key, serverAndDelegate, documents, now);
+    return serverAndDelegate;
+  }
+
+  private ServerAndDelegate discover(String identityUrl,
+    List<DiscoveryCache.Document> documents) throws Exception {
+    ServerAndDelegate serverAndDelegate = new ServerAndDelegate();
 
     // FIXME: What about XRI? 7.3.1
     // OpenID 2.0, 7.3.2 Discovery: we first try to check with YADIS protocol
-    if (!findWithYadis(identityUrl, serverAndDelegate)) {
+    if (!findWithYadis(identityUrl, serverAndDelegate, documents)) {
       // Then we parse some HTML 7.3.3
-      if (!findWithHTML(identityUrl, serverAndDelegate)) {
+      if (!findWithHTML(identityUrl, serverAndDelegate, documents)) {
         throw new OpenIdException("No openid.server found on identity page.");
       }
     }
@@ -60,28 +149,76 @@ public class Discoverer {
     return serverAndDelegate;
   }
 
+  /**
+   * Checks with conditional requests that none of the documents of a
+   * stale result has changed.
+   *
+   * @return the revalidated documents, or null if the result must be
+   * discovered again.
+   */
+  private List<DiscoveryCache.Document> revalidate(DiscoveryCache.Entry entry) {
+    List<DiscoveryCache.Document> documents =
+      new ArrayList<DiscoveryCache.Document>();
+    for (DiscoveryCache.Document d : entry.getDocuments()) {
+      long now = System.currentTimeMillis();
+      if (!d.hasValidator()
+        || (d.contentExpires >= 0 && d.contentExpires <= now)) {
+        return null;
+      }
+      GetMethod get = new GetMethod(d.url);
+      d.addConditions(get);
+      try {
+        int status = execute(get);
+        if (status != 304) {
+          debug("discovery document changed: " + d.url);
+          return null;
+        }
+        documents.add(d.revalidate(get, now));
+      } catch (IOException e) {
+        log.warn("Could not revalidate " + d.url + ": " + e.getMessage());
+        return null;
+      } finally {
+        get.releaseConnection();
+      }
+    }
+    return documents;
+  }
+
   public Boolean findWithYadis(String identityUrl, ServerAndDelegate serverAndDelegate)
     throws Exception {
+    return findWithYadis(identityUrl, serverAndDelegate, null);
+  }
+
+  private boolean findWithYadis(String identityUrl,
+    ServerAndDelegate serverAndDelegate,
+    List<DiscoveryCache.Document> documents) throws Exception {
     boolean found = false;
 
     GetMethod get = new GetMethod(identityUrl);
-    httpGet(get);
-    Header contentType = get.getResponseHeader("Content-Type");
-    if (contentType != null && contentType.getValue().contains("application/xrds+xml")) {
-      // then we're looking at the xrds service doc already
-      XRDSDocument xrdsDocument = buildXrdsDocument(get);
-      handleXrdsDocument(serverAndDelegate, xrdsDocument);
-      found = true;
-    } else {
-      Header locationHeader = get.getResponseHeader("X-XRDS-Location");
-      if (locationHeader != null) {
-        // then we go to this URL
-        get.releaseConnection();
-        debug("found yadis header: " + locationHeader.getValue());
-        XRDSDocument xrdsDocument = fetchYadisDocument(locationHeader.getValue());
+    try {
+      httpGet(get, documents);
+      Header contentType = get.getResponseHeader("Content-Type");
+      if (contentType != null && contentType.getValue().contains("application/xrds+xml")) {
+        // then we're looking at the xrds service doc already
+        XRDSDocument xrdsDocument = buildXrdsDocument(get);
+        recordContentExpires(documents, xrdsDocument);
         handleXrdsDocument(serverAndDelegate, xrdsDocument);
         found = true;
+      } else {
+        Header locationHeader = get.getResponseHeader("X-XRDS-Location");
+        if (locationHeader != null) {
+          // then we go to this URL
+          get.releaseConnection();
+          debug("found yadis header: " + locationHeader.getValue());
+          XRDSDocument xrdsDocument = fetchYadisDocument(
+            locationHeader.getValue(), documents);
+          handleXrdsDocument(serverAndDelegate, xrdsDocument);
+          found = true;
+        }
       }
+    } finally {
+      // return the connection to the pool
+      get.releaseConnection();
     }
 
     return found;
@@ -92,23 +229,32 @@ public class Discoverer {
    */
   public Boolean findWithHTML(String identityUrl, ServerAndDelegate serverAndDelegate)
     throws Exception {
+    return findWithHTML(identityUrl, serverAndDelegate, null);
+  }
+
+  private boolean findWithHTML(String identityUrl,
+    ServerAndDelegate serverAndDelegate,
+    List<DiscoveryCache.Document> documents) throws Exception {
     boolean found = false;
 
     GetMethod get = new GetMethod(identityUrl);
+    try {
+      BufferedReader in = httpGet(get, documents);
 
-    BufferedReader in = httpGet(get);
-
-    String str;
-    while ((str = in.readLine()) != null) {
-      if (serverAndDelegate.getServer() == null) {
-        serverAndDelegate.setServer(findLinkTag(str, "openid.server", in));
-      }
-      if (serverAndDelegate.getDelegate() == null) {
-        serverAndDelegate.setDelegate(findLinkTag(str, "openid.delegate", in));
-      }
-      if (str.indexOf("</head>") >= 0) {
-        break;
+      String str;
+      while ((str = in.readLine()) != null) {
+        if (serverAndDelegate.getServer() == null) {
+          serverAndDelegate.setServer(findLinkTag(str, "openid.server", in));
+        }
+        if (serverAndDelegate.getDelegate() == null) {
+          serverAndDelegate.setDelegate(findLinkTag(str, "openid.delegate", in));
+        }
+        if (str.indexOf("</head>") >= 0) {
+          break;
+        }
       }
+    } finally {
+      get.releaseConnection();
     }
     if (serverAndDelegate.getServer() != null) {
       found = true;
@@ -117,24 +263,74 @@ public class Discoverer {
     return found;
   }
 
-  private BufferedReader httpGet(GetMethod get) throws IOException {
-    HttpClient httpClient = new HttpClient();
-    httpClient.getParams().setSoTimeout(15000);
-    httpClient.getParams().setConnectionManagerTimeout(15000);
-    int status = httpClient.executeMethod(get);
+  /**
+   * Executes a GET, recording the caching metadata of the response in
+   * <code>documents</code> unless it is null.
+   */
+  private BufferedReader httpGet(GetMethod get,
+    List<DiscoveryCache.Document> documents) throws IOException {
+    int status = execute(get);
     debug("status=" + status);
     dumpHeaders(get.getResponseHeaders());
+    if (documents != null) {
+      String url = get.getURI().toString();
+      // the HTML pass refetches the page the Yadis pass already fetched
+      for (Iterator<DiscoveryCache.Document> it = documents.iterator();
+        it.hasNext();) {
+        if (it.next().url.equals(url)) {
+          it.remove();
+        }
+      }
+      documents.add(DiscoveryCache.Document.fromResponse(url, get,
+        System.currentTimeMillis()));
+    }
     return (new BufferedReader(new InputStreamReader(get.getResponseBodyAsStream())));
   }
 
+  private int execute(GetMethod get) throws IOException {
+    return (transport == null ?
+      HttpTransport.getDefault() : transport).execute(get);
+  }
+
+  /** Applies the expiry an XRDS document states to the last fetch. */
+  private void recordContentExpires(List<DiscoveryCache.Document> documents,
+    XRDSDocument xrdsDocument) {
+    if (documents != null && !documents.isEmpty()) {
+      int last = documents.size() - 1;
+      documents.set(last,
+        documents.get(last).withContentExpires(xrdsDocument.getExpires()));
+    }
+  }
+
+  /**
+   * Uses the most preferred OpenID service of an XRDS document, or failing
+   * that its last service.
+   */
   private void handleXrdsDocument(ServerAndDelegate serverAndDelegate,
     XRDSDocument xrdsDocument) {
-    List<XRDSService> services = xrdsDocument.getServiceList();
-    for (XRDSService service : services) {
-      debug("service=" + service.getUri());
-      serverAndDelegate.setServer(service.getUri());
-      serverAndDelegate.setDelegate(service.getOpenIDDelegate());
+    List<XRDSService> services = xrdsDocument.getServicesByPriority();
+    XRDSService chosen = null;
+    for (int i = 0; chosen == null && i < SERVICE_TYPES.length; i++) {
+      for (XRDSService service : services) {
+        if (service.getUri() != null
+          && service.getType().contains(SERVICE_TYPES[i])) {
+          chosen = service;
+          break;
+        }
+      }
     }
+    if (chosen == null) {
+      List<XRDSService> list = xrdsDocument.getServiceList();
+      if (list.isEmpty()) {
+        return;
+      }
+      log.warn("XRDS document has no OpenID service");
+      chosen = list.get(list.size() - 1);
+    }
+    debug("service=" + chosen.getUri());
+    serverAndDelegate.setServer(chosen.getUri());
+    serverAndDelegate.setDelegate(chosen.getLocalID() != null ?
+      chosen.getLocalID() : chosen.getOpenIDDelegate());
   }
 
   private void dumpHeaders(Header[] responseHeaders) {
@@ -143,59 +339,36 @@ public class Discoverer {
     }
   }
 
-  private XRDSDocument fetchYadisDocument(String location)
-    throws IOException, ParserConfigurationException, SAXException {
+  private XRDSDocument fetchYadisDocument(String location,
+    List<DiscoveryCache.Document> documents) throws IOException {
     GetMethod get = new GetMethod(location);
-    httpGet(get);
-    XRDSDocument doc = buildXrdsDocument(get);
-    return doc;
-  }
-
-  private XRDSDocument buildXrdsDocument(GetMethod get)
-    throws ParserConfigurationException, SAXException, IOException {
-    XRDSDocument doc = new XRDSDocument();
-    DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory.newInstance();
-    DocumentBuilder docBuilder = docBuilderFactory.newDocumentBuilder();
-    Document document = docBuilder.parse(get.getResponseBodyAsStream());
-    get.releaseConnection();
-    NodeList list = document.getElementsByTagName("Service");
-    for (int i = 0; i < list.getLength(); i++) {
-      Node node = list.item(i);
-      //<Service priority="30" xmlns:openid="http://openid.net/xmlns/1.0">
-		  //  <Type>http://openid.net/signon/1.0</Type>
-		  //  <URI>http://www.livejournal.com/openid/server.bml</URI>
-		  //  <openid:Delegate>http://www.livejournal.com/users/frank/</openid:Delegate>
-	    //</Service>
-
-      debug(nodeToString(node));// the Node.toString() isn't showing what we want
-      NodeList childNodes = node.getChildNodes();
-      XRDSService service = new XRDSService();
-      Set<String> types = new LinkedHashSet<String>();
-      for (int j = 0; j < childNodes.getLength(); j++) {
-        //http://yadis.org/wiki/Yadis_1.0_(HTML)#7._The_Yadis_document    
-        Node node2 = childNodes.item(j);
-        if (! node2.getNodeName().equals("#text")) {
-          debug(node2.getNodeName() + ": " + node2.getTextContent());
-        }
-        if (node2.getNodeName().equalsIgnoreCase("URI")) {
-          service.setUri(node2.getTextContent());
-        } else if (node2.getNodeName().equalsIgnoreCase("openid:Delegate")) {
-          service.setOpenIDDelegate(node2.getTextContent());
-        } else if (node2.getNodeName().equalsIgnoreCase("type")) {
-          types.add(node2.getTextContent());
-          if (! "http://openid.net/signon/1.0".equalsIgnoreCase(node2.getTextContent())) {
-            log.warn("XRDS service type is NOT http://openid.net/signon/1.0");
-            // TODO: throw an exception? do I care?
-            //http://openid.net/srv/ax/1.0
-            //http://specs.openid.net/auth/2.0/server
-          }
-          service.setType(types);
-        }
-      }
-      doc.addService(service);
+    try {
+      httpGet(get, documents);
+      XRDSDocument doc = buildXrdsDocument(get);
+      recordContentExpires(documents, doc);
+      return doc;
+    } finally {
+      get.releaseConnection();
+    }
+  }
+
+  /**
+   * Parses the XRDS document in a response. The connection is aborted
+   * rather than drained if the document is too long or malformed.
+   */
+  private XRDSDocument buildXrdsDocument(GetMethod get) throws IOException {
+    long length = get.getResponseContentLength();
+    if (length > parser.getMaxBytes()) {
+      get.abort();
+      throw new IOException("XRDS document is longer than "
+        + parser.getMaxBytes() + " bytes");
+    }
+    try {
+      return parser.parse(get.getResponseBodyAsStream());
+    } catch (IOException e) {
+      get.abort();
+      throw e;
     }
-    debug(doc.toString());
-    return doc;
   }
 
   private String findLinkTag(String str, String rel, BufferedReader in)
@@ -232,22 +405,4 @@ public class Discoverer {
       log.debug(message);
     }
   }
-
-  private String nodeToString(Node inNode) {
-    StringBuilder sb = new StringBuilder();
-    sb.append("[Node: name=");
-    sb.append(inNode.getNodeName());
-    if (inNode.hasAttributes()) {
-      sb.append(", attributes={");
-      NamedNodeMap nnmap = inNode.getAttributes();
-      for (int i = 0; i < nnmap.getLength(); i++) {
-        sb.append (nnmap.item(i).getNodeName());
-        sb.append("=");
-        sb.append(nnmap.item(i).getNodeValue());
-        sb.append(" ");
-      }
-    }
-    sb.append("}]");
-    return sb.toString();
-  }
 }
@@ -0,0 +1,362 @@
+/*
+ * MODIFICATIONS to the original source have been made by
+ * Scott Douglass <scott@swdouglass.com>
+ *
+ * Copyright 2009 Scott Douglass <scott@swdouglass.com>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.swdouglass.joid.consumer;
+
+import com.swdouglass.joid.util.ExpiringCache;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.util.DateParseException;
+import org.apache.commons.httpclient.util.DateUtil;
+
+/**
+ * Discovery results by normalized identifier, kept for as long as the
+ * documents they were discovered from may be cached.
+ *
+ * The freshness of each document fetched during discovery follows its
+ * <code>Cache-Control</code> max-age, no-cache and no-store directives,
+ * its <code>Expires</code> header and, for XRDS documents, the XRD
+ * <code>Expires</code> element; a result is fresh for as long as all of its
+ * documents are. Documents that give no freshness information are assumed
+ * fresh for {@link #DEFAULT_TTL} seconds, and no result is kept fresh for
+ * longer than {@link #DEFAULT_MAX_TTL} seconds. Once stale, a result whose
+ * documents all carry an <code>ETag</code> or <code>Last-Modified</code>
+ * validator is revalidated with conditional requests instead of being
+ * discovered again.
+ */
+public class DiscoveryCache {
+
+  /** Default maximum number of cached identifiers. */
+  public static int DEFAULT_SIZE = 10000;
+  /** Default freshness, in seconds, of documents without caching headers. */
+  public static long DEFAULT_TTL = 600;
+  /** Default maximum freshness, in seconds, of any result. */
+  public static long DEFAULT_MAX_TTL = 86400;
+
+  private final ExpiringCache<String, Entry> entries;
+  private final long defaultTtl;
+  private final long maxTtl;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong revalidations = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Creates a cache with the default settings.
+   */
+  public DiscoveryCache() {
+    this(DEFAULT_SIZE, DEFAULT_TTL, DEFAULT_MAX_TTL);
+  }
+
+  /**
+   * Creates a cache.
+   *
+   * @param size the maximum number of cached identifiers.
+   * @param defaultTtl freshness in seconds of documents without caching
+   * headers.
+   * @param maxTtl maximum freshness in seconds of any result.
+   */
+  public DiscoveryCache(int size, long defaultTtl, long maxTtl) {
+    this.entries = new ExpiringCache<String, Entry>(size);
+    this.defaultTtl = defaultTtl * 1000;
+    this.maxTtl = maxTtl * 1000;
+  }
+
+  /**
+   * Returns the entry cached for an identifier, fresh or stale.
+   *
+   * @param identifier the normalized identifier.
+   * @param now the current time in milliseconds since the epoch.
+   * @return the entry, or null if there is none.
+   */
+  Entry get(String identifier, long now) {
+    return entries.get(identifier, now);
+  }
+
+  /**
+   * Caches the result of a discovery, unless its documents forbid it.
+   *
+   * @param identifier the normalized identifier.
+   * @param result the discovered server and delegate.
+   * @param documents the documents fetched while discovering.
+   * @param now the time the documents were fetched.
+   */
+  void put(String identifier, ServerAndDelegate result,
+    List<Document> documents, long now) {
+    boolean validated = !documents.isEmpty();
+    long freshUntil = now + maxTtl;
+    boolean specified = false;
+    for (Document d : documents) {
+      if (d.noStore) {
+        entries.remove(identifier);
+        return;
+      }
+      validated &= d.hasValidator();
+      if (d.freshUntil >= 0) {
+        freshUntil = Math.min(freshUntil, d.freshUntil);
+        specified = true;
+      }
+    }
+    if (!specified) {
+      freshUntil = Math.min(freshUntil, now + defaultTtl);
+    }
+    // stale results are kept only if they can be revalidated
+    long keepUntil = validated ? freshUntil + maxTtl : freshUntil;
+    if (keepUntil <= now) {
+      entries.remove(identifier);
+      return;
+    }
+    entries.put(identifier, new Entry(result, documents, freshUntil),
+      keepUntil);
+  }
+
+  /**
+   * Forgets the result cached for an identifier.
+   *
+   * @param identifier the normalized identifier.
+   */
+  public void invalidate(String identifier) {
+    entries.remove(identifier);
+  }
+
+  public void clear() {
+    entries.clear();
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  /** Returns the number of lookups answered by a fresh result. */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /** Returns the number of stale results confirmed by revalidation. */
+  public long getRevalidations() {
+    return revalidations.get();
+  }
+
+  /** Returns the number of lookups that needed a full discovery. */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  void hit() {
+    hits.incrementAndGet();
+  }
+
+  void revalidated() {
+    revalidations.incrementAndGet();
+  }
+
+  void missed() {
+    misses.incrementAndGet();
+  }
+
+  /**
+   * A cached discovery result.
+   */
+  static class Entry {
+
+    private final ServerAndDelegate result;
+    private final List<Document> documents;
+    private final long freshUntil;
+
+    Entry(ServerAndDelegate result, List<Document> documents,
+      long freshUntil) {
+      this.result = copy(result);
+      this.documents = Collections.unmodifiableList(
+        new ArrayList<Document>(documents));
+      this.freshUntil = freshUntil;
+    }
+
+    boolean isFresh(long now) {
+      return now < freshUntil;
+    }
+
+    /** Returns a copy of the result, which callers are free to modify. */
+    ServerAndDelegate getResult() {
+      return copy(result);
+    }
+
+    List<Document> getDocuments() {
+      return documents;
+    }
+
+    private static ServerAndDelegate copy(ServerAndDelegate s) {
+      ServerAndDelegate c = new ServerAndDelegate();
+      c.setServer(s.getServer());
+      c.setDelegate(s.getDelegate());
+      return c;
+    }
+  }
+
+  /**
+   * The caching metadata of one document fetched during discovery.
+   */
+  static class Document {
+
+    final String url;
+    final String etag;
+    final String lastModified;
+    /** Until when the document is fresh, or -1 if it does not say. */
+    final long freshUntil;
+    final boolean noStore;
+    /** The expiry stated in the document content, or -1 if none. */
+    final long contentExpires;
+
+    private Document(String url, String etag, String lastModified,
+      long freshUntil, boolean noStore, long contentExpires) {
+      this.url = url;
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.noStore = noStore;
+      this.contentExpires = contentExpires;
+      if (contentExpires >= 0) {
+        freshUntil = (freshUntil < 0 ?
+          contentExpires : Math.min(freshUntil, contentExpires));
+      }
+      this.freshUntil = freshUntil;
+    }
+
+    /**
+     * Reads the caching metadata of a response.
+     *
+     * @param url the requested URL.
+     * @param method the executed method.
+     * @param now the time the response was received.
+     * @return the document.
+     */
+    static Document fromResponse(String url, HttpMethod method, long now) {
+      return fromResponse(url, method, now, null, null, -1);
+    }
+
+    /**
+     * Returns this document with the content expiry of an XRDS document.
+     */
+    Document withContentExpires(Date expires) {
+      if (expires == null) {
+        return this;
+      }
+      return new Document(url, etag, lastModified, freshUntil, noStore,
+        expires.getTime());
+    }
+
+    /**
+     * Reads the caching metadata of a 304 response to a conditional
+     * request for this document, which still has the same content.
+     */
+    Document revalidate(HttpMethod method, long now) {
+      return fromResponse(url, method, now, etag, lastModified,
+        contentExpires);
+    }
+
+    boolean hasValidator() {
+      return etag != null || lastModified != null;
+    }
+
+    /** Makes a request conditional on this document having changed. */
+    void addConditions(HttpMethod method) {
+      if (etag != null) {
+        method.setRequestHeader("If-None-Match", etag);
+      }
+      if (lastModified != null) {
+        method.setRequestHeader("If-Modified-Since", lastModified);
+      }
+    }
+
+    private static Document fromResponse(String url, HttpMethod method,
+      long now, String etag, String lastModified, long contentExpires) {
+      boolean noStore = false;
+      boolean noCache = false;
+      long maxAge = -1;
+      for (Header h : method.getResponseHeaders("Cache-Control")) {
+        for (String directive : h.getValue().split(",")) {
+          directive = directive.trim().toLowerCase();
+          if (directive.equals("no-store")) {
+            noStore = true;
+          } else if (directive.startsWith("no-cache")) {
+            noCache = true;
+          } else if (directive.startsWith("max-age=")) {
+            try {
+              maxAge = Long.parseLong(directive.substring(8).trim());
+            } catch (NumberFormatException e) {
+              noCache = true;
+            }
+          }
+        }
+      }
+      Header pragma = method.getResponseHeader("Pragma");
+      if (pragma != null && pragma.getValue().toLowerCase().contains("no-cache")) {
+        noCache = true;
+      }
+
+      long freshUntil = -1;
+      if (noCache) {
+        freshUntil = now;
+      } else if (maxAge >= 0) {
+        long age = 0;
+        Header ageHeader = method.getResponseHeader("Age");
+        if (ageHeader != null) {
+          try {
+            age = Long.parseLong(ageHeader.getValue().trim());
+          } catch (NumberFormatException e) {
+            // ignore a malformed Age
+          }
+        }
+        freshUntil = now + Math.max(0, maxAge - age) * 1000;
+      } else {
+        Header expires = method.getResponseHeader("Expires");
+        if (expires != null) {
+          // relative to the server's clock, not ours; an invalid date
+          // means already expired
+          long date = parseDate(method.getResponseHeader("Date"), now);
+          long at = parseDate(expires, date);
+          freshUntil = (at == date ? now : now + Math.max(0, at - date));
+        }
+      }
+
+      Header h = method.getResponseHeader("ETag");
+      if (h != null) {
+        etag = h.getValue();
+      }
+      h = method.getResponseHeader("Last-Modified");
+      if (h != null) {
+        lastModified = h.getValue();
+      }
+      return new Document(url, etag, lastModified, freshUntil, noStore,
+        contentExpires);
+    }
+
+    private static long parseDate(Header h, long defaultValue) {
+      if (h == null) {
+        return defaultValue;
+      }
+      try {
+        return DateUtil.parseDate(h.getValue()).getTime();
+      } catch (DateParseException e) {
+        return defaultValue;
+      }
+    }
+  }
+}
@@ -36,9 +36,10 @@ import org.apache.commons.logging.Log;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
+import java.util.Collection;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
 
 /**
  * This is the main class for consumers to use.
@@ -60,41 +61,133 @@ import java.util.Properties;
 public class JoidConsumer {
 
   private static Log log = LogFactory.getLog(JoidConsumer.class);
-  private Map<String, Properties> propSingleton;
-  private Map<String, String> handleToIdServer;
-  private Discoverer discoverer = new Discoverer();
+  private AssociationCache associations = new AssociationCache();
+  private AssociationRefresher refresher;
+  private volatile Discoverer discoverer = new Discoverer();
 
   public JoidConsumer() {
     log.info("Constructor: JoidConsumer");
   }
 
-  private synchronized Properties getProps(String idserver) {
-    // TODO: just store the AssociationResponse instead of converting to props
-    if (propSingleton == null) {
-      propSingleton = new HashMap<String,Properties>();
-      handleToIdServer = new HashMap<String,String>();
+  /**
+   * Returns the current association with an OpenID server, associating
+   * first if there is none or it is about to expire.
+   *
+   * @param idserver server url
+   * @return the association.
+   * @throws OpenIdException if associating failed.
+   */
+  public ConsumerAssociation getAssociation(String idserver)
+  throws OpenIdException {
+    return associations.get(idserver, associator(idserver));
+  }
+
+  /**
+   * Starts renewing associations in the background before they expire,
+   * replacing any refresher started before.
+   *
+   * @param interval seconds between refreshes.
+   * @param warmup server urls to associate with straight away and keep
+   * associated with; may be null.
+   * @return the refresher, for its statistics.
+   */
+  public synchronized AssociationRefresher startRefresher(long interval,
+    Collection<String> warmup) {
+    stopRefresher();
+    refresher = new AssociationRefresher(this, warmup,
+      AssociationRefresher.DEFAULT_IDLE_TIME);
+    refresher.start(interval);
+    return refresher;
+  }
+
+  /**
+   * Stops the background refresher, if there is one.
+   */
+  public synchronized void stopRefresher() {
+    if (refresher != null) {
+      refresher.stop();
+      refresher = null;
     }
-    Properties props = propSingleton.get(idserver);
-    if (props == null) { // TODO: also check expires_in time to make sure it's still valid
-      try {
-        props = associate(idserver);
-        propSingleton.put(idserver, props);
-        handleToIdServer.put(props.getProperty("handle"), idserver);
-      } catch (Exception e) {
-        e.printStackTrace();
+  }
+
+  /**
+   * @return the running refresher, or null if none was started.
+   */
+  public synchronized AssociationRefresher getRefresher() {
+    return refresher;
+  }
+
+  AssociationCache getAssociations() {
+    return associations;
+  }
+
+  /**
+   * Returns the discoverer used to find the OpenID server of an identity.
+   *
+   * @return the discoverer.
+   */
+  public Discoverer getDiscoverer() {
+    return discoverer;
+  }
+
+  /**
+   * Sets the discoverer used to find the OpenID server of an identity, for
+   * example to configure its {@link DiscoveryCache}.
+   *
+   * @param discoverer the discoverer.
+   */
+  public void setDiscoverer(Discoverer discoverer) {
+    this.discoverer = discoverer;
+  }
+
+  /**
+   * Associates anew with a server without holding up logins to it; see
+   * {@link AssociationCache#renew}.
+   */
+  void renewAssociation(String idserver) throws OpenIdException {
+    associations.renew(idserver, associator(idserver));
+  }
+
+  private Callable<ConsumerAssociation> associator(final String idserver) {
+    return new Callable<ConsumerAssociation>() {
+
+      @Override
+      public ConsumerAssociation call() throws Exception {
+        return associateWith(idserver);
       }
-    }
-    return props;
+    };
   }
 
-  private Properties getPropsByHandle(String associationHandle)
-  throws OpenIdException {
-    String idServer = handleToIdServer.get(associationHandle);
-    log.info("got idserver for handle: " + associationHandle + " - " + idServer);
-    if (idServer == null) {
+  /**
+   * Returns the server to verify a response with directly: its op_endpoint,
+   * if this consumer has associated with that server, or else the server
+   * the handle was last known to belong to, even if the association has
+   * since expired.
+   */
+  private String getVerifyingServer(AuthenticationResponse response,
+    String lastKnownServer) throws OpenIdException {
+    String server = response.getUrlEndPoint();
+    if (server == null || !associations.isKnownServer(server)) {
+      server = lastKnownServer;
+    }
+    if (server == null) {
       throw new OpenIdException("handle for server not found!");
     }
-    return getProps(idServer);
+    debug("verifying with idserver: " + server);
+    return server;
+  }
+
+  /**
+   * Asks the server whether it signed the response (dumb mode).
+   */
+  private boolean checkAuthentication(AuthenticationResponse response,
+    String server) throws IOException, OpenIdException {
+    CheckAuthenticationRequest checkReq =
+      new CheckAuthenticationRequest(response.toMap(),
+        MessageFactory.CHECK_AUTHENTICATION_MODE);
+    CheckAuthenticationResponse response2 =
+      (CheckAuthenticationResponse) MessageFactory.send(checkReq, server);
+    return response2.isValid();
   }
 
   /**
@@ -105,22 +198,14 @@ public class JoidConsumer {
    * @throws java.io.IOException
    * @throws org.verisign.joid.OpenIdException
    *
+   * @deprecated use {@link #getAssociation(String)}, which reuses
+   * associations until they expire.
    */
+  @Deprecated
   public Properties associate(String idserver)
   throws IOException, OpenIdException {
     DiffieHellman dh = DiffieHellman.getDefault();
-    Crypto crypto = new Crypto();
-    crypto.setDiffieHellman(dh);
-
-    AssociationRequest ar = AssociationRequest.create(crypto);
-
-    log.info("[JoidConsumer] Attempting to associate with: " + idserver);
-    log.info("Request=" + ar);
-
-    Response response = MessageFactory.send(ar, idserver);
-    log.info("Response=" + response + "\n");
-
-    AssociationResponse asr = (AssociationResponse) response;
+    AssociationResponse asr = requestAssociation(idserver, dh);
 
     Properties props = new Properties();
     props.setProperty("idServer", idserver);
@@ -134,18 +219,33 @@ public class JoidConsumer {
 
     props.setProperty("_dest", idserver);
     props.setProperty("expiresIn", "" + asr.getExpiresIn());
-
-    /*
-    Crypto crypto = new Crypto();
-    dh = DiffieHellman.recreate(privateKey, p);
-    crypto.setDiffieHellman(dh);
-    byte[] clearKey	= crypto.decryptSecret(asr.getDhServerPublic(),
-    asr.getEncryptedMacKey());
-    System.out.println("Clear key: "+Crypto.convertToString(clearKey));
-     */
     return props;
   }
 
+  /**
+   * Associates with a server and decrypts the MAC key straight away.
+   */
+  private ConsumerAssociation associateWith(String idserver)
+  throws IOException, OpenIdException {
+    DiffieHellman dh = DiffieHellman.getDefault();
+    long now = System.currentTimeMillis();
+    AssociationResponse asr = requestAssociation(idserver, dh);
+    return new ConsumerAssociation(idserver, asr, dh, now);
+  }
+
+  private AssociationResponse requestAssociation(String idserver,
+    DiffieHellman dh) throws IOException, OpenIdException {
+    AssociationRequest ar = AssociationRequest.create(dh);
+
+    log.info("[JoidConsumer] Attempting to associate with: " + idserver);
+    log.info("Request=" + ar);
+
+    Response response = MessageFactory.send(ar, idserver);
+    log.info("Response=" + response + "\n");
+
+    return (AssociationResponse) response;
+  }
+
   /**
    * <p>
    * This method is used by a relying party to create the url to redirect a
@@ -174,8 +274,7 @@ public class JoidConsumer {
       throw new OpenIdException("Could not get OpenId server from identifier.", e);
     }
 
-    Properties p = getProps(idserver.getServer());
-    String handle = p.getProperty("handle");
+    String handle = getAssociation(idserver.getServer()).getHandle();
 
     // TODO: use delegate here, replace identity?
 
@@ -202,47 +301,50 @@ public class JoidConsumer {
     debug("request map in authenticate: " + map);
     AuthenticationResponse response = new AuthenticationResponse(map);
     // TODO: store nonce's to ensure we never accept the same value again - see sec 11.3 of spec 2.0
-    Properties props;
+    ConsumerAssociation association;
     if (response.getInvalidateHandle() != null) {
       // then we have to send a authentication_request (dumb mode) to verify the signature
-      CheckAuthenticationRequest checkReq =
-        new CheckAuthenticationRequest(response.toMap(),
-          MessageFactory.CHECK_AUTHENTICATION_MODE);
-      props = getPropsByHandle(response.getInvalidateHandle());
-      CheckAuthenticationResponse response2 =
-        (CheckAuthenticationResponse) MessageFactory.send(checkReq, props.getProperty("idServer"));
+      String server = getVerifyingServer(response,
+        associations.findServerByHandle(response.getInvalidateHandle()));
+      boolean valid = checkAuthentication(response, server);
       // This doesn't actually work, because for a check authentication response, the only
       // field returned is openid.is_valid!
       /*if (! response.getInvalidateHandle().equals(response2.getInvalidateHandle())) {
         throw new AuthenticationException("The invalidate_handles do not match, identity denied: "
           + response.getInvalidateHandle() + " != " + response2.getInvalidateHandle());
       }*/
-      removeInvalidHandle(response.getInvalidateHandle());
-      if (response2.isValid()) {
+      associations.invalidate(response.getInvalidateHandle());
+      AssociationRefresher r = getRefresher();
+      if (r != null) {
+        r.renewSoon(server);
+      }
+      if (valid) {
         // then this is a valid request, lets send it back
         return new AuthenticationResult(response.getIdentity(), response);
       } else {
         throw new AuthenticationException("Signature invalid, identity denied.");
       }
     } else {
-      // normal properties
-      props = getPropsByHandle(response.getAssociationHandle());
+      // normal properties; look the server up before an expired
+      // association is dropped
+      String server = associations.findServerByHandle(
+        response.getAssociationHandle());
+      association = associations.findByHandle(response.getAssociationHandle());
+      if (association == null) {
+        // expired, or used once for lack of a lifetime
+        if (checkAuthentication(response, getVerifyingServer(response,
+          server))) {
+          return new AuthenticationResult(response.getIdentity(), response);
+        }
+        throw new AuthenticationException("Signature invalid, identity denied.");
+      }
+      debug("got idserver for handle: " + association.getHandle() + " - "
+        + association.getIdServer());
 
       // TODO: before returning a valid response, ensure return_to is a suburl of trust_root
 
-      BigInteger privKey = Crypto.convertToBigIntegerFromString(props.getProperty("privateKey"));
-      BigInteger modulus = Crypto.convertToBigIntegerFromString(props.getProperty("modulus"));
-      BigInteger serverPublic = Crypto.convertToBigIntegerFromString(props.getProperty("publicKey"));
-      byte[] encryptedKey = Crypto.convertToBytes(props.getProperty("encryptedKey"));
-
-      /* String sig = response.sign(response.getAssociationType(),
-      a.getMacKey(), response.getSignedList());
-      isValid = sig.equals(response.getSignature());
-       */
-      DiffieHellman dh = DiffieHellman.recreate(privKey, modulus);
-      Crypto crypto = new Crypto();
-      crypto.setDiffieHellman(dh);
-      byte[] clearKey = crypto.decryptSecret(serverPublic, encryptedKey);
+      // decrypted when the association was made
+      byte[] clearKey = association.getMacKey();
 
       String signature = response.getSignature();
       debug("Server's signature: " + signature);
@@ -261,19 +363,6 @@ public class JoidConsumer {
 
   }
 
-  /**
-   * If openid.invalidate_handle was received, this will remove it from our
-   * cache so it won't be used again.
-   *
-   * @param invalidateHandle
-   */
-  private void removeInvalidHandle(String invalidateHandle) {
-    String idServer = handleToIdServer.remove(invalidateHandle);
-    if (idServer != null) {
-      propSingleton.remove(idServer);
-    }
-  }
-
   private void debug(String message) {
     if (log.isDebugEnabled()) {
       log.debug(message);
@@ -22,6 +22,7 @@ package com.swdouglass.joid.consumer;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import com.swdouglass.joid.OpenIdRuntimeException;
+import com.swdouglass.joid.util.HttpTransport;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -48,6 +49,18 @@ public class OpenIdFilter implements Filter {
   private static Log log = LogFactory.getLog(OpenIdFilter.class);
   private static JoidConsumer joid = new JoidConsumer();
   public static final String OPENID_ATTRIBUTE = "openid.identity";
+  private static final String INIT_REFRESH_INTERVAL = "associationRefreshInterval";
+  private static final String INIT_WARMUP = "associationWarmup";
+  private static final String INIT_HTTP_MAX_PER_HOST = "httpMaxConnectionsPerHost";
+  private static final String INIT_HTTP_MAX_TOTAL = "httpMaxConnections";
+  private static final String INIT_HTTP_CONNECT_TIMEOUT = "httpConnectTimeout";
+  private static final String INIT_HTTP_READ_TIMEOUT = "httpReadTimeout";
+  private static final String INIT_HTTP_IDLE_TIMEOUT = "httpIdleTimeout";
+  private static final String INIT_HTTP_PROXY = "httpProxy";
+  private static final String INIT_DISCOVERY_CACHE_SIZE = "discoveryCacheSize";
+  private static final String INIT_DISCOVERY_CACHE_TTL = "discoveryCacheTtl";
+  private static final String INIT_DISCOVERY_CACHE_MAX_TTL = "discoveryCacheMaxTtl";
+  private static final String INIT_XRDS_MAX_BYTES = "xrdsMaxBytes";
   boolean saveIdentityUrlAsCookie = false;
   private String cookieDomain;
   private List<String> ignorePaths = new ArrayList<String>();
@@ -75,6 +88,51 @@ public class OpenIdFilter implements Filter {
         this.ignorePaths.add(path);
       }
     }
+    HttpTransport transport = new HttpTransport(
+      getInt(filterConfig, INIT_HTTP_MAX_PER_HOST, HttpTransport.DEFAULT_MAX_PER_HOST),
+      getInt(filterConfig, INIT_HTTP_MAX_TOTAL, HttpTransport.DEFAULT_MAX_TOTAL),
+      getInt(filterConfig, INIT_HTTP_CONNECT_TIMEOUT, HttpTransport.DEFAULT_CONNECT_TIMEOUT),
+      getInt(filterConfig, INIT_HTTP_READ_TIMEOUT, HttpTransport.DEFAULT_READ_TIMEOUT),
+      getInt(filterConfig, INIT_HTTP_IDLE_TIMEOUT, (int) HttpTransport.DEFAULT_IDLE_TIMEOUT));
+    String proxy = filterConfig.getInitParameter(INIT_HTTP_PROXY);
+    if (proxy != null && proxy.trim().length() > 0) {
+      int colon = proxy.lastIndexOf(':');
+      if (colon > 0) {
+        transport.setProxy(proxy.substring(0, colon).trim(),
+          Integer.parseInt(proxy.substring(colon + 1).trim()));
+      } else {
+        transport.setProxy(proxy.trim(), 80);
+      }
+      log.info("sending OpenID requests through proxy " + proxy);
+    }
+    HttpTransport.setDefault(transport);
+    int discoveryCacheSize = getInt(filterConfig, INIT_DISCOVERY_CACHE_SIZE,
+      DiscoveryCache.DEFAULT_SIZE);
+    joid.setDiscoverer(new Discoverer(null, discoveryCacheSize <= 0 ? null :
+      new DiscoveryCache(discoveryCacheSize,
+        getInt(filterConfig, INIT_DISCOVERY_CACHE_TTL,
+          (int) DiscoveryCache.DEFAULT_TTL),
+        getInt(filterConfig, INIT_DISCOVERY_CACHE_MAX_TTL,
+          (int) DiscoveryCache.DEFAULT_MAX_TTL)),
+      new XRDSParser(getInt(filterConfig, INIT_XRDS_MAX_BYTES,
+        XRDSParser.DEFAULT_MAX_BYTES))));
+    long refreshInterval = AssociationRefresher.DEFAULT_INTERVAL;
+    String refreshString = filterConfig.getInitParameter(INIT_REFRESH_INTERVAL);
+    if (refreshString != null) {
+      refreshInterval = Long.parseLong(refreshString.trim());
+    }
+    if (refreshInterval > 0) {
+      List<String> warmup = new ArrayList<String>();
+      String _warmup = filterConfig.getInitParameter(INIT_WARMUP);
+      if (_warmup != null) {
+        for (String server : _warmup.split(",")) {
+          if (server.trim().length() > 0) {
+            warmup.add(server.trim());
+          }
+        }
+      }
+      joid.startRefresher(refreshInterval, warmup);
+    }
     configuredProperly = true;
     log.debug("end init OpenIdFilter");
   }
@@ -158,8 +216,16 @@ public class OpenIdFilter implements Filter {
     return ret;
   }
 
+  private static int getInt(FilterConfig filterConfig, String name,
+    int defaultValue) {
+    String value = filterConfig.getInitParameter(name);
+    return (value == null ? defaultValue : Integer.parseInt(value.trim()));
+  }
+
   @Override
   public void destroy() {
+    joid.stopRefresher();
+    HttpTransport.shutdownDefault();
   }
 
   public static JoidConsumer joid() {
@@ -20,6 +20,9 @@
 
 package com.swdouglass.joid.consumer;
 
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.List;
 import java.util.ArrayList;
 
@@ -27,6 +30,7 @@ public class XRDSDocument implements java.io.Serializable {
   private static final long serialVersionUID = -7561684020842022190L;
 
   private List<XRDSService> serviceList = new ArrayList<XRDSService>();
+  private Date expires;
 
   public List<XRDSService> getServiceList() {
     return serviceList;
@@ -40,6 +44,40 @@ public class XRDSDocument implements java.io.Serializable {
     serviceList.add(service);
   }
 
+  /**
+   * Returns the services in the order their priorities prefer them,
+   * services with equal priorities staying in document order.
+   *
+   * @return a sorted copy of the service list.
+   */
+  public List<XRDSService> getServicesByPriority() {
+    List<XRDSService> sorted = new ArrayList<XRDSService>(serviceList);
+    Collections.sort(sorted, new Comparator<XRDSService>() {
+
+      public int compare(XRDSService a, XRDSService b) {
+        if (XRDSService.precedes(a.getPriority(), b.getPriority())) {
+          return -1;
+        }
+        return XRDSService.precedes(b.getPriority(), a.getPriority()) ? 1 : 0;
+      }
+    });
+    return sorted;
+  }
+
+  /**
+   * Returns the time the XRD <code>Expires</code> element says this
+   * document expires at.
+   *
+   * @return the expiry, or null if the document does not state one.
+   */
+  public Date getExpires() {
+    return expires;
+  }
+
+  public void setExpires(Date expires) {
+    this.expires = expires;
+  }
+
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder("[Services: \n");
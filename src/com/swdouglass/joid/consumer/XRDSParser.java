@@ -0,0 +1,295 @@
+/*
+ * MODIFICATIONS to the original source have been made by
+ * Scott Douglass <scott@swdouglass.com>
+ *
+ * Copyright 2009 Scott Douglass <scott@swdouglass.com>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.swdouglass.joid.consumer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Streaming parser for Yadis XRDS documents.
+ *
+ * Only the elements discovery needs are kept: the <code>Expires</code>,
+ * <code>Service</code>, <code>Type</code>, <code>URI</code>,
+ * <code>LocalID</code> and <code>openid:Delegate</code> elements of the
+ * final XRD, with their priorities. Elements are matched by local name,
+ * whatever their namespace. Parsing stops at the end of the root element,
+ * documents longer than {@link #DEFAULT_MAX_BYTES} bytes are rejected, and
+ * DTDs and external entities are not processed.
+ */
+public class XRDSParser {
+
+  private final static Log log = LogFactory.getLog(XRDSParser.class);
+  /** Default maximum size, in bytes, of an XRDS document. */
+  public static int DEFAULT_MAX_BYTES = 64 * 1024;
+
+  /** XMLInputFactory is not guaranteed to be thread safe. */
+  private static final ThreadLocal<XMLInputFactory> factories =
+    new ThreadLocal<XMLInputFactory>() {
+
+      @Override
+      protected XMLInputFactory initialValue() {
+        XMLInputFactory f = XMLInputFactory.newInstance();
+        f.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        f.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        f.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        f.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+          Boolean.FALSE);
+        return f;
+      }
+    };
+
+  /**
+   * Nor is DatatypeFactory, whose lookup is slow; null if there is no
+   * implementation.
+   */
+  private static final ThreadLocal<DatatypeFactory> datatypeFactories =
+    new ThreadLocal<DatatypeFactory>() {
+
+      @Override
+      protected DatatypeFactory initialValue() {
+        try {
+          return DatatypeFactory.newInstance();
+        } catch (DatatypeConfigurationException e) {
+          log.warn("Cannot parse XRD Expires", e);
+          return null;
+        }
+      }
+    };
+
+  private final int maxBytes;
+
+  public XRDSParser() {
+    this(DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * Creates a parser.
+   *
+   * @param maxBytes the maximum size in bytes of a document.
+   */
+  public XRDSParser(int maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  public int getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Parses an XRDS document. The stream is not closed.
+   *
+   * @param in the document.
+   * @return the services and expiry of the final XRD.
+   * @throws IOException if the document cannot be read, is not well
+   * formed, or is longer than the limit.
+   */
+  public XRDSDocument parse(InputStream in) throws IOException {
+    XMLStreamReader r;
+    try {
+      r = factories.get().createXMLStreamReader(new LimitedInputStream(in,
+        maxBytes));
+    } catch (XMLStreamException e) {
+      throw new IOException("Could not read XRDS document: " + e.getMessage());
+    }
+    try {
+      return parse(r);
+    } catch (XMLStreamException e) {
+      if (e.getNestedException() instanceof IOException) {
+        throw (IOException) e.getNestedException();
+      }
+      throw new IOException("Malformed XRDS document: " + e.getMessage());
+    } finally {
+      try {
+        r.close();
+      } catch (XMLStreamException e) {
+        // nothing left to release
+      }
+    }
+  }
+
+  private XRDSDocument parse(XMLStreamReader r) throws XMLStreamException {
+    XRDSDocument doc = new XRDSDocument();
+    List<XRDSService> services = new ArrayList<XRDSService>();
+    Date expires = null;
+    XRDSService service = null;
+    Set<String> types = null;
+    Integer uriPriority = null;
+    Integer localIdPriority = null;
+    int depth = 0;
+    while (r.hasNext()) {
+      int event = r.next();
+      if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+        String name = r.getLocalName();
+        if (name.equals("Service") && service != null) {
+          services.add(service);
+          service = null;
+        }
+        if (depth == 0) {
+          // the end of the root element; ignore whatever follows
+          break;
+        }
+        continue;
+      }
+      if (event != XMLStreamConstants.START_ELEMENT) {
+        continue;
+      }
+      depth++;
+      String name = r.getLocalName();
+      if (name.equals("XRD")) {
+        // only the final XRD describes the identifier
+        services = new ArrayList<XRDSService>();
+        expires = null;
+      } else if (name.equals("Expires") && service == null) {
+        expires = parseDateTime(r.getElementText());
+        depth--;
+      } else if (name.equals("Service")) {
+        service = new XRDSService();
+        service.setPriority(parsePriority(r));
+        types = new LinkedHashSet<String>();
+        service.setType(types);
+        uriPriority = null;
+        localIdPriority = null;
+      } else if (service != null) {
+        if (name.equals("Type")) {
+          types.add(r.getElementText().trim());
+          depth--;
+        } else if (name.equals("URI")) {
+          Integer p = parsePriority(r);
+          String uri = r.getElementText().trim();
+          depth--;
+          if (service.getUri() == null || XRDSService.precedes(p, uriPriority)) {
+            service.setUri(uri);
+            uriPriority = p;
+          }
+        } else if (name.equals("LocalID")) {
+          Integer p = parsePriority(r);
+          String localId = r.getElementText().trim();
+          depth--;
+          if (service.getLocalID() == null
+            || XRDSService.precedes(p, localIdPriority)) {
+            service.setLocalID(localId);
+            localIdPriority = p;
+          }
+        } else if (name.equals("Delegate")) {
+          service.setOpenIDDelegate(r.getElementText().trim());
+          depth--;
+        }
+      }
+    }
+    for (XRDSService s : services) {
+      doc.addService(s);
+    }
+    doc.setExpires(expires);
+    if (log.isDebugEnabled()) {
+      log.debug(doc.toString());
+    }
+    return doc;
+  }
+
+  /** Returns the priority attribute, or null if it is absent or invalid. */
+  private static Integer parsePriority(XMLStreamReader r) {
+    String value = r.getAttributeValue(null, "priority");
+    if (value == null) {
+      return null;
+    }
+    try {
+      int p = Integer.parseInt(value.trim());
+      return p < 0 ? null : Integer.valueOf(p);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /** Parses an xs:dateTime, returning null if it is not one. */
+  private static Date parseDateTime(String s) {
+    DatatypeFactory f = datatypeFactories.get();
+    if (f == null) {
+      return null;
+    }
+    try {
+      return f.newXMLGregorianCalendar(s.trim()).toGregorianCalendar()
+        .getTime();
+    } catch (IllegalArgumentException e) {
+      log.warn("Ignoring malformed XRD Expires: " + s);
+      return null;
+    }
+  }
+
+  /**
+   * Fails once more than a given number of bytes have been read.
+   */
+  private static class LimitedInputStream extends FilterInputStream {
+
+    private final int limit;
+    private int count;
+
+    LimitedInputStream(InputStream in, int limit) {
+      super(in);
+      this.limit = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        count(1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        count(n);
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count((int) skipped);
+      return skipped;
+    }
+
+    private void count(int n) throws IOException {
+      count += n;
+      if (count > limit) {
+        throw new IOException("XRDS document is longer than " + limit
+          + " bytes");
+      }
+    }
+  }
+}
@@ -27,6 +27,8 @@ public class XRDSService implements java.io.Serializable {
 
   private String uri;
   private String openIDDelegate;
+  private String localID;
+  private Integer priority;
   private Set<String> type;
 
 
@@ -52,6 +54,45 @@ public class XRDSService implements java.io.Serializable {
     this.openIDDelegate = openIDDelegate;
   }
 
+  /**
+   * @return the OpenID 2.0 <code>LocalID</code>, or null
+   */
+  public String getLocalID() {
+    return localID;
+  }
+
+  /**
+   * @param localID the LocalID to set
+   */
+  public void setLocalID(String localID) {
+    this.localID = localID;
+  }
+
+  /**
+   * @return the priority, or null if the service has none
+   */
+  public Integer getPriority() {
+    return priority;
+  }
+
+  /**
+   * @param priority the priority to set
+   */
+  public void setPriority(Integer priority) {
+    this.priority = priority;
+  }
+
+  /**
+   * Returns whether an XRD priority is preferred to another. Lower values
+   * are preferred, and no priority comes after every value.
+   */
+  static boolean precedes(Integer a, Integer b) {
+    if (a == null) {
+      return false;
+    }
+    return b == null || a.intValue() < b.intValue();
+  }
+
   /**
    * @return the type
    */
@@ -74,10 +115,16 @@ public class XRDSService implements java.io.Serializable {
     sb.append(getUri());
     sb.append(", openid:Delegate=");
     sb.append(getOpenIDDelegate());
+    sb.append(", LocalID=");
+    sb.append(getLocalID());
+    sb.append(", priority=");
+    sb.append(getPriority());
     sb.append(", Types={ ");
-    for (String t: getType()) {
-      sb.append(t);
-      sb.append(" ");
+    if (getType() != null) {
+      for (String t: getType()) {
+        sb.append(t);
+        sb.append(" ");
+      }
     }
     sb.append("}]");
     return sb.toString();
@@ -46,10 +46,8 @@ public class Associate {
   public Associate(String destination, String fileName)
           throws IOException, OpenIdException {
     DiffieHellman dh = DiffieHellman.getDefault();
-    Crypto crypto = new Crypto();
-    crypto.setDiffieHellman(dh);
 
-    AssociationRequest ar = AssociationRequest.create(crypto);
+    AssociationRequest ar = AssociationRequest.create(dh);
 
     Response response = MessageFactory.send(ar, destination);
     System.out.println("Response=" + response + "\n");
@@ -77,8 +75,7 @@ public class Associate {
   /*
   Crypto crypto = new Crypto();
   dh = DiffieHellman.recreate(privateKey, p);
-  crypto.setDiffieHellman(dh);
-  byte[] clearKey	= crypto.decryptSecret(asr.getDhServerPublic(),
+  byte[] clearKey	= crypto.decryptSecret(dh, asr.getDhServerPublic(),
   asr.getEncryptedMacKey());
   System.out.println("Clear key: "+Crypto.convertToString(clearKey));
    */
@@ -15,7 +15,10 @@
  */
 package com.swdouglass.joid.server;
 
+import com.swdouglass.joid.util.DirContextPool;
 import com.swdouglass.joid.util.DirectoryUtil;
+import com.swdouglass.joid.util.ExpiringCache;
+import com.swdouglass.joid.util.UrlUtils;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Set;
@@ -23,9 +26,9 @@ import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
-import javax.naming.directory.InitialDirContext;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapContext;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -39,71 +42,145 @@ public class DirectoryUserManagerImpl extends MemoryUserManagerImpl implements
 
   private static final Log log = LogFactory.getLog(
     DirectoryUserManagerImpl.class);
-  private InitialDirContext initialCtx;
+  private final DirContextPool pool = DirectoryUtil.getServicePool();
   private static final String PASSWORD_ATTRIBUTE_PROP = "joid.directory.attribute.password";
   private static final String PASSWORD_ATTRIBUTE_PROP_DEFAULT = "userPassword";
   private static final String OPENID_OBJECTCLASS_PROP = "joid.directory.objectClass.openid";
   private static final String OPENID_OBJECTCLASS_PROP_DEFAULT = "labeledURI";
+  private static final String USER_ATTRIBUTE_PROP = "joid.directory.attribute.user";
+  private static final String USER_ATTRIBUTE_PROP_DEFAULT = "uid";
+  private static final String CACHE_SIZE_PROP = "joid.directory.user.cache.size";
+  private static final String CACHE_TTL_PROP = "joid.directory.user.cache.ttl";
+  private static final String CACHE_NEGATIVE_TTL_PROP = "joid.directory.user.cache.negativeTtl";
+  /** The number of users cached, if not configured. */
+  public static int DEFAULT_CACHE_SIZE = 10000;
+  /** Seconds a user found in the directory is cached, if not configured. */
+  public static long DEFAULT_CACHE_TTL = 300;
+  /** Seconds an unknown username is remembered, if not configured. */
+  public static long DEFAULT_CACHE_NEGATIVE_TTL = 60;
+  private final ExpiringCache<String, User> cache =
+    new ExpiringCache<String, User>(DirectoryUtil.getIntProperty(
+    CACHE_SIZE_PROP, DEFAULT_CACHE_SIZE));
+  // normalized identifier to username, for the users cached
+  private final ExpiringCache<String, String> identifiers =
+    new ExpiringCache<String, String>(DirectoryUtil.getIntProperty(
+    CACHE_SIZE_PROP, DEFAULT_CACHE_SIZE));
+  private final long ttl = DirectoryUtil.getLongProperty(CACHE_TTL_PROP,
+    DEFAULT_CACHE_TTL) * 1000;
+  private final long negativeTtl = DirectoryUtil.getLongProperty(
+    CACHE_NEGATIVE_TTL_PROP, DEFAULT_CACHE_NEGATIVE_TTL) * 1000;
 
-  public DirectoryUserManagerImpl() {
+  /**
+   * Looks the user up in memory first, then in the directory. Users found
+   * are cached for the configured time, and usernames not found for a
+   * shorter time, so that a directory change shows up after at most that
+   * long. See {@link #invalidate(String)}.
+   */
+  @Override
+  public User getUser(String username) {
+    long now = System.currentTimeMillis();
+    User user = cache.get(username, now);
+    if (user != null || cache.containsKey(username, now)) {
+      return user;
+    }
     try {
-      initialCtx = DirectoryUtil.getInitialDirContext();
+      user = findUser(username);
+      cache.put(username, user, now + (user != null ? ttl : negativeTtl));
+      if (user != null && user.getOpenIDs() != null) {
+        for (String id : user.getOpenIDs()) {
+          identifiers.put(id, username, now + ttl);
+        }
+      }
     } catch (NamingException ex) {
-      log.warn("Could not create initial diretory context! " + ex);
-      ex.printStackTrace();
+      log.warn("Error in finding the userame=" + username, ex);
     }
+    return user;
   }
 
-  @Override
-  public User getUser(String username) {
+  /**
+   * Drops the cached user, or the cached absence of one, so that the next
+   * lookup goes to the directory.
+   */
+  public void invalidate(String username) {
+    User user = cache.remove(username);
+    if (user != null && user.getOpenIDs() != null) {
+      for (String id : user.getOpenIDs()) {
+        identifiers.remove(id);
+      }
+    }
+  }
+
+  /**
+   * Drops all cached users and identifiers.
+   */
+  public void invalidateAll() {
+    cache.clear();
+    identifiers.clear();
+  }
+
+  /**
+   * Searches the directory for the user.
+   *
+   * @return the user, or null if there is none by that name.
+   */
+  protected User findUser(String username) throws NamingException {
     User user = null;
-    try {
-      Attributes attrs = findAttributes(username, initialCtx);
-      if (attrs != null) {
-        if (log.isDebugEnabled()) {
-          NamingEnumeration ne = attrs.getAll();
-          while (ne.hasMore()) {
-            log.debug(ne.next());
-          }
+    Attributes attrs = findAttributes(username);
+    if (attrs != null) {
+      if (log.isDebugEnabled()) {
+        NamingEnumeration<? extends Attribute> ne = attrs.getAll();
+        while (ne.hasMore()) {
+          log.debug(ne.next());
         }
-        // create the user, password very likely to be in binary form...
-        user = new User(username, DirectoryUtil.getAttributeValue(attrs,
-          PASSWORD_ATTRIBUTE_PROP, PASSWORD_ATTRIBUTE_PROP_DEFAULT));
+      }
+      // create the user, password very likely to be in binary form...
+      user = new User(username, DirectoryUtil.getAttributeValue(attrs,
+        PASSWORD_ATTRIBUTE_PROP, PASSWORD_ATTRIBUTE_PROP_DEFAULT));
 
-        // set the list of OpenIDs
-        Attribute openIDattr = attrs.get(DirectoryUtil.getProperty(
-          OPENID_OBJECTCLASS_PROP,OPENID_OBJECTCLASS_PROP_DEFAULT));
+      // set the list of OpenIDs
+      Attribute openIDattr = attrs.get(DirectoryUtil.getProperty(
+        OPENID_OBJECTCLASS_PROP,OPENID_OBJECTCLASS_PROP_DEFAULT));
+      Set<String> openIDs = new HashSet<String>();
+      if (openIDattr != null) {
         Enumeration e = openIDattr.getAll();
-        Set<String> openIDs = new HashSet<String>();
         while (e.hasMoreElements()) {
-          openIDs.add((String) e.nextElement());
+          openIDs.add(UrlUtils.normalizeIdentifier((String) e.nextElement()));
         }
-        user.setOpenIDs(openIDs);
       }
-    } catch (NamingException ex) {
-      log.warn("Error in finding the userame=" + username, ex);
+      user.setOpenIDs(openIDs);
     }
     return user;
   }
 
-  private Attributes findAttributes(String inUsername,
-    InitialDirContext ctx) throws NamingException {
+  private Attributes findAttributes(final String inUsername)
+    throws NamingException {
+    return pool.execute(new DirContextPool.Work<Attributes>() {
 
-    SearchControls ctls = new SearchControls();
-    ctls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+      @Override
+      public Attributes run(LdapContext ctx) throws NamingException {
+        SearchControls ctls = new SearchControls();
+        ctls.setSearchScope(SearchControls.SUBTREE_SCOPE);
 
-    // perform the search
-    NamingEnumeration results = ctx.search("", "(uid={0})",
-      new Object[]{inUsername}, ctls);
+        // perform the search
+        NamingEnumeration<SearchResult> results = ctx.search("",
+          "(uid={0})", new Object[]{inUsername}, ctls);
 
-    Attributes outAttrs = null;
-    if (results.hasMore()) {
-      log.info("Found username \"" + inUsername + "\" in directory");
-      outAttrs = ((SearchResult) results.next()).getAttributes();
-    } else {
-      log.info("Could NOT find username \"" + inUsername + "\" in directory");
-    }
-    return outAttrs;
+        Attributes outAttrs = null;
+        try {
+          if (results.hasMore()) {
+            log.info("Found username \"" + inUsername + "\" in directory");
+            outAttrs = results.next().getAttributes();
+          } else {
+            log.info("Could NOT find username \"" + inUsername
+              + "\" in directory");
+          }
+        } finally {
+          // free the connection for the next borrower
+          results.close();
+        }
+        return outAttrs;
+      }
+    });
   }
 
   @Override
@@ -113,15 +190,82 @@ public class DirectoryUserManagerImpl extends MemoryUserManagerImpl implements
 
   @Override
   public boolean login(String inUsername, String inPassword) {
-    return DirectoryUtil.login(inUsername, inPassword);
+    boolean auth = DirectoryUtil.login(inUsername, inPassword);
+    if (auth && cache.get(inUsername) == null) {
+      // may have been added to the directory since it was last looked up
+      invalidate(inUsername);
+    }
+    return auth;
   }
 
   @Override
   public boolean canClaim(User user, String claimedId) {
-    boolean result = false;
-    if (user.getOpenIDs().contains(claimedId)) {
-      result = true;
+    // the set holds normalized identifiers; see findUser
+    return user.getOpenIDs() != null && user.getOpenIDs().contains(
+      UrlUtils.normalizeIdentifier(claimedId));
+  }
+
+  /**
+   * Looks the identifier up among the users cached, then searches the
+   * directory for a user with it. Unknown identifiers are cached like
+   * unknown usernames.
+   */
+  @Override
+  public String findUsername(String claimedId) {
+    String id = UrlUtils.normalizeIdentifier(claimedId);
+    if (id == null) {
+      return null;
     }
-    return result;
+    long now = System.currentTimeMillis();
+    String username = identifiers.get(id, now);
+    if (username != null || identifiers.containsKey(id, now)) {
+      return username;
+    }
+    try {
+      username = findUsername(claimedId, id);
+      if (username == null || getUser(username) == null) {
+        identifiers.put(id, null, now + negativeTtl);
+        username = null;
+      }
+    } catch (NamingException ex) {
+      log.warn("Error in finding the identifier=" + claimedId, ex);
+    }
+    return username;
+  }
+
+  /**
+   * Searches the directory for the user with an identifier, as given or
+   * normalized.
+   *
+   * @return the username, or null if no user has the identifier.
+   */
+  protected String findUsername(final String claimedId, final String id)
+    throws NamingException {
+    final String openIDattr = DirectoryUtil.getProperty(
+      OPENID_OBJECTCLASS_PROP, OPENID_OBJECTCLASS_PROP_DEFAULT);
+    final String userAttr = DirectoryUtil.getProperty(USER_ATTRIBUTE_PROP,
+      USER_ATTRIBUTE_PROP_DEFAULT);
+    return pool.execute(new DirContextPool.Work<String>() {
+
+      @Override
+      public String run(LdapContext ctx) throws NamingException {
+        SearchControls ctls = new SearchControls();
+        ctls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        ctls.setReturningAttributes(new String[]{userAttr});
+        NamingEnumeration<SearchResult> results = ctx.search("", "(|("
+          + openIDattr + "={0})(" + openIDattr + "={1}))",
+          new Object[]{claimedId, id}, ctls);
+        try {
+          if (results.hasMore()) {
+            Attributes attrs = results.next().getAttributes();
+            return (attrs.get(userAttr) == null) ? null
+              : (String) attrs.get(userAttr).get();
+          }
+          return null;
+        } finally {
+          results.close();
+        }
+      }
+    });
   }
 }
@@ -64,6 +64,7 @@ public class HibernateUserManagerImpl extends MemoryUserManagerImpl implements U
     session.save(user);
     tx.commit();
     HibernateUtil.closeSession();
+    index(user);
   }
 
 }
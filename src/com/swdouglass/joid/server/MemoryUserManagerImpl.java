@@ -19,17 +19,29 @@
  */
 package com.swdouglass.joid.server;
 
-import java.util.HashMap;
+import com.swdouglass.joid.util.UrlUtils;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
- * Implements {@link UserManager} using {@link HashMap}.
+ * Implements {@link UserManager} using {@link ConcurrentHashMap}.
  *
+ * A user may claim the identifiers in its OpenID set, and any identifier
+ * whose last path segment is its username.
  */
 public class MemoryUserManagerImpl implements UserManager {
 
-  private Map<String, User> userMap = new HashMap<String, User>();
-  private Map<String, String> rememberMeMap = new HashMap<String, String>();
+  private Map<String, User> userMap = new ConcurrentHashMap<String, User>();
+  private Map<String, String> rememberMeMap =
+    new ConcurrentHashMap<String, String>();
+  // normalized identifier to username, and back
+  private ConcurrentMap<String, String> identifierIndex =
+    new ConcurrentHashMap<String, String>();
+  private Map<String, Set<String>> userIdentifiers =
+    new ConcurrentHashMap<String, Set<String>>();
 
   @Override
   public User getUser(String username) {
@@ -39,6 +51,34 @@ public class MemoryUserManagerImpl implements UserManager {
   @Override
   public void save(User user) {
     userMap.put(user.getUsername(), user);
+    index(user);
+  }
+
+  /**
+   * Replaces the user's entries in the identifier index with its current
+   * OpenIDs, so that they are normalized once here rather than on every
+   * claim check.
+   */
+  protected void index(User user) {
+    Set<String> ids = new HashSet<String>();
+    if (user.getOpenIDs() != null) {
+      for (String openID : user.getOpenIDs()) {
+        String id = UrlUtils.normalizeIdentifier(openID);
+        if (id != null) {
+          ids.add(id);
+          identifierIndex.put(id, user.getUsername());
+        }
+      }
+    }
+    Set<String> previous = userIdentifiers.put(user.getUsername(), ids);
+    if (previous != null) {
+      for (String id : previous) {
+        if (!ids.contains(id)) {
+          // unless another user has claimed it since
+          identifierIndex.remove(id, user.getUsername());
+        }
+      }
+    }
   }
 
   @Override
@@ -61,21 +101,30 @@ public class MemoryUserManagerImpl implements UserManager {
     return result;
   }
 
+  @Override
+  public boolean canClaim(String username, String claimedId) {
+    return username.equals(findUsername(claimedId));
+  }
+
   /**
+   * Returns the username of the user who may claim an identifier. Looks
+   * the identifier up in the index, and otherwise takes its last path
+   * segment to be the username.
    *
-   *
-   * @param username
-   * @param claimedId
-   * @return
+   * @param claimedId the identifier.
+   * @return the username, or null if no user may claim it.
    */
   @Override
-  public boolean canClaim(String username, String claimedId) {
-    boolean result = false;
-    String usernameFromClaimedId = claimedId.substring(claimedId.lastIndexOf("/") + 1);
-    if (username.equals(usernameFromClaimedId)) {
-      result = true;
+  public String findUsername(String claimedId) {
+    String id = UrlUtils.normalizeIdentifier(claimedId);
+    if (id == null) {
+      return null;
     }
-    return result;
+    String username = identifierIndex.get(id);
+    if (username == null) {
+      username = id.substring(id.lastIndexOf('/') + 1);
+    }
+    return (username.length() == 0) ? null : username;
   }
 
   @Override
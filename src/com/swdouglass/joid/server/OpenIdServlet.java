@@ -21,11 +21,17 @@ package com.swdouglass.joid.server;
 
 import com.swdouglass.joid.AuthenticationRequest;
 import com.swdouglass.joid.Crypto;
+import com.swdouglass.joid.DiffieHellman;
+import com.swdouglass.joid.DiffieHellmanPool;
+import com.swdouglass.joid.KeyRing;
 import com.swdouglass.joid.MessageFactory;
 import com.swdouglass.joid.OpenId;
 import com.swdouglass.joid.OpenIdException;
+import com.swdouglass.joid.Request;
+import com.swdouglass.joid.Response;
 import com.swdouglass.joid.ServerInfo;
 import com.swdouglass.joid.Store;
+import com.swdouglass.joid.StoreSweeper;
 import com.swdouglass.joid.util.CookieUtils;
 import com.swdouglass.joid.util.DependencyUtils;
 import javax.servlet.ServletConfig;
@@ -68,6 +74,13 @@ public class OpenIdServlet extends HttpServlet {
   private static final String INIT_LOGIN_PAGE="loginPage";
   private static final String INIT_LOGIN_PAGE_DEFAULT="login.jsp";
   private static final String INIT_ENDPOINT_URL="endPointURL";
+  private static final String INIT_NONCE_SKEW="nonceSkew";
+  private static final String INIT_DH_POOL_SIZE="dhPoolSize";
+  private static final String INIT_SWEEP_INTERVAL="sweepInterval";
+  private static final String INIT_SWEEP_BATCH_SIZE="sweepBatchSize";
+  private static final String INIT_KEY_RING_SECRET="keyRingSecret";
+  private static final String INIT_KEY_RING_ROTATION="keyRingRotation";
+  private static final String INIT_SEAL_ASSOCIATIONS="sealAssociations";
   // OpenID parameters
   private static final String ID_CLAIMED = "idClaimed";
   private static final String QUERY = "query";
@@ -98,9 +111,43 @@ public class OpenIdServlet extends HttpServlet {
 
     this.store = Store.getInstance(storeClassName);
     this.store.setAssociationLifetime(600);
+    if (config.getInitParameter(INIT_NONCE_SKEW) != null) {
+      this.store.setNonceSkew(
+        Long.parseLong(config.getInitParameter(INIT_NONCE_SKEW)));
+    }
+    long sweepInterval = (config.getInitParameter(INIT_SWEEP_INTERVAL) == null ?
+      StoreSweeper.DEFAULT_INTERVAL :
+      Long.parseLong(config.getInitParameter(INIT_SWEEP_INTERVAL)));
+    if (sweepInterval > 0) {
+      this.store.startSweeper(sweepInterval,
+        (config.getInitParameter(INIT_SWEEP_BATCH_SIZE) == null ?
+          StoreSweeper.DEFAULT_BATCH_SIZE :
+          Integer.parseInt(config.getInitParameter(INIT_SWEEP_BATCH_SIZE))));
+    }
+    if (config.getInitParameter(INIT_DH_POOL_SIZE) != null) {
+      DiffieHellmanPool.register(DiffieHellman.DEFAULT_MODULUS,
+        DiffieHellman.DEFAULT_GENERATOR,
+        Integer.parseInt(config.getInitParameter(INIT_DH_POOL_SIZE)));
+    }
     OpenIdServlet.userManager = (UserManager) DependencyUtils.newInstance(userManagerClassName);
     this.crypto = new Crypto();
-    OpenIdServlet.openId = new OpenId(new ServerInfo(endPointUrl, store, crypto));
+    long rotation = (config.getInitParameter(INIT_KEY_RING_ROTATION) == null ?
+      KeyRing.DEFAULT_ROTATION :
+      Long.parseLong(config.getInitParameter(INIT_KEY_RING_ROTATION)));
+    String secret = config.getInitParameter(INIT_KEY_RING_SECRET);
+    boolean sealing =
+      Boolean.parseBoolean(config.getInitParameter(INIT_SEAL_ASSOCIATIONS));
+    KeyRing keyRing = null;
+    if (secret != null && secret.trim().length() > 0) {
+      keyRing = new KeyRing(Crypto.convertToBytes(secret.trim()), rotation);
+      keyRing.setSealing(sealing);
+    } else if (sealing) {
+      // a random secret would not survive a restart, nor reach other nodes
+      log.warn(INIT_SEAL_ASSOCIATIONS + " is ignored without "
+        + INIT_KEY_RING_SECRET + "; associations are saved to the store");
+    }
+    OpenIdServlet.openId = new OpenId(
+      new ServerInfo(endPointUrl, store, crypto, keyRing));
   }
 
   @Override
@@ -136,12 +183,17 @@ public class OpenIdServlet extends HttpServlet {
   throws ServletException, IOException {
     debug("\nrequest\n-------\n" + query + "\n");
     
-    if (!(openId.canHandle(query))) {
+    // parse once; the request is reused for every decision below
+    Request req;
+    try {
+      req = openId.parseRequest(query);
+    } catch (Exception e) {
+      log.info(e, e);
       returnError(query, response);
       return;
     }
     try {
-      boolean isAuth = openId.isAuthenticationRequest(query);
+      boolean isAuth = req instanceof AuthenticationRequest;
       HttpSession session = request.getSession(true);
       String username = getLoggedIn(request);
       debug("[OpenIdServlet] Logged in as: " + username);
@@ -182,10 +234,13 @@ public class OpenIdServlet extends HttpServlet {
         response.sendRedirect(loginPage);
         return;
       }
-      String s = openId.handleRequest(query);
-      debug("\nresponse\n--------\n" + s + "\n");
+      Response resp = openId.handleRequest(req);
+      if (log.isDebugEnabled()) {
+        debug("\nresponse\n--------\n"
+          + (isAuth ? resp.toUrlString() : resp.toPostString()) + "\n");
+      }
       if (isAuth) {
-        AuthenticationRequest authReq = (AuthenticationRequest) MessageFactory.parseRequest(query);
+        AuthenticationRequest authReq = (AuthenticationRequest) req;
         //String claimedId = (String) session.getAttribute(ID_CLAIMED);
         /*TODO: Ensure that the previously claimed id is the same as the just
         passed in claimed id. */
@@ -201,8 +256,10 @@ public class OpenIdServlet extends HttpServlet {
         if (getUserManager().canClaim(user, identity)) {
           //String returnTo = authReq.getReturnTo();
           String returnTo = (String) session.getAttribute(AuthenticationRequest.OPENID_RETURN_TO);
-          String delim = (returnTo.indexOf('?') >= 0) ? "&" : "?";
-          s = response.encodeRedirectURL(returnTo + delim + s);
+          StringBuilder url = new StringBuilder(returnTo);
+          url.append((returnTo.indexOf('?') >= 0) ? '&' : '?');
+          resp.writeUrlString(url);
+          String s = response.encodeRedirectURL(url.toString());
           debug("sending redirect to: " + s);
           response.sendRedirect(s);
         } else {
@@ -210,14 +267,13 @@ public class OpenIdServlet extends HttpServlet {
         }
 
       } else {
-        // Association request
-        int len = s.length();
-        PrintWriter out = response.getWriter();
-        response.setHeader("Content-Length", Integer.toString(len));
-        if (openId.isAnErrorResponse(s)) {
+        // Association request; written straight to the response, so the
+        // container sets the length
+        if (openId.isAnErrorResponse(resp)) {
           response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
         }
-        out.print(s);
+        PrintWriter out = response.getWriter();
+        resp.writePostString(out);
         out.flush();
       }
     } catch (OpenIdException e) {
@@ -52,5 +52,15 @@ public interface UserManager {
 
     boolean canClaim(User user, String claimedIdentity);
 
+    /**
+     * Returns the username of the user who may claim an identifier.
+     * Identifiers are compared in the form given by
+     * {@link com.swdouglass.joid.util.UrlUtils#normalizeIdentifier}.
+     *
+     * @param claimedIdentity the identifier.
+     * @return the username, or null if no user may claim it.
+     */
+    String findUsername(String claimedIdentity);
+
     boolean login(String inUserName, String inPassword);
 }
@@ -33,11 +33,14 @@ import java.io.IOException;
 import java.net.URLDecoder;
 
 /**
- * 
+ * Serves the identity page for identifiers under <code>/user/</code>. The
+ * username is looked up in the {@link UserManager}'s identifier index, and
+ * otherwise taken from the path segment after <code>/user/</code>.
  */
 public class UserUrlFilter implements Filter {
 
   private static Log log = LogFactory.getLog(UserUrlFilter.class);
+  private static final String USER_PATH = "/user/";
   private String idJsp;
 
   @Override
@@ -51,30 +54,47 @@ public class UserUrlFilter implements Filter {
     HttpServletRequest request = (HttpServletRequest) req;
     HttpServletResponse response = (HttpServletResponse) res;
 
-    String s = request.getServletPath();
-    s = URLDecoder.decode(s, "utf-8");
-    log.debug("servletpath: " + s);
-    String[] sections = s.split("/");
-    log.debug("sections.length: " + sections.length);
-    String contextPath = request.getContextPath();
-    if (sections.length >= 2) {
-      for (int i = 0; i < sections.length; i++) {
-        String section = sections[i];
-        log.debug("section: " + section);
-        if (section.equals("user")) {
-          String username = sections[i + 1];
-          log.debug("username: " + username);
-          log.debug("forwarding to: " + contextPath + idJsp);
-          request.setAttribute("username", username);
-          forward(request, response, idJsp);
-          return;
-        }
+    String username = findUsername(request);
+    if (username != null) {
+      if (log.isDebugEnabled()) {
+        log.debug("username: " + username);
+        log.debug("forwarding to: " + request.getContextPath() + idJsp);
       }
-
+      request.setAttribute("username", username);
+      forward(request, response, idJsp);
+      return;
     }
     filterChain.doFilter(req, res);
   }
 
+  /**
+   * Returns the username for the identifier requested, or null if the
+   * request is not for an identity page.
+   */
+  private String findUsername(HttpServletRequest request)
+    throws IOException {
+    UserManager userManager = OpenIdServlet.getUserManager();
+    if (userManager != null) {
+      String username = userManager.findUsername(
+        request.getRequestURL().toString());
+      if (username != null) {
+        return username;
+      }
+    }
+
+    // the username is the path segment after "/user/"
+    String s = request.getServletPath();
+    int start = s.indexOf(USER_PATH);
+    if (start < 0) {
+      return null;
+    }
+    start += USER_PATH.length();
+    int end = s.indexOf('/', start);
+    String username = URLDecoder.decode(
+      (end < 0) ? s.substring(start) : s.substring(start, end), "utf-8");
+    return (username.length() > 0) ? username : null;
+  }
+
   @Override
   public void destroy() {
   }
@@ -0,0 +1,225 @@
+/*
+ * MODIFICATIONS to the original source have been made by
+ * Scott Douglass <scott@swdouglass.com>
+ *
+ * Copyright 2009 Scott Douglass <scott@swdouglass.com>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.swdouglass.joid.store;
+
+import java.util.Date;
+import javax.naming.NameAlreadyBoundException;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.ldap.LdapContext;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import com.swdouglass.joid.Association;
+import com.swdouglass.joid.Nonce;
+import com.swdouglass.joid.OpenIdException;
+import com.swdouglass.joid.util.DirContextPool;
+import com.swdouglass.joid.util.DirectoryUtil;
+
+/**
+ * A directory store that keeps associations and nonces as plain LDAP
+ * attributes rather than as serialized Java objects. Entries are read with
+ * a single base lookup and no deserialization, and expired entries are
+ * found by a search filter on their expiry time.
+ *
+ * Requires the <code>joidAssociation</code> and <code>joidNonce</code>
+ * object classes from <code>db/openid.schema</code>. Entries are placed
+ * under the same organizational units as {@link DirectoryStoreImpl}, and
+ * are configured in the same <code>directory.properties</code>.
+ */
+public class DirectoryAttributeStoreImpl extends DirectoryStoreImpl {
+
+  private static final Log log = LogFactory.getLog(
+    DirectoryAttributeStoreImpl.class);
+  private static final String COMMON_NAME = "cn";
+  private static final String ASSOCIATION_CLASS = "joidAssociation";
+  private static final String NONCE_CLASS = "joidNonce";
+  private static final String SECRET = "joidSecret";
+  private static final String ISSUED_AT = "joidIssuedAt";
+  private static final String LIFETIME = "joidLifetime";
+  private static final String ASSOCIATION_TYPE = "joidAssociationType";
+  private static final String SESSION_TYPE = "joidSessionType";
+  private static final String[] ASSOCIATION_ATTRIBUTES = new String[]{
+    SECRET, ISSUED_AT, LIFETIME, ASSOCIATION_TYPE, SESSION_TYPE};
+  private static final String[] NONCE_ATTRIBUTES = new String[]{CHECKED_AT};
+
+  public DirectoryAttributeStoreImpl() {
+    this(DirectoryUtil.getServicePool());
+  }
+
+  /**
+   * Creates a store on the given pool of directory connections.
+   */
+  protected DirectoryAttributeStoreImpl(DirContextPool pool) {
+    super(pool);
+  }
+
+  /**
+   * Looks the association up in memory first, then in the directory.
+   */
+  @Override
+  public Association findAssociation(String handle) throws OpenIdException {
+    Association result = associationCache.get(handle);
+    if (result != null) {
+      return result;
+    }
+    try {
+      Attributes attrs = getAttributes(getAssociationName(handle),
+        ASSOCIATION_ATTRIBUTES);
+      if (attrs != null) {
+        result = new Association();
+        result.setHandle(handle);
+        result.setSecret(getString(attrs, SECRET));
+        result.setIssuedDate(new Date(getLong(attrs, ISSUED_AT)));
+        result.setLifetime(new Long(getLong(attrs, LIFETIME)));
+        result.setAssociationType(getString(attrs, ASSOCIATION_TYPE));
+        result.setSessionType(getString(attrs, SESSION_TYPE));
+        associationCache.put(handle, result, result.getExpiresAt());
+      }
+    } catch (NamingException ex) {
+      throw new OpenIdException("Error in finding the association=" + handle, ex);
+    }
+    return result;
+  }
+
+  @Override
+  public void saveAssociation(Association a) throws OpenIdException {
+    Attributes attrs = new BasicAttributes(true);
+    attrs.put(OBJECTCLASS, ASSOCIATION_CLASS);
+    attrs.put(COMMON_NAME, a.getHandle());
+    attrs.put(SECRET, a.getSecret());
+    attrs.put(ISSUED_AT, Long.toString(a.getIssuedDate().getTime()));
+    attrs.put(LIFETIME, a.getLifetime().toString());
+    attrs.put(EXPIRES_AT, Long.toString(a.getExpiresAt()));
+    if (a.getAssociationType() != null) {
+      attrs.put(ASSOCIATION_TYPE, a.getAssociationType());
+    }
+    if (a.getSessionType() != null) {
+      attrs.put(SESSION_TYPE, a.getSessionType());
+    }
+    try {
+      create(getAssociationName(a.getHandle()), attrs);
+      associationCache.put(a.getHandle(), a, a.getExpiresAt());
+    } catch (NamingException ex) {
+      throw new OpenIdException("Error in storing the association=" + a.
+        getHandle(), ex);
+    }
+  }
+
+  @Override
+  public Nonce findNonce(String nonce) throws OpenIdException {
+    Nonce result = null;
+    try {
+      Attributes attrs = getAttributes(getNonceName(nonce), NONCE_ATTRIBUTES);
+      if (attrs != null) {
+        result = new Nonce();
+        result.setNonce(nonce);
+        result.setCheckedDate(new Date(getLong(attrs, CHECKED_AT)));
+      }
+    } catch (NamingException ex) {
+      throw new OpenIdException("Error in finding the nonce=" + nonce, ex);
+    }
+    return result;
+  }
+
+  @Override
+  public void saveNonce(Nonce n) throws OpenIdException {
+    try {
+      create(getNonceName(n.getNonce()), nonceAttributes(n));
+    } catch (NamingException ex) {
+      throw new OpenIdException("Error in storing the nonce=" + n.getNonce(), ex);
+    }
+  }
+
+  /**
+   * Adds the nonce entry, relying on the directory to refuse one that
+   * already exists.
+   */
+  @Override
+  public boolean recordNonce(String nonce) throws OpenIdException {
+    try {
+      create(getNonceName(nonce), nonceAttributes(generateNonce(nonce)));
+      return true;
+    } catch (NameAlreadyBoundException ex) {
+      if (log.isDebugEnabled()) {
+        log.debug("Nonce already bound: " + nonce);
+      }
+      return false;
+    } catch (NamingException ex) {
+      throw new OpenIdException("Error in storing the nonce=" + nonce, ex);
+    }
+  }
+
+  private Attributes nonceAttributes(Nonce n) {
+    Attributes attrs = new BasicAttributes(true);
+    attrs.put(OBJECTCLASS, NONCE_CLASS);
+    attrs.put(COMMON_NAME, n.getNonce());
+    attrs.put(CHECKED_AT, Long.toString(n.getCheckedDate().getTime()));
+    return attrs;
+  }
+
+  /**
+   * Returns the requested attributes of an entry, or null if there is no
+   * such entry.
+   */
+  private Attributes getAttributes(final String name, final String[] ids)
+    throws NamingException {
+    try {
+      return pool.execute(new DirContextPool.Work<Attributes>() {
+
+        @Override
+        public Attributes run(LdapContext ctx) throws NamingException {
+          return ctx.getAttributes(name, ids);
+        }
+      });
+    } catch (NameNotFoundException ex) {
+      return null;
+    }
+  }
+
+  private void create(final String name, final Attributes attrs)
+    throws NamingException {
+    pool.execute(new DirContextPool.Work<Object>() {
+
+      @Override
+      public Object run(LdapContext ctx) throws NamingException {
+        ctx.bind(name, null, attrs);
+        return null;
+      }
+    });
+  }
+
+  private static String getString(Attributes attrs, String id)
+    throws NamingException {
+    Attribute attr = attrs.get(id);
+    return (attr == null) ? null : (String) attr.get();
+  }
+
+  private static long getLong(Attributes attrs, String id)
+    throws NamingException {
+    String value = getString(attrs, id);
+    if (value == null) {
+      throw new NamingException("Missing attribute " + id);
+    }
+    return Long.parseLong(value);
+  }
+}
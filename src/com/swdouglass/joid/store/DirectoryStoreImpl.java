@@ -33,23 +33,43 @@
  */
 package com.swdouglass.joid.store;
 
+import java.util.ArrayList;
+import java.util.List;
+import javax.naming.InvalidNameException;
 import javax.naming.NameAlreadyBoundException;
+import javax.naming.NamingEnumeration;
 import javax.naming.NameNotFoundException;
 import javax.naming.NamingException;
+import javax.naming.SizeLimitExceededException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.BasicAttribute;
 import javax.naming.directory.BasicAttributes;
 import javax.naming.directory.DirContext;
-import javax.naming.directory.InitialDirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.Rdn;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import com.swdouglass.joid.Association;
 import com.swdouglass.joid.Nonce;
 import com.swdouglass.joid.OpenIdException;
 import com.swdouglass.joid.Store;
+import com.swdouglass.joid.util.DirContextPool;
 import com.swdouglass.joid.util.DirectoryUtil;
+import com.swdouglass.joid.util.ExpiringCache;
 
+/**
+ * A directory store that binds associations and nonces as serialized Java
+ * objects. Each entry also carries its expiry time in the auxiliary
+ * <code>joidExpiring</code> object class from <code>db/openid.schema</code>,
+ * so that expired entries can be found by a search filter.
+ *
+ * Entry names are escaped as RDN values. Entries bound by older versions
+ * under an unescaped name are still found and deleted by handle or nonce,
+ * but not swept; see <code>db/openid.schema</code>.
+ */
 public class DirectoryStoreImpl extends Store {
 
   private static final Log log = LogFactory.getLog(DirectoryStoreImpl.class);
@@ -61,16 +81,30 @@ public class DirectoryStoreImpl extends Store {
   private static final String OU_NONCE_PROP_DEFAULT = "nonce";
   private static final String OU = "ou=";
   private static final String CN = "cn=";
-  private InitialDirContext initialCtx;
+  protected static final String OBJECTCLASS = "objectClass";
+  protected static final String EXPIRING_CLASS = "joidExpiring";
+  protected static final String EXPIRES_AT = "joidExpiresAt";
+  protected static final String CHECKED_AT = "joidCheckedAt";
+  // RFC 4511: a request for attribute "1.1" returns no attributes
+  protected static final String[] NO_ATTRIBUTES = new String[]{"1.1"};
+  protected final DirContextPool pool;
   private String ouOpenID;
   private String ouAssociation;
   private String ouNonce;
+  // associations do not change once bound; see findAssociation
+  protected final ExpiringCache<String, Association> associationCache =
+    new ExpiringCache<String, Association>(DEFAULT_ASSOCIATION_CACHE_SIZE);
 
   public DirectoryStoreImpl() {
-    try {
-      // Set up environment for creating the initial context
-      initialCtx = DirectoryUtil.getInitialDirContext();
+    this(DirectoryUtil.getServicePool());
+  }
 
+  /**
+   * Creates a store on the given pool of directory connections.
+   */
+  protected DirectoryStoreImpl(DirContextPool pool) {
+    this.pool = pool;
+    try {
       this.setOuOpenID(OU.concat(DirectoryUtil.getProperty(OU_OPENID_PROP,
         OU_OPENID_PROP_DEFAULT)));
       this.setOuAssociation(OU.concat(DirectoryUtil.getProperty(
@@ -79,14 +113,25 @@ public class DirectoryStoreImpl extends Store {
         OU_NONCE_PROP_DEFAULT)));
 
       //try to create parent contexes
-      Attributes attrs = new BasicAttributes(true); // case-ignore
-      Attribute objclass = new BasicAttribute("objectclass");
-      objclass.add("top");
-      objclass.add("organizationalUnit");
-      attrs.put(objclass);
-      DirContext baseCtx = initialCtx.createSubcontext(ouOpenID, attrs);
-      baseCtx.createSubcontext(ouAssociation, attrs);
-      baseCtx.createSubcontext(ouNonce, attrs);
+      pool.execute(new DirContextPool.Work<Object>() {
+
+        @Override
+        public Object run(LdapContext ctx) throws NamingException {
+          Attributes attrs = new BasicAttributes(true); // case-ignore
+          Attribute objclass = new BasicAttribute("objectclass");
+          objclass.add("top");
+          objclass.add("organizationalUnit");
+          attrs.put(objclass);
+          DirContext baseCtx = ctx.createSubcontext(ouOpenID, attrs);
+          try {
+            baseCtx.createSubcontext(ouAssociation, attrs).close();
+            baseCtx.createSubcontext(ouNonce, attrs).close();
+          } finally {
+            baseCtx.close();
+          }
+          return null;
+        }
+      });
 
     } catch (NameAlreadyBoundException ex) {
       //ignore
@@ -98,19 +143,42 @@ public class DirectoryStoreImpl extends Store {
 
   @Override
   public void deleteAssociation(Association a) throws OpenIdException {
+    associationCache.remove(a.getHandle());
     try {
-      initialCtx.unbind(getAssociationName(a.getHandle()));
+      unbind(getAssociationName(a.getHandle()));
+      String legacyName = getLegacyName(a.getHandle(), getOuAssociation());
+      if (!legacyName.equals(getAssociationName(a.getHandle()))) {
+        try {
+          unbind(legacyName);
+        } catch (NameNotFoundException ex) {
+          //
+        } catch (InvalidNameException ex) {
+          //
+        }
+      }
     } catch (NamingException ex) {
       throw new OpenIdException("Error in deleting the association=" + a.
         getHandle(), ex);
     }
   }
 
+  /**
+   * Looks the association up in memory first, then in the directory.
+   * Associations found are cached until they expire; one deleted through
+   * another store instance stays cached here until then.
+   */
   @Override
   public Association findAssociation(String handle) throws OpenIdException {
-    Association result = null;
+    Association result = associationCache.get(handle);
+    if (result != null) {
+      return result;
+    }
     try {
-      result = (Association) initialCtx.lookup(getAssociationName(handle));
+      result = (Association) lookup(getAssociationName(handle),
+        getLegacyName(handle, getOuAssociation()));
+      if (result != null) {
+        associationCache.put(handle, result, result.getExpiresAt());
+      }
     } catch (NameNotFoundException ex) {
       //
     } catch (NamingException ex) {
@@ -123,7 +191,8 @@ public class DirectoryStoreImpl extends Store {
   public Nonce findNonce(String nonce) throws OpenIdException {
     Nonce result = null;
     try {
-      result = (Nonce) initialCtx.lookup(getNonceName(nonce));
+      result = (Nonce) lookup(getNonceName(nonce),
+        getLegacyName(nonce, getOuNonce()));
     } catch (NameNotFoundException ex) {
       //
     } catch (NamingException ex) {
@@ -135,7 +204,9 @@ public class DirectoryStoreImpl extends Store {
   @Override
   public void saveAssociation(Association a) throws OpenIdException {
     try {
-      initialCtx.bind(getAssociationName(a.getHandle()), a);
+      bind(getAssociationName(a.getHandle()), a,
+        expiringAttributes(EXPIRES_AT, a.getExpiresAt()));
+      associationCache.put(a.getHandle(), a, a.getExpiresAt());
     } catch (NamingException ex) {
       throw new OpenIdException("Error in storing the association=" + a.
         getHandle(), ex);
@@ -145,16 +216,165 @@ public class DirectoryStoreImpl extends Store {
   @Override
   public void saveNonce(Nonce n) throws OpenIdException {
     try {
-      initialCtx.bind(getNonceName(n.getNonce()), n);
+      bind(getNonceName(n.getNonce()), n, expiringAttributes(CHECKED_AT,
+        n.getCheckedDate().getTime()));
     } catch (NamingException ex) {
       throw new OpenIdException("Error in storing the nonce=" + n.getNonce(), ex);
     }
   }
 
-  private String getAssociationName(String assoc) {
+  /**
+   * Binds the nonce, relying on the directory to refuse an entry that
+   * already exists.
+   */
+  @Override
+  public boolean recordNonce(String nonce) throws OpenIdException {
+    try {
+      Nonce n = generateNonce(nonce);
+      bind(getNonceName(nonce), n, expiringAttributes(CHECKED_AT,
+        n.getCheckedDate().getTime()));
+      return true;
+    } catch (NameAlreadyBoundException ex) {
+      debug("Nonce already bound: " + nonce);
+      return false;
+    } catch (NamingException ex) {
+      throw new OpenIdException("Error in storing the nonce=" + nonce, ex);
+    }
+  }
+
+  /**
+   * Searches for expired associations, then for nonces older than the
+   * nonce skew, and unbinds up to <code>batchSize</code> of them. Only the
+   * names of the entries are read.
+   *
+   * Entries bound before the expiry attributes were added are not found;
+   * remove them once, with the rest of the association and nonce entries,
+   * when upgrading.
+   */
+  @Override
+  public int deleteExpired(final long now, final int batchSize)
+    throws OpenIdException {
+    final String associations = getOuAssociation() + "," + getOuOpenID();
+    final String nonces = getOuNonce() + "," + getOuOpenID();
+    final long cutoff = now - getNonceSkew() * 1000;
+    try {
+      return pool.execute(new DirContextPool.Work<Integer>() {
+
+        @Override
+        public Integer run(LdapContext ctx) throws NamingException {
+          // expired means strictly after the expiry time
+          int n = delete(ctx, associations, "(" + EXPIRES_AT + "<={0})",
+            now - 1, batchSize);
+          if (n < batchSize) {
+            n += delete(ctx, nonces, "(" + CHECKED_AT + "<={0})", cutoff - 1,
+              batchSize - n);
+          }
+          return n;
+        }
+      });
+    } catch (NamingException ex) {
+      throw new OpenIdException("Error in deleting expired entries under "
+        + getOuOpenID(), ex);
+    }
+  }
+
+  /**
+   * Deletes up to <code>limit</code> entries directly below
+   * <code>context</code> that match <code>filter</code>. Expired
+   * associations are already gone from the cache.
+   */
+  protected int delete(LdapContext ctx, String context, String filter,
+    long time, int limit) throws NamingException {
+    SearchControls ctls = new SearchControls();
+    ctls.setSearchScope(SearchControls.ONELEVEL_SCOPE);
+    ctls.setCountLimit(limit);
+    ctls.setReturningAttributes(NO_ATTRIBUTES);
+
+    List<String> names = new ArrayList<String>();
+    NamingEnumeration<SearchResult> results = ctx.search(context, filter,
+      new Object[]{Long.toString(time)}, ctls);
+    try {
+      while (results.hasMore()) {
+        SearchResult sr = results.next();
+        names.add(sr.isRelative() ? sr.getName() + "," + context
+          : sr.getNameInNamespace());
+      }
+    } catch (SizeLimitExceededException ex) {
+      // more are left for the next batch
+    } finally {
+      results.close();
+    }
+
+    for (String name : names) {
+      ctx.unbind(name);
+    }
+    return names.size();
+  }
+
+  private Attributes expiringAttributes(String id, long time) {
+    Attributes attrs = new BasicAttributes(true);
+    attrs.put(OBJECTCLASS, EXPIRING_CLASS);
+    attrs.put(id, Long.toString(time));
+    return attrs;
+  }
+
+  /**
+   * Looks an entry up by name, then by the unescaped name older versions
+   * bound it under.
+   */
+  private Object lookup(String name, String legacyName)
+    throws NamingException {
+    try {
+      return lookup(name);
+    } catch (NameNotFoundException ex) {
+      if (legacyName.equals(name)) {
+        throw ex;
+      }
+      try {
+        return lookup(legacyName);
+      } catch (InvalidNameException invalid) {
+        throw ex;
+      }
+    }
+  }
+
+  private Object lookup(final String name) throws NamingException {
+    return pool.execute(new DirContextPool.Work<Object>() {
+
+      @Override
+      public Object run(LdapContext ctx) throws NamingException {
+        return ctx.lookup(name);
+      }
+    });
+  }
+
+  private void bind(final String name, final Object o,
+    final Attributes attrs) throws NamingException {
+    pool.execute(new DirContextPool.Work<Object>() {
+
+      @Override
+      public Object run(LdapContext ctx) throws NamingException {
+        ctx.bind(name, o, attrs);
+        return null;
+      }
+    });
+  }
+
+  private void unbind(final String name) throws NamingException {
+    pool.execute(new DirContextPool.Work<Object>() {
+
+      @Override
+      public Object run(LdapContext ctx) throws NamingException {
+        ctx.unbind(name);
+        return null;
+      }
+    });
+  }
+
+  protected String getAssociationName(String assoc) {
     StringBuilder sb = new StringBuilder();
     sb.append(CN);
-    sb.append(assoc);
+    sb.append(Rdn.escapeValue(assoc));
     sb.append(",");
     sb.append(getOuAssociation());
     sb.append(",");
@@ -163,10 +383,14 @@ public class DirectoryStoreImpl extends Store {
     return sb.toString();
   }
 
-  private String getNonceName(String nonce) {
+  private String getLegacyName(String cn, String ou) {
+    return CN + cn + "," + ou + "," + getOuOpenID();
+  }
+
+  protected String getNonceName(String nonce) {
     StringBuilder sb = new StringBuilder();
     sb.append(CN);
-    sb.append(nonce);
+    sb.append(Rdn.escapeValue(nonce));
     sb.append(",");
     sb.append(getOuNonce());
     sb.append(",");
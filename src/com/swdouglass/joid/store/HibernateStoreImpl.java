@@ -31,94 +31,180 @@
 //
 package com.swdouglass.joid.store;
 
+import com.swdouglass.joid.util.ExpiringCache;
 import com.swdouglass.joid.util.HibernateUtil;
+import java.util.Date;
 import java.util.List;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.Log;
-import org.hibernate.Query;
+import org.hibernate.NonUniqueResultException;
 import org.hibernate.Session;
-import org.hibernate.Transaction;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.exception.ConstraintViolationException;
 import com.swdouglass.joid.OpenIdException;
 import com.swdouglass.joid.Store;
 import com.swdouglass.joid.Association;
 import com.swdouglass.joid.Nonce;
 
 /**
- * A database backed store.
+ * A database backed store. Each operation runs in a session and
+ * transaction of its own. Associations and nonces are looked up by their
+ * natural ids, <code>handle</code> and <code>nonce</code>, which are
+ * unique keys in the schema (see <code>db/create.sql</code>).
+ *
+ * Associations do not change once saved, so they are also cached in
+ * memory until they expire. An association deleted through another store
+ * instance (e.g. on another server) stays in this cache until then.
  */
 public class HibernateStoreImpl extends Store {
 
   private final static Log log = LogFactory.getLog(HibernateStoreImpl.class);
+  private final ExpiringCache<String, Association> associationCache =
+    new ExpiringCache<String, Association>(DEFAULT_ASSOCIATION_CACHE_SIZE);
 
   @Override
   public void saveNonce(Nonce n) {
-    Session session = HibernateUtil.currentSession();
-    Transaction tx = session.beginTransaction();
-    session.save(n);
-    tx.commit();
-    HibernateUtil.closeSession();
+    save(n);
+  }
+
+  /**
+   * Inserts the nonce in a single transaction, relying on the unique
+   * key on <code>Nonce.nonce</code> to refuse a duplicate. A replayed
+   * nonce is looked for first, since Hibernate logs every constraint
+   * violation at ERROR; only two concurrent requests with the same nonce
+   * get as far as the insert.
+   */
+  @Override
+  public boolean recordNonce(String nonce) throws OpenIdException {
+    if (findNonce(nonce) != null) {
+      log.debug("Nonce already recorded: " + nonce);
+      return false;
+    }
+    Nonce n = generateNonce(nonce);
+    try {
+      save(n);
+      return true;
+    } catch (ConstraintViolationException ex) {
+      log.debug("Nonce already recorded: " + nonce);
+      return false;
+    }
   }
 
   @Override
   public void saveAssociation(Association a) {
-    Session session = HibernateUtil.currentSession();
-    Transaction tx = session.beginTransaction();
-    session.save(a);
-    tx.commit();
-    HibernateUtil.closeSession();
+    save(a);
+    associationCache.put(a.getHandle(), a, a.getExpiresAt());
   }
 
   @Override
-  public void deleteAssociation(Association a) {
-    Session session = HibernateUtil.currentSession();
-    session.delete(a);
+  public void deleteAssociation(final Association a) {
+    associationCache.remove(a.getHandle());
+    HibernateUtil.execute(new HibernateUtil.Work<Object>() {
+
+      @Override
+      public Object run(Session session) {
+        session.delete(a);
+        return null;
+      }
+    });
   }
 
   @Override
   public Association findAssociation(String handle)
   throws OpenIdException {
-    Session session = HibernateUtil.currentSession();
-    Transaction tx = session.beginTransaction();
-
-    String s = "from Association as a where a.handle=:handle";
-    Query q = session.createQuery(s);
-    q.setParameter("handle", handle);
-    List l = q.list();
-    if (l.size() > 1) {
+    if (handle == null) {
+      return null;
+    }
+    Association a = associationCache.get(handle);
+    if (a != null) {
+      return a;
+    }
+    try {
+      a = (Association) findByNaturalId(Association.class, "handle", handle);
+    } catch (NonUniqueResultException e) {
       throw new OpenIdException("Non-unique association handle: " + handle);
     }
-    tx.commit();
-    HibernateUtil.closeSession();
-
-    if (l.size() == 0) {
+    if (a == null) {
       log.debug("Found no such association: " + handle);
-      return null;
     } else {
-      return (Association) l.get(0);
+      associationCache.put(handle, a, a.getExpiresAt());
     }
+    return a;
   }
 
   @Override
   public Nonce findNonce(String nonce)
   throws OpenIdException {
-    Session session = HibernateUtil.currentSession();
-    Transaction tx = session.beginTransaction();
-
-    String s = "from Nonce as n where n.nonce=:nonce";
-    Query q = session.createQuery(s);
-    q.setParameter("nonce", nonce);
-    List l = q.list();
-    if (l.size() > 1) {
+    Nonce n;
+    try {
+      n = (Nonce) findByNaturalId(Nonce.class, "nonce", nonce);
+    } catch (NonUniqueResultException e) {
       throw new OpenIdException("Non-unique nonce: " + nonce);
     }
-    tx.commit();
-    HibernateUtil.closeSession();
-
-    if (l.size() == 0) {
+    if (n == null) {
       log.debug("Found no such nonce: " + nonce);
-      return null;
-    } else {
-      return (Nonce) l.get(0);
     }
+    return n;
+  }
+
+  /**
+   * Deletes expired associations, then nonces older than the nonce skew,
+   * by selecting a batch of ids through the expiry indexes and deleting
+   * those ids in one statement, all in one transaction.
+   */
+  @Override
+  public int deleteExpired(final long now, final int batchSize) {
+    int n = deleteBatch("Association", "expiresAt", Long.valueOf(now), batchSize);
+    if (n < batchSize) {
+      Date cutoff = new Date(now - getNonceSkew() * 1000);
+      n += deleteBatch("Nonce", "checkedDate", cutoff, batchSize - n);
+    }
+    return n;
+  }
+
+  private int deleteBatch(final String entity, final String property,
+    final Object before, final int batchSize) {
+    return HibernateUtil.execute(new HibernateUtil.Work<Integer>() {
+
+      @Override
+      public Integer run(Session session) {
+        List<?> ids = session.createQuery("select e.id from " + entity
+          + " e where e." + property + " < :before")
+          .setParameter("before", before)
+          .setMaxResults(batchSize)
+          .list();
+        if (ids.isEmpty()) {
+          return Integer.valueOf(0);
+        }
+        return Integer.valueOf(session.createQuery("delete from " + entity
+          + " where id in (:ids)")
+          .setParameterList("ids", ids)
+          .executeUpdate());
+      }
+    }).intValue();
+  }
+
+  private void save(final Object o) {
+    HibernateUtil.execute(new HibernateUtil.Work<Object>() {
+
+      @Override
+      public Object run(Session session) {
+        session.save(o);
+        return null;
+      }
+    });
+  }
+
+  private Object findByNaturalId(final Class<?> c, final String property,
+    final String value) {
+    return HibernateUtil.execute(new HibernateUtil.Work<Object>() {
+
+      @Override
+      public Object run(Session session) {
+        return session.createCriteria(c)
+          .add(Restrictions.naturalId().set(property, value))
+          .uniqueResult();
+      }
+    });
   }
 }
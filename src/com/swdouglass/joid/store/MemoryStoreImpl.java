@@ -23,55 +23,193 @@ import com.swdouglass.joid.OpenIdException;
 import com.swdouglass.joid.Store;
 import com.swdouglass.joid.Association;
 import com.swdouglass.joid.Nonce;
-import java.util.ArrayList;
-import java.util.List;
+import com.swdouglass.joid.NonceWindow;
+import com.swdouglass.joid.StoreSweeper;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
+/**
+ * An in-memory store. Associations are indexed by handle in a concurrent
+ * hash map, so lookups do not block under concurrent servlet threads, and a
+ * {@link StoreSweeper} periodically removes those past their lifetime.
+ * The associations are shared by all instances, so one sweeper will do: a
+ * default one is started with the first association saved, every
+ * {@link #SWEEP_INTERVAL} seconds, and is stopped once a sweeper is
+ * {@link #startSweeper started} explicitly.
+ * Nonces are kept in a {@link NonceWindow}, which forgets them once they
+ * are older than the nonce skew. Like the associations, the window and so
+ * the nonce skew are shared by all instances.
+ */
 public class MemoryStoreImpl extends Store {
 
-  private static List<Association> associationList = new ArrayList<Association>();
-  private static List<Nonce> nonceList = new ArrayList<Nonce>();
+  private final static Log log = LogFactory.getLog(MemoryStoreImpl.class);
+  /**
+   * Interval, in seconds, between sweeps of the default sweeper; zero or
+   * less to start none.
+   */
+  public static long SWEEP_INTERVAL = StoreSweeper.DEFAULT_INTERVAL;
+  private static StoreSweeper defaultSweeper;
+  private static boolean sweeperStarted;
+  private static ConcurrentMap<String, Association> associationMap =
+    new ConcurrentHashMap<String, Association>();
+  private static NonceWindow nonceWindow = new NonceWindow(DEFAULT_NONCE_SKEW);
+  // recording takes the read lock, replacing the window the write lock
+  private static final ReadWriteLock nonceLock = new ReentrantReadWriteLock();
+
+  /**
+   * Removes associations that have expired; nonces expire by themselves
+   * in the {@link NonceWindow}.
+   */
+  @Override
+  public int deleteExpired(long now, int batchSize) {
+    int associations = 0;
+    for (Iterator<Association> iter = associationMap.values().iterator();
+      iter.hasNext() && associations < batchSize;) {
+      if (iter.next().hasExpired(now)) {
+        iter.remove();
+        associations += 1;
+      }
+    }
+    return associations;
+  }
+
+  /**
+   * Stops the default sweeper, if it is running, before starting this one.
+   */
+  @Override
+  public StoreSweeper startSweeper(long interval, int batchSize) {
+    stopDefaultSweeper();
+    return super.startSweeper(interval, batchSize);
+  }
+
+  /**
+   * @return the sweeper started on this instance, or else the default
+   * sweeper if it is running.
+   */
+  @Override
+  public StoreSweeper getSweeper() {
+    StoreSweeper sweeper = super.getSweeper();
+    return (sweeper == null) ? getDefaultSweeper() : sweeper;
+  }
+
+  private static synchronized StoreSweeper getDefaultSweeper() {
+    return defaultSweeper;
+  }
+
+  private static synchronized void startDefaultSweeper(MemoryStoreImpl store) {
+    if (sweeperStarted) {
+      return;
+    }
+    sweeperStarted = true;
+    if (SWEEP_INTERVAL > 0) {
+      defaultSweeper = new StoreSweeper(store, Integer.MAX_VALUE);
+      defaultSweeper.start(SWEEP_INTERVAL);
+    }
+  }
+
+  private static synchronized void stopDefaultSweeper() {
+    sweeperStarted = true;
+    if (defaultSweeper != null) {
+      defaultSweeper.stop();
+      defaultSweeper = null;
+    }
+  }
+
+  /**
+   * Returns the nonce skew of the window shared by all instances.
+   */
+  @Override
+  public long getNonceSkew() {
+    nonceLock.readLock().lock();
+    try {
+      return nonceWindow.getSkew();
+    } finally {
+      nonceLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Sets the nonce skew for all instances, moving the nonces remembered so
+   * far into a window of the new size so none of them can be replayed.
+   */
+  @Override
+  public void setNonceSkew(long nonceSkew) {
+    super.setNonceSkew(nonceSkew);
+    nonceLock.writeLock().lock();
+    try {
+      if (nonceWindow.getSkew() != nonceSkew) {
+        NonceWindow window = new NonceWindow(nonceSkew);
+        window.addAll(nonceWindow, System.currentTimeMillis());
+        nonceWindow = window;
+      }
+    } finally {
+      nonceLock.writeLock().unlock();
+    }
+  }
 
   @Override
   public void saveAssociation(Association a) {
-    associationList.add(a);
+    startDefaultSweeper(this);
+    associationMap.put(a.getHandle(), a);
   }
 
   @Override
   public void saveNonce(Nonce n) {
-    nonceList.add(n);
+    nonceLock.readLock().lock();
+    try {
+      nonceWindow.add(n.getNonce(), System.currentTimeMillis());
+    } finally {
+      nonceLock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean recordNonce(String nonce) throws OpenIdException {
+    long now = System.currentTimeMillis();
+    nonceLock.readLock().lock();
+    try {
+      if (!nonceWindow.isInWindow(nonce, now)) {
+        throw new OpenIdException("Nonce is outside the allowed time window");
+      }
+      return nonceWindow.add(nonce, now);
+    } finally {
+      nonceLock.readLock().unlock();
+    }
   }
 
   @Override
   public void deleteAssociation(Association a) {
-    throw new RuntimeException("not yet implemented");
-  // "associationList.delete(a)"
+    associationMap.remove(a.getHandle());
   }
 
   @Override
   public Association findAssociation(String handle) throws OpenIdException {
-    Association a = null;
-    if (handle != null) {
-      for (Association x : associationList) {
-        if (handle.equals(x.getHandle())) {
-          a = x;
-          break;
-        }
-      }
+    if (handle == null) {
+      return null;
     }
-    return a;
+    return associationMap.get(handle);
   }
 
   @Override
   public Nonce findNonce(String nonce) throws OpenIdException {
-    Nonce n = null;
-    if (nonce != null) {
-      for (Nonce x : nonceList) {
-        if (nonce.equals(x.getNonce())) {
-          n = x;
-          break;
-        }
+    if (nonce == null) {
+      return null;
+    }
+    nonceLock.readLock().lock();
+    try {
+      if (!nonceWindow.contains(nonce, System.currentTimeMillis())) {
+        return null;
       }
+    } finally {
+      nonceLock.readLock().unlock();
     }
+    Nonce n = new Nonce();
+    n.setNonce(nonce);
     return n;
   }
 
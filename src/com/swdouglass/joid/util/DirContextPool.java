@@ -0,0 +1,345 @@
+/*
+ * MODIFICATIONS to the original source have been made by
+ * Scott Douglass <scott@swdouglass.com>
+ *
+ * Copyright 2009 Scott Douglass <scott@swdouglass.com>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.swdouglass.joid.util;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Hashtable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import javax.naming.AuthenticationException;
+import javax.naming.CommunicationException;
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A bounded pool of LDAP connections. A JNDI context is not safe for use
+ * by more than one thread, so each borrower gets a context of its own and
+ * returns it when done.
+ *
+ * Typical usecase:
+ * <pre>
+ * Attributes attrs = pool.execute(new DirContextPool.Work&lt;Attributes&gt;() {
+ *   public Attributes run(LdapContext ctx) throws NamingException {
+ *     ... do something with ctx ...
+ *   }
+ * });
+ * </pre>
+ *
+ * At most <code>size</code> contexts are open at a time; a borrower waits
+ * up to the timeout for one to come back. Contexts idle for longer than
+ * the validation interval are checked before being handed out, and one
+ * that fails with a connection error is closed rather than returned.
+ */
+public class DirContextPool {
+
+  private final static Log log = LogFactory.getLog(DirContextPool.class);
+
+  /** The number of contexts a pool opens, if not configured. */
+  public static int DEFAULT_SIZE = 8;
+  /** How long, in milliseconds, to wait for a context, if not configured. */
+  public static long DEFAULT_TIMEOUT = 5000;
+  /** Idle time, in milliseconds, after which a context is checked. */
+  public static long DEFAULT_VALIDATE_AFTER = 30000;
+  /**
+   * Environment property naming the mechanism {@link #authenticate} binds
+   * with, for a pool whose connections are opened anonymously. Defaults to
+   * "simple".
+   */
+  public static final String BIND_AUTHENTICATION =
+    "com.swdouglass.joid.bind.authentication";
+
+  // RFC 4511: a request for attribute "1.1" returns no attributes
+  private static final String[] NO_ATTRIBUTES = new String[]{"1.1"};
+
+  private final String name;
+  private final Hashtable<?, ?> environment;
+  private final int size;
+  private final long timeout;
+  private final long validateAfter;
+  private final Semaphore permits;
+  private final Deque<Idle> idle = new ArrayDeque<Idle>();
+  private volatile boolean closed;
+
+  /**
+   * A unit of work run by {@link DirContextPool#execute(Work)}.
+   */
+  public interface Work<T> {
+
+    T run(LdapContext ctx) throws NamingException;
+  }
+
+  /**
+   * Creates a pool. No connection is opened until one is borrowed.
+   *
+   * @param name a name for log messages.
+   * @param environment the JNDI environment for new contexts.
+   * @param size the maximum number of open contexts.
+   * @param timeout how long, in milliseconds, to wait for a context.
+   * @param validateAfter idle time, in milliseconds, after which a context
+   * is checked before reuse.
+   */
+  public DirContextPool(String name, Hashtable<?, ?> environment, int size,
+    long timeout, long validateAfter) {
+    if (size <= 0) {
+      throw new IllegalArgumentException("size must be positive: " + size);
+    }
+    this.name = name;
+    this.environment = environment;
+    this.size = size;
+    this.timeout = timeout;
+    this.validateAfter = validateAfter;
+    this.permits = new Semaphore(size, true);
+  }
+
+  /**
+   * Runs <code>work</code> with a context from the pool. If the work fails
+   * with a connection error on a context that had been idle, the context
+   * is discarded and the work is run once more on a fresh one.
+   *
+   * @param work the work to run.
+   * @return what the work returned.
+   *
+   * @throws NamingException if no context could be had, or the work threw.
+   */
+  public <T> T execute(Work<T> work) throws NamingException {
+    Idle i = borrowIdle();
+    try {
+      return run(i.ctx, work);
+    } catch (NamingException e) {
+      if (i.since == 0 || !isConnectionError(e)) {
+        throw e;
+      }
+      // the server has likely dropped the other idle connections too
+      debug("stale " + name + " connection, retrying: " + e);
+      closeIdle();
+    }
+    return run(borrowIdle().ctx, work);
+  }
+
+  /**
+   * Binds as <code>principal</code> on a pooled connection. The context is
+   * left bound as that principal, so a pool used for this should be used
+   * for nothing else. The bind never uses the "none" mechanism, which
+   * would ignore the credentials and succeed anonymously.
+   *
+   * @return true if the directory accepted the credentials.
+   *
+   * @throws NamingException if no context could be had, or the bind failed
+   * for a reason other than bad credentials.
+   */
+  public boolean authenticate(final String principal, final String credentials)
+    throws NamingException {
+    Object configured = environment.get(BIND_AUTHENTICATION);
+    if (configured == null) {
+      configured = environment.get(Context.SECURITY_AUTHENTICATION);
+    }
+    final Object mechanism = (configured == null
+      || "none".equalsIgnoreCase(configured.toString())) ? "simple" : configured;
+    try {
+      return execute(new Work<Boolean>() {
+
+        @Override
+        public Boolean run(LdapContext ctx) throws NamingException {
+          ctx.addToEnvironment(Context.SECURITY_AUTHENTICATION, mechanism);
+          ctx.addToEnvironment(Context.SECURITY_PRINCIPAL, principal);
+          ctx.addToEnvironment(Context.SECURITY_CREDENTIALS, credentials);
+          // rebinds over the open connection
+          ctx.reconnect(null);
+          return Boolean.TRUE;
+        }
+      });
+    } catch (AuthenticationException e) {
+      debug("bind failed for " + principal + ": " + e);
+      return false;
+    }
+  }
+
+  /**
+   * Returns the number of contexts open and waiting to be borrowed.
+   */
+  public int getIdle() {
+    synchronized (idle) {
+      return idle.size();
+    }
+  }
+
+  /**
+   * Returns the number of contexts borrowed and not yet returned.
+   */
+  public int getActive() {
+    return size - permits.availablePermits();
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * Returns the JNDI environment new contexts are opened with.
+   */
+  public Hashtable<?, ?> getEnvironment() {
+    return environment;
+  }
+
+  /**
+   * Closes the idle contexts. Contexts still borrowed are closed as they
+   * come back.
+   */
+  public void close() {
+    closed = true;
+    closeIdle();
+  }
+
+  private void closeIdle() {
+    synchronized (idle) {
+      while (!idle.isEmpty()) {
+        close(idle.pop().ctx);
+      }
+    }
+  }
+
+  /**
+   * Opens a new context. Overridden by tests.
+   */
+  protected LdapContext create() throws NamingException {
+    return new InitialLdapContext(environment, null);
+  }
+
+  /**
+   * Checks a context that has been idle for a while.
+   */
+  protected boolean validate(LdapContext ctx) {
+    try {
+      ctx.getAttributes("", NO_ATTRIBUTES);
+      return true;
+    } catch (NamingException e) {
+      // the server answered; not being allowed to read is fine
+      return !isConnectionError(e);
+    }
+  }
+
+  private static boolean isConnectionError(NamingException e) {
+    return e instanceof CommunicationException
+      || e instanceof ServiceUnavailableException;
+  }
+
+  private <T> T run(LdapContext ctx, Work<T> work) throws NamingException {
+    boolean reuse = false;
+    try {
+      T result = work.run(ctx);
+      reuse = true;
+      return result;
+    } catch (NamingException e) {
+      // a failed operation leaves a working connection usable
+      reuse = !isConnectionError(e);
+      throw e;
+    } finally {
+      release(ctx, reuse);
+    }
+  }
+
+  /**
+   * Takes a permit, then an idle context, or opens a new one. The returned
+   * holder's <code>since</code> is 0 for a new context.
+   */
+  private Idle borrowIdle() throws NamingException {
+    if (closed) {
+      throw new ServiceUnavailableException("pool " + name + " is closed");
+    }
+    try {
+      if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+        throw new ServiceUnavailableException("timed out waiting for a "
+          + name + " connection; all " + size + " are in use");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ServiceUnavailableException("interrupted waiting for a "
+        + name + " connection");
+    }
+    try {
+      long now = System.currentTimeMillis();
+      Idle i;
+      while ((i = poll()) != null) {
+        if (now - i.since < validateAfter || validate(i.ctx)) {
+          return i;
+        }
+        debug("discarding dead " + name + " connection");
+        close(i.ctx);
+      }
+      return new Idle(create(), 0);
+    } catch (NamingException e) {
+      permits.release();
+      throw e;
+    } catch (RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  private Idle poll() {
+    synchronized (idle) {
+      return idle.poll();
+    }
+  }
+
+  private void release(LdapContext ctx, boolean reuse) {
+    try {
+      if (reuse && !closed) {
+        synchronized (idle) {
+          idle.push(new Idle(ctx, System.currentTimeMillis()));
+        }
+      } else {
+        close(ctx);
+      }
+    } finally {
+      permits.release();
+    }
+  }
+
+  private void close(LdapContext ctx) {
+    try {
+      ctx.close();
+    } catch (NamingException e) {
+      debug("error closing " + name + " connection: " + e);
+    }
+  }
+
+  private void debug(String s) {
+    if (log.isDebugEnabled()) {
+      log.debug(s);
+    }
+  }
+
+  private static class Idle {
+
+    final LdapContext ctx;
+    final long since;
+
+    Idle(LdapContext ctx, long since) {
+      this.ctx = ctx;
+      this.since = since;
+    }
+  }
+}
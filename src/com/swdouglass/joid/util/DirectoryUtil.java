@@ -5,8 +5,10 @@
 package com.swdouglass.joid.util;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Enumeration;
 import java.util.Properties;
+import javax.naming.Context;
 import javax.naming.NamingException;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.InitialDirContext;
@@ -28,14 +30,26 @@ public class DirectoryUtil {
   private static final String DN_ROOT_PROP = "joid.directory.root";
   private static final String USER_ATTRIBUTE_PROP = "joid.directory.attribute.user";
   private static final String USER_ATTRIBUTE_PROP_DEFAULT = "uid";
+  private static final String POOL_SIZE_PROP = "joid.directory.pool.size";
+  private static final String BIND_POOL_SIZE_PROP = "joid.directory.pool.bind.size";
+  private static final String POOL_TIMEOUT_PROP = "joid.directory.pool.timeout";
+  private static final String POOL_VALIDATE_PROP = "joid.directory.pool.validate";
   public static Properties prop;
+  private static DirContextPool servicePool;
+  private static DirContextPool bindPool;
 
 
   static {
     prop = new Properties();
     try {
-      prop.load(Thread.currentThread().getContextClassLoader().
-        getResourceAsStream(LDAP_PROPERTIES));
+      InputStream in = Thread.currentThread().getContextClassLoader().
+        getResourceAsStream(LDAP_PROPERTIES);
+      if (in != null) {
+        prop.load(in);
+        in.close();
+      } else {
+        log.warn("No " + LDAP_PROPERTIES + " found on the classpath");
+      }
     } catch (IOException ex) {
       log.warn("Failed to load directory properties!");
     }
@@ -45,30 +59,79 @@ public class DirectoryUtil {
     return new InitialDirContext(prop);
   }
 
+  /**
+   * Returns the pool of connections bound as the configured service
+   * principal, used by the directory store and user manager.
+   */
+  public static synchronized DirContextPool getServicePool() {
+    if (servicePool == null) {
+      servicePool = new DirContextPool("directory", prop,
+        getIntProperty(POOL_SIZE_PROP, DirContextPool.DEFAULT_SIZE),
+        getLongProperty(POOL_TIMEOUT_PROP, DirContextPool.DEFAULT_TIMEOUT),
+        getLongProperty(POOL_VALIDATE_PROP,
+        DirContextPool.DEFAULT_VALIDATE_AFTER));
+    }
+    return servicePool;
+  }
+
+  /**
+   * Returns the pool of connections used to check user passwords. They are
+   * opened anonymously and rebound as each user in turn, with the service's
+   * authentication mechanism, so they are kept apart from the service
+   * connections.
+   */
+  public static synchronized DirContextPool getBindPool() {
+    if (bindPool == null) {
+      Properties bProp = cloneProperties(prop);
+      bProp.remove(JNDI_PRINCIPAL);
+      bProp.remove(JNDI_CREDENTIALS);
+      String mechanism = bProp.getProperty(Context.SECURITY_AUTHENTICATION);
+      if (mechanism != null && !"none".equalsIgnoreCase(mechanism)) {
+        bProp.setProperty(DirContextPool.BIND_AUTHENTICATION, mechanism);
+      }
+      bProp.setProperty(Context.SECURITY_AUTHENTICATION, "none");
+      bindPool = new DirContextPool("directory bind", bProp,
+        getIntProperty(BIND_POOL_SIZE_PROP, DirContextPool.DEFAULT_SIZE),
+        getLongProperty(POOL_TIMEOUT_PROP, DirContextPool.DEFAULT_TIMEOUT),
+        getLongProperty(POOL_VALIDATE_PROP,
+        DirContextPool.DEFAULT_VALIDATE_AFTER));
+    }
+    return bindPool;
+  }
+
+  public static int getIntProperty(String inPropertyName, int inDefaultValue) {
+    String value = prop.getProperty(inPropertyName);
+    return (value == null) ? inDefaultValue : Integer.parseInt(value.trim());
+  }
+
+  public static long getLongProperty(String inPropertyName,
+    long inDefaultValue) {
+    String value = prop.getProperty(inPropertyName);
+    return (value == null) ? inDefaultValue : Long.parseLong(value.trim());
+  }
+
   public static String getProperty(String inPropertyName, String inDefaultValue) {
     return prop.getProperty(inPropertyName, inDefaultValue);
   }
 
+  /**
+   * Checks a password by binding as the user on a pooled connection.
+   * An empty password is refused outright: LDAP treats a simple bind
+   * without one as anonymous, and would let it succeed.
+   */
   public static Boolean login(String inUsername, String inPasword) {
-    boolean auth = false;
-    Properties uProp = cloneProperties(prop);
-    uProp.setProperty(JNDI_PRINCIPAL, makeDn(inUsername));
-    uProp.setProperty(JNDI_CREDENTIALS, inPasword);
-    if (log.isDebugEnabled()) {
-      Enumeration e = uProp.elements();
-      while (e.hasMoreElements()) {
-        log.debug(e.nextElement());
-      }
+    if (inPasword == null || inPasword.length() == 0) {
+      return false;
     }
+    boolean auth = false;
     try {
-      InitialDirContext idc = new InitialDirContext(uProp);
-      auth = true;
-      idc.close();
-      uProp = null;
+      auth = getBindPool().authenticate(makeDn(inUsername), inPasword);
+      if (!auth) {
+        log.info("Bind failed for " + inUsername);
+      }
     } catch (NamingException e) {
       log.info("Bind failed: " + e);
     }
-
     return auth;
   }
 
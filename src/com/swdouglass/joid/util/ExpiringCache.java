@@ -0,0 +1,149 @@
+/*
+ * MODIFICATIONS to the original source have been made by
+ * Scott Douglass <scott@swdouglass.com>
+ *
+ * Copyright 2009 Scott Douglass <scott@swdouglass.com>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.swdouglass.joid.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded in-memory cache whose entries each expire at a given time.
+ * When full, the least recently used entry is dropped. Expired entries are
+ * dropped when they are next looked up, or by {@link #removeExpired(long)}.
+ * All methods are synchronized.
+ */
+public class ExpiringCache<K, V> {
+
+  private final LinkedHashMap<K, Item<V>> map;
+
+  /**
+   * Creates a cache.
+   *
+   * @param maxSize the maximum number of entries to keep.
+   */
+  public ExpiringCache(final int maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+    }
+    map = new LinkedHashMap<K, Item<V>>(16, 0.75f, true) {
+
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<K, Item<V>> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * Returns the cached value, or null if there is none or it has expired.
+   */
+  public V get(K key) {
+    return get(key, System.currentTimeMillis());
+  }
+
+  /**
+   * Returns the value cached at <code>now</code>.
+   *
+   * @param key the key.
+   * @param now the current time in milliseconds since the epoch.
+   * @return the value, or null if there is none or it has expired.
+   */
+  public synchronized V get(K key, long now) {
+    Item<V> e = map.get(key);
+    if (e == null) {
+      return null;
+    }
+    if (now >= e.expiresAt) {
+      map.remove(key);
+      return null;
+    }
+    return e.value;
+  }
+
+  /**
+   * Returns whether a live entry is cached for the key, which may be
+   * cached with a null value.
+   */
+  public synchronized boolean containsKey(K key, long now) {
+    Item<V> e = map.get(key);
+    if (e != null && now >= e.expiresAt) {
+      map.remove(key);
+      return false;
+    }
+    return e != null;
+  }
+
+  /**
+   * Caches a value until <code>expiresAt</code>, replacing any previous
+   * value for the key.
+   *
+   * @param key the key.
+   * @param value the value; may be null.
+   * @param expiresAt when the entry expires, in milliseconds since the
+   * epoch.
+   */
+  public synchronized void put(K key, V value, long expiresAt) {
+    map.put(key, new Item<V>(value, expiresAt));
+  }
+
+  /**
+   * Removes and returns the value cached for the key, if any.
+   */
+  public synchronized V remove(K key) {
+    Item<V> e = map.remove(key);
+    return (e == null) ? null : e.value;
+  }
+
+  /**
+   * Removes all entries that have expired at <code>now</code>.
+   *
+   * @return the number of entries removed.
+   */
+  public synchronized int removeExpired(long now) {
+    int n = 0;
+    for (Iterator<Item<V>> it = map.values().iterator(); it.hasNext();) {
+      if (now >= it.next().expiresAt) {
+        it.remove();
+        n++;
+      }
+    }
+    return n;
+  }
+
+  public synchronized int size() {
+    return map.size();
+  }
+
+  public synchronized void clear() {
+    map.clear();
+  }
+
+  private static class Item<V> {
+
+    final V value;
+    final long expiresAt;
+
+    Item(V value, long expiresAt) {
+      this.value = value;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
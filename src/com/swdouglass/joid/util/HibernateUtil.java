@@ -34,6 +34,7 @@ package com.swdouglass.joid.util;
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
 import org.hibernate.cfg.Configuration;
 
 /**
@@ -41,12 +42,16 @@ import org.hibernate.cfg.Configuration;
  *
  * Typical usecase:
  * <pre>
- * Session session = HibernateUtil.currentSession();
- * Transaction tx = session.beginTransaction();
- * ... do something with session ...
- * tx.commit();
- * HibernateUtil.closeSession();
+ * User user = HibernateUtil.execute(new HibernateUtil.Work&lt;User&gt;() {
+ *   public User run(Session session) {
+ *     ... do something with session ...
+ *   }
+ * });
  * </pre>
+ *
+ * The older thread-bound session, {@link #currentSession()} and
+ * {@link #closeSession()}, stays attached to the thread until it is
+ * explicitly closed.
  */
 public class HibernateUtil {
 
@@ -71,6 +76,47 @@ public class HibernateUtil {
   
   private static final ThreadLocal session = new ThreadLocal();
 
+  /**
+   * A unit of work run by {@link HibernateUtil#execute(Work)}.
+   */
+  public interface Work<T> {
+
+    T run(Session session) throws HibernateException;
+  }
+
+  /**
+   * Runs <code>work</code> in a session and transaction of its own. The
+   * transaction is committed if the work returns and rolled back if it
+   * throws; the session is closed either way, so nothing is left bound to
+   * the calling thread.
+   *
+   * @param work the work to run.
+   * @return what the work returned.
+   *
+   * @throws HibernateException if the Hibernate layer chokes.
+   */
+  public static <T> T execute(Work<T> work) throws HibernateException {
+    Session s = sessionFactory.openSession();
+    Transaction tx = null;
+    try {
+      tx = s.beginTransaction();
+      T result = work.run(s);
+      tx.commit();
+      return result;
+    } catch (RuntimeException e) {
+      if (tx != null && tx.isActive()) {
+        try {
+          tx.rollback();
+        } catch (RuntimeException ignored) {
+          // report the original failure
+        }
+      }
+      throw e;
+    } finally {
+      s.close();
+    }
+  }
+
   /**
    * Returns the current database session. Opens a new session, if this
    * thread has none yet.
@@ -0,0 +1,234 @@
+/*
+ * MODIFICATIONS to the original source have been made by
+ * Scott Douglass <scott@swdouglass.com>
+ *
+ * Copyright 2009 Scott Douglass <scott@swdouglass.com>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.swdouglass.joid.util;
+
+import java.io.IOException;
+import java.net.SocketException;
+import org.apache.commons.httpclient.DefaultHttpMethodRetryHandler;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpMethodRetryHandler;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.params.HttpMethodParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A thread safe HTTP client with a pool of keep-alive connections, shared
+ * by discovery and by the direct requests (associate, check_authentication)
+ * a consumer sends to OpenID providers.
+ *
+ * A new HttpClient per request opened a new TCP, and possibly TLS,
+ * connection for every message. The pool instead keeps connections to each
+ * host open between requests; idle ones are closed by a background daemon
+ * thread after {@link #DEFAULT_IDLE_TIMEOUT} milliseconds, and a GET on a
+ * connection the server closed anyway is retried on a new one. So is a
+ * POST marked with {@link #RETRY_SENT}.
+ *
+ * Callers must release each method they execute, normally in a
+ * <code>finally</code> block, so its connection returns to the pool.
+ */
+public class HttpTransport {
+
+  private final static Log log = LogFactory.getLog(HttpTransport.class);
+  /** Default maximum number of connections to one host. */
+  public static int DEFAULT_MAX_PER_HOST = 20;
+  /** Default maximum number of connections in the pool. */
+  public static int DEFAULT_MAX_TOTAL = 100;
+  /** Default connect timeout, in milliseconds. */
+  public static int DEFAULT_CONNECT_TIMEOUT = 15000;
+  /** Default read timeout, in milliseconds. */
+  public static int DEFAULT_READ_TIMEOUT = 15000;
+  /**
+   * Default time, in milliseconds, after which idle connections close. It is
+   * below the keep-alive timeout of common servers, so that connections are
+   * closed here before the server drops them.
+   */
+  public static long DEFAULT_IDLE_TIMEOUT = 4000;
+  /**
+   * Method parameter which, set to true, lets a POST be retried even after
+   * it was sent. Only for requests the server can safely receive twice.
+   */
+  public static final String RETRY_SENT = "com.swdouglass.joid.http.retrySent";
+  private static HttpTransport shared;
+
+  private final MultiThreadedHttpConnectionManager manager;
+  private final HttpClient client;
+  private final IdleConnectionTimeoutThread idleThread;
+
+  /**
+   * Creates a transport with the default settings.
+   */
+  public HttpTransport() {
+    this(DEFAULT_MAX_PER_HOST, DEFAULT_MAX_TOTAL, DEFAULT_CONNECT_TIMEOUT,
+      DEFAULT_READ_TIMEOUT, DEFAULT_IDLE_TIMEOUT);
+  }
+
+  /**
+   * Creates a transport.
+   *
+   * @param maxPerHost maximum number of connections to one host.
+   * @param maxTotal maximum number of connections in the pool.
+   * @param connectTimeout connect timeout in milliseconds. Also bounds the
+   * wait for a free connection when the pool is exhausted.
+   * @param readTimeout read timeout in milliseconds.
+   * @param idleTimeout milliseconds after which idle connections are closed.
+   */
+  public HttpTransport(int maxPerHost, int maxTotal, int connectTimeout,
+    int readTimeout, long idleTimeout) {
+    manager = new MultiThreadedHttpConnectionManager();
+    HttpConnectionManagerParams params = manager.getParams();
+    params.setDefaultMaxConnectionsPerHost(maxPerHost);
+    params.setMaxTotalConnections(maxTotal);
+    params.setConnectionTimeout(connectTimeout);
+    params.setSoTimeout(readTimeout);
+    // the stale check blocks for a millisecond on every request; a request
+    // on a connection the server has dropped fails without a response and
+    // is retried on a new connection instead
+    params.setStaleCheckingEnabled(false);
+    // requests are small and answered at once; don't wait to coalesce them
+    params.setTcpNoDelay(true);
+    client = new HttpClient(manager);
+    client.getParams().setSoTimeout(readTimeout);
+    client.getParams().setConnectionManagerTimeout(connectTimeout);
+    client.getParams().setParameter(HttpMethodParams.RETRY_HANDLER,
+      new RetryHandler());
+    idleThread = new IdleConnectionTimeoutThread();
+    idleThread.setName("joid-http-idle");
+    idleThread.setConnectionTimeout(idleTimeout);
+    idleThread.setTimeoutInterval(Math.max(250, idleTimeout / 4));
+    idleThread.addConnectionManager(manager);
+    idleThread.start();
+  }
+
+  /**
+   * Returns the transport shared by discovery and
+   * {@link com.swdouglass.joid.MessageFactory#send}, creating it with the
+   * default settings on first use.
+   *
+   * @return the shared transport.
+   */
+  public static synchronized HttpTransport getDefault() {
+    if (shared == null) {
+      shared = new HttpTransport();
+    }
+    return shared;
+  }
+
+  /**
+   * Replaces the shared transport. The previous one is shut down.
+   *
+   * @param transport the new shared transport.
+   */
+  public static synchronized void setDefault(HttpTransport transport) {
+    if (shared != null && shared != transport) {
+      shared.shutdown();
+    }
+    shared = transport;
+  }
+
+  /**
+   * Shuts down the shared transport, if one was created.
+   */
+  public static synchronized void shutdownDefault() {
+    if (shared != null) {
+      shared.shutdown();
+      shared = null;
+    }
+  }
+
+  /**
+   * Sends all requests through an HTTP proxy.
+   *
+   * @param host the proxy host, or null for direct connections.
+   * @param port the proxy port.
+   */
+  public void setProxy(String host, int port) {
+    if (host == null) {
+      client.getHostConfiguration().setProxyHost(null);
+    } else {
+      client.getHostConfiguration().setProxy(host, port);
+    }
+  }
+
+  /**
+   * Executes a method on a pooled connection. The caller must call
+   * <code>releaseConnection()</code> on the method when done with the
+   * response.
+   *
+   * @param method the method to execute.
+   * @return the HTTP status code.
+   * @throws IOException if the request fails.
+   */
+  public int execute(HttpMethod method) throws IOException {
+    return client.executeMethod(method);
+  }
+
+  /**
+   * Returns the number of pooled connections, idle or in use.
+   *
+   * @return the number of connections.
+   */
+  public int getConnectionsInPool() {
+    return manager.getConnectionsInPool();
+  }
+
+  /**
+   * Closes all connections and stops the idle connection thread.
+   */
+  public void shutdown() {
+    idleThread.shutdown();
+    manager.shutdown();
+    log.debug("HTTP transport shut down");
+  }
+
+  /**
+   * Also retries, once, a GET whose connection was reset after it was
+   * sent: without the stale check that is how a pooled connection the
+   * server had already closed shows up. A POST that was sent is not
+   * retried unless marked with {@link #RETRY_SENT}, since the server may
+   * have acted on it already, for example recorded the nonce of a
+   * check_authentication.
+   */
+  private static class RetryHandler implements HttpMethodRetryHandler {
+
+    private final HttpMethodRetryHandler defaults =
+      new DefaultHttpMethodRetryHandler();
+
+    public boolean retryMethod(HttpMethod method, IOException e,
+      int executionCount) {
+      boolean idempotent = "GET".equals(method.getName())
+        || "HEAD".equals(method.getName())
+        || method.getParams().getBooleanParameter(RETRY_SENT, false);
+      if (method.isRequestSent() && !idempotent) {
+        return false;
+      }
+      if (defaults.retryMethod(method, e, executionCount)) {
+        return true;
+      }
+      if (executionCount == 1 && e instanceof SocketException) {
+        log.debug("Retrying after " + e.getMessage() + ": " + method.getPath());
+        return true;
+      }
+      return false;
+    }
+  }
+}
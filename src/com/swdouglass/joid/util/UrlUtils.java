@@ -80,4 +80,47 @@ public class UrlUtils {
     start.append(port);
     return start.toString();
   }
+
+  /**
+   * Normalizes an OpenID identifier URL so that equivalent forms compare
+   * equal: adds "http://" if there is no scheme, lowercases the scheme and
+   * host, drops a default port and the fragment, and makes an empty path
+   * "/". The rest of the path and the query are left as they are.
+   *
+   * @param identifier the identifier; may be null.
+   * @return the normalized identifier, or null for null.
+   */
+  public static String normalizeIdentifier(String identifier) {
+    if (identifier == null) {
+      return null;
+    }
+    String s = identifier.trim();
+    int hash = s.indexOf('#');
+    if (hash >= 0) {
+      s = s.substring(0, hash);
+    }
+    int colon = s.indexOf("://");
+    if (colon < 0) {
+      s = "http://" + s;
+      colon = 4;
+    }
+    String scheme = s.substring(0, colon).toLowerCase();
+    int start = colon + 3;
+    int end = start;
+    while (end < s.length() && "/?".indexOf(s.charAt(end)) < 0) {
+      end++;
+    }
+    String host = s.substring(start, end).toLowerCase();
+    if (("http".equals(scheme) && host.endsWith(":80"))
+      || ("https".equals(scheme) && host.endsWith(":443"))) {
+      host = host.substring(0, host.lastIndexOf(':'));
+    }
+    StringBuilder b = new StringBuilder(s.length() + 1);
+    b.append(scheme).append("://").append(host);
+    if (end == s.length() || s.charAt(end) != '/') {
+      b.append('/');
+    }
+    b.append(s, end, s.length());
+    return b.toString();
+  }
 }
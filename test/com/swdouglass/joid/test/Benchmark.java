@@ -0,0 +1,109 @@
+/*
+ * MODIFICATIONS to the original source have been made by
+ * Scott Douglass <scott@swdouglass.com>
+ *
+ * Copyright 2009 Scott Douglass <scott@swdouglass.com>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.swdouglass.joid.test;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A minimal timing harness for the micro benchmarks in this package. Each
+ * task is warmed up, then timed over a number of rounds; the best round is
+ * reported, which is the least disturbed by GC and JIT activity.
+ */
+public class Benchmark {
+
+  /** A unit of work to time. The result is kept so it is not optimized away. */
+  public interface Task {
+    Object run() throws Exception;
+  }
+
+  private int warmup;
+  private int rounds;
+  private int iterations;
+  private volatile Object sink;
+
+  public Benchmark(int warmup, int rounds, int iterations) {
+    this.warmup = warmup;
+    this.rounds = rounds;
+    this.iterations = iterations;
+  }
+
+  /**
+   * Times a task and prints the best time per operation.
+   *
+   * @return the best time per operation, in nanoseconds.
+   */
+  public double time(String name, Task task) throws Exception {
+    for (int i = 0; i < warmup; i++) {
+      sink = task.run();
+    }
+    long best = Long.MAX_VALUE;
+    for (int r = 0; r < rounds; r++) {
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        sink = task.run();
+      }
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    double nsPerOp = (double) best / iterations;
+    System.out.println(String.format("%-40s %12.1f ns/op", name, nsPerOp));
+    return nsPerOp;
+  }
+
+  /**
+   * Runs a task on a number of threads at once and prints the combined
+   * throughput of the best round.
+   *
+   * @return the best throughput, in operations per second.
+   */
+  public double throughput(String name, int threads, final Task task)
+    throws Exception {
+    time(name + " (warmup)", task);
+    long best = Long.MAX_VALUE;
+    for (int r = 0; r < rounds; r++) {
+      final CountDownLatch start = new CountDownLatch(1);
+      final CountDownLatch done = new CountDownLatch(threads);
+      for (int t = 0; t < threads; t++) {
+        new Thread() {
+
+          @Override
+          public void run() {
+            try {
+              start.await();
+              for (int i = 0; i < iterations; i++) {
+                sink = task.run();
+              }
+            } catch (Exception e) {
+              e.printStackTrace();
+            } finally {
+              done.countDown();
+            }
+          }
+        }.start();
+      }
+      long begin = System.nanoTime();
+      start.countDown();
+      done.await();
+      best = Math.min(best, System.nanoTime() - begin);
+    }
+    double opsPerSec = (double) threads * iterations * 1e9 / best;
+    System.out.println(String.format("%-40s %12.0f ops/s", name + " x" + threads,
+      opsPerSec));
+    return opsPerSec;
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * MODIFICATIONS to the original source have been made by
+ * Scott Douglass <scott@swdouglass.com>
+ *
+ * Copyright 2009 Scott Douglass <scott@swdouglass.com>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.swdouglass.joid.test;
+
+import com.swdouglass.joid.AssociationRequest;
+import com.swdouglass.joid.AssociationResponse;
+import com.swdouglass.joid.Crypto;
+import com.swdouglass.joid.DiffieHellman;
+import com.swdouglass.joid.ServerInfo;
+import com.swdouglass.joid.Store;
+import com.swdouglass.joid.consumer.ConsumerAssociation;
+import com.swdouglass.joid.store.MemoryStoreImpl;
+import java.math.BigInteger;
+
+/**
+ * Compares the consumer's per-response cost of getting the MAC key: the
+ * Diffie-Hellman decryption JoidConsumer used to repeat for every response,
+ * against the key decrypted once by {@link ConsumerAssociation}, each
+ * followed by the HMAC of a typical signed list. Run with
+ * <code>java com.swdouglass.joid.test.ConsumerVerifyBenchmark</code>.
+ */
+public class ConsumerVerifyBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    final Crypto crypto = new Crypto();
+    Store store = Store.getInstance(MemoryStoreImpl.class.getName());
+    ServerInfo server = new ServerInfo("http://example.com", store, crypto);
+
+    final DiffieHellman dh = DiffieHellman.getDefault();
+    final AssociationResponse resp = (AssociationResponse) AssociationRequest.
+      create(dh).processUsing(server);
+    final ConsumerAssociation a = new ConsumerAssociation("http://example.com",
+      resp, dh, System.currentTimeMillis());
+
+    // what authenticate() decoded from the association Properties
+    final String privateKey = Crypto.convertToString(dh.getPrivateKey());
+    final String modulus = Crypto.convertToString(DiffieHellman.DEFAULT_MODULUS);
+    final String serverPublic = Crypto.convertToString(resp.getDhServerPublic());
+    final String encryptedKey = Crypto.convertToString(resp.getEncryptedMacKey());
+    final byte[] signed = ("ns:http://specs.openid.net/auth/2.0\n"
+      + "mode:id_res\nop_endpoint:http://example.com\n"
+      + "claimed_id:http://example.com/user/bob\n"
+      + "identity:http://example.com/user/bob\n"
+      + "return_to:http://rp.example.com/return\n"
+      + "response_nonce:2009-01-01T00:00:00ZUNIQUE\n"
+      + "assoc_handle:" + a.getHandle() + "\n").getBytes("UTF-8");
+
+    Benchmark b = new Benchmark(200, 5, 1000);
+    b.time("decrypt per response + HMAC", new Benchmark.Task() {
+      public Object run() throws Exception {
+        BigInteger priv = Crypto.convertToBigIntegerFromString(privateKey);
+        BigInteger mod = Crypto.convertToBigIntegerFromString(modulus);
+        BigInteger pub = Crypto.convertToBigIntegerFromString(serverPublic);
+        byte[] key = crypto.decryptSecret(DiffieHellman.recreate(priv, mod),
+          pub, Crypto.convertToBytes(encryptedKey));
+        return Crypto.hmacSha1(key, signed);
+      }
+    });
+    b.time("cached key + HMAC", new Benchmark.Task() {
+      public Object run() throws Exception {
+        return Crypto.hmacSha1(a.getMacKey(), signed);
+      }
+    });
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * MODIFICATIONS to the original source have been made by
+ * Scott Douglass <scott@swdouglass.com>
+ *
+ * Copyright 2009 Scott Douglass <scott@swdouglass.com>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.swdouglass.joid.test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.swdouglass.joid.AuthenticationRequest;
+import com.swdouglass.joid.AuthenticationResponse;
+import com.swdouglass.joid.CheckAuthenticationRequest;
+import com.swdouglass.joid.Crypto;
+import com.swdouglass.joid.MessageFactory;
+import com.swdouglass.joid.ServerInfo;
+import com.swdouglass.joid.Store;
+import com.swdouglass.joid.store.MemoryStoreImpl;
+import com.swdouglass.joid.util.HttpTransport;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.SimpleHttpConnectionManager;
+import org.apache.commons.httpclient.methods.PostMethod;
+
+/**
+ * Compares a check_authentication round trip to a local stub provider sent
+ * with a new HttpClient per request, as MessageFactory.send used to, against
+ * the pooled keep-alive connections of the shared {@link HttpTransport}.
+ * The stub answers every request with the same canned response, so the
+ * difference is the cost of the connection. Run with
+ * <code>java com.swdouglass.joid.test.HttpTransportBenchmark</code>.
+ */
+public class HttpTransportBenchmark {
+
+  private static final byte[] CANNED = ("ns:http://specs.openid.net/auth/2.0\n"
+    + "is_valid:true\n").getBytes();
+
+  public static void main(String[] args) throws Exception {
+    // otherwise Nagle's algorithm delays every response on a kept-alive
+    // connection by the client's delayed ACK
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+    HttpServer server = HttpServer.create(
+      new InetSocketAddress("127.0.0.1", 0), 64);
+    server.createContext("/server", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        byte[] buf = new byte[4096];
+        while (in.read(buf) != -1) {
+          // drain the request
+        }
+        exchange.getResponseHeaders().set("Content-Type", "text/plain");
+        exchange.sendResponseHeaders(200, CANNED.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(CANNED);
+        out.close();
+      }
+    });
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    server.setExecutor(executor);
+    server.start();
+    final String dest = "http://127.0.0.1:" + server.getAddress().getPort()
+      + "/server";
+
+    // a realistic check_authentication request, from a dumb mode response
+    Store store = Store.getInstance(MemoryStoreImpl.class.getName());
+    ServerInfo op = new ServerInfo("http://example.com", store, new Crypto());
+    AuthenticationRequest areq = (AuthenticationRequest) MessageFactory.
+      parseRequest("openid.identity=http%3A%2F%2Fexample.com%2Fuser%2Fbob"
+      + "&openid.ns=http%3A%2F%2Fspecs.openid.net%2Fauth%2F2.0"
+      + "&openid.mode=checkid_setup"
+      + "&openid.return_to=http%3A%2F%2Frp.example.com%2Freturn");
+    AuthenticationResponse aresp =
+      (AuthenticationResponse) areq.processUsing(op);
+    final CheckAuthenticationRequest check = new CheckAuthenticationRequest(
+      aresp.toMap(), "check_authentication");
+
+    final HttpTransport transport = new HttpTransport();
+    try {
+      Benchmark b = new Benchmark(200, 5, 500);
+      b.time("new HttpClient per request", new Benchmark.Task() {
+        public Object run() throws Exception {
+          return sendWithNewClient(check.toMap(), dest);
+        }
+      });
+      b.time("shared HttpTransport", new Benchmark.Task() {
+        public Object run() throws Exception {
+          return MessageFactory.send(check, dest, transport);
+        }
+      });
+      b.throughput("new HttpClient per request", 8, new Benchmark.Task() {
+        public Object run() throws Exception {
+          return sendWithNewClient(check.toMap(), dest);
+        }
+      });
+      b.throughput("shared HttpTransport", 8, new Benchmark.Task() {
+        public Object run() throws Exception {
+          return MessageFactory.send(check, dest, transport);
+        }
+      });
+      System.out.println("pooled connections: "
+        + transport.getConnectionsInPool());
+    } finally {
+      transport.shutdown();
+      server.stop(0);
+      executor.shutdown();
+    }
+  }
+
+  /** What MessageFactory.send did before the shared transport. */
+  private static Object sendWithNewClient(Map<String, String> params,
+    String dest) throws Exception {
+    HttpClient client = new HttpClient();
+    PostMethod post = new PostMethod(dest);
+    for (Map.Entry<String, String> param : params.entrySet()) {
+      post.addParameter(param.getKey(), param.getValue());
+    }
+    client.executeMethod(post);
+    StringBuilder b = new StringBuilder();
+    BufferedReader in = new BufferedReader(new InputStreamReader(
+      post.getResponseBodyAsStream()));
+    try {
+      String str;
+      while ((str = in.readLine()) != null) {
+        b.append(str).append('\n');
+      }
+    } finally {
+      in.close();
+      // the old code left the socket to the garbage collector; close it so
+      // the stub is not left with thousands of open connections
+      ((SimpleHttpConnectionManager) client.getHttpConnectionManager())
+        .shutdown();
+    }
+    return MessageFactory.parseResponse(b.toString());
+  }
+}
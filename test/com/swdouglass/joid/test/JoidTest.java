@@ -39,35 +39,103 @@ import com.swdouglass.joid.CheckAuthenticationRequest;
 import com.swdouglass.joid.CheckAuthenticationResponse;
 import com.swdouglass.joid.Crypto;
 import com.swdouglass.joid.DiffieHellman;
+import com.swdouglass.joid.DiffieHellmanPool;
+import com.swdouglass.joid.KeyRing;
 import com.swdouglass.joid.MessageParser;
+import com.swdouglass.joid.Nonce;
+import com.swdouglass.joid.NonceWindow;
 import com.swdouglass.joid.OpenId;
 import com.swdouglass.joid.OpenIdException;
+import com.swdouglass.joid.RandomSource;
 import com.swdouglass.joid.Request;
 import com.swdouglass.joid.Response;
 import com.swdouglass.joid.MessageFactory;
 import com.swdouglass.joid.ServerInfo;
 import com.swdouglass.joid.extension.SimpleRegistration;
 import com.swdouglass.joid.Store;
+import com.swdouglass.joid.StoreSweeper;
 import com.swdouglass.joid.extension.PapeRequest;
+import com.swdouglass.joid.consumer.AssociationCache;
+import com.swdouglass.joid.consumer.AssociationRefresher;
+import com.swdouglass.joid.consumer.AuthenticationResult;
+import com.swdouglass.joid.consumer.ConsumerAssociation;
+import com.swdouglass.joid.consumer.Discoverer;
+import com.swdouglass.joid.consumer.DiscoveryCache;
+import com.swdouglass.joid.consumer.JoidConsumer;
+import com.swdouglass.joid.consumer.ServerAndDelegate;
+import com.swdouglass.joid.consumer.XRDSDocument;
+import com.swdouglass.joid.consumer.XRDSParser;
+import com.swdouglass.joid.consumer.XRDSService;
 import com.swdouglass.joid.extension.PapeResponse;
+import com.swdouglass.joid.server.DirectoryUserManagerImpl;
+import com.swdouglass.joid.server.MemoryUserManagerImpl;
+import com.swdouglass.joid.server.User;
 import com.swdouglass.joid.Association;
+import com.swdouglass.joid.store.DirectoryAttributeStoreImpl;
+import com.swdouglass.joid.store.DirectoryStoreImpl;
 import com.swdouglass.joid.store.MemoryStoreImpl;
+import com.swdouglass.joid.util.DirContextPool;
+import com.swdouglass.joid.util.DirectoryUtil;
+import com.swdouglass.joid.util.ExpiringCache;
+import com.swdouglass.joid.util.HttpTransport;
+import com.swdouglass.joid.util.UrlUtils;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TimeZone;
 import java.util.regex.Matcher;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
+import javax.naming.AuthenticationException;
+import javax.naming.CommunicationException;
+import javax.naming.Context;
+import javax.naming.NameAlreadyBoundException;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.SizeLimitExceededException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapContext;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -175,6 +243,77 @@ public class JoidTest {
     assertTrue(((String) map.get("baz")).equals("qux"));
   }
 
+  @Test
+  public void testUrlToMapDecoding() throws Exception {
+    Map map = MessageParser.urlEncodedToMap(
+      "a+b=c+d%20e&enc=%7BHMAC-SHA1%7D&utf=caf%C3%A9%21&empty=&=nokey&eq=x%3D=y");
+    assertEquals(4, map.size());
+    assertEquals("c d e", map.get("a b"));
+    assertEquals("{HMAC-SHA1}", map.get("enc"));
+    assertEquals("caf\u00e9!", map.get("utf"));
+    assertEquals("x==y", map.get("eq"));
+    assertFalse(map.containsKey("empty"));
+
+    // every sample parses the same as with the JDK decoder
+    String[] files = {"2", "3b", "3bv1", "3c", "5", "sreg"};
+    for (String f : files) {
+      String s = Utils.readFileAsString("test/data/" + f + ".txt");
+      map = MessageParser.urlEncodedToMap(s);
+      assertTrue(map.size() > 0);
+      for (String pair : s.split("[?&;]")) {
+        int n = pair.indexOf('=');
+        if (n > 0 && n < pair.length() - 1) {
+          assertEquals(URLDecoder.decode(pair.substring(n + 1), "UTF-8"),
+            map.get(URLDecoder.decode(pair.substring(0, n), "UTF-8")));
+        }
+      }
+    }
+
+    try {
+      MessageParser.urlEncodedToMap("a=b%2");
+      fail("Should have thrown");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void testParseResponseForms() throws Exception {
+    Response resp = MessageFactory.parseResponse(
+      "is_valid:true\r\nns:http://specs.openid.net/auth/2.0\r\n");
+    assertTrue(resp instanceof CheckAuthenticationResponse);
+    assertTrue(((CheckAuthenticationResponse) resp).isValid());
+
+    resp = MessageFactory.parseResponse(
+      "is_valid=true&ns=http%3A%2F%2Fspecs.openid.net%2Fauth%2F2.0");
+    assertTrue(resp instanceof CheckAuthenticationResponse);
+    assertTrue(((CheckAuthenticationResponse) resp).isValid());
+  }
+
+  @Test
+  public void testWriteUrlString() throws Exception {
+    String returnTo = "http://example.com/r?a=b c&d=caf\u00e9 \ud834\udd1e~*";
+    String s = "openid.mode=checkid_setup&openid.identity=http%3A%2F%2Fa.b"
+      + "&openid.return_to=" + URLEncoder.encode(returnTo, "UTF-8")
+      + "&openid.trust_root=http%3A%2F%2Fexample.com%2F&openid.assoc_handle=h";
+    AuthenticationRequest req = (AuthenticationRequest) MessageFactory.parseRequest(s);
+    assertEquals(returnTo, req.getReturnTo());
+
+    String url = req.toUrlString();
+    StringBuilder sb = new StringBuilder("http://op/?");
+    req.writeUrlString(sb);
+    assertEquals("http://op/?" + url, sb.toString());
+    Map<String, String> map = req.toMap();
+    for (Map.Entry<String, String> e : map.entrySet()) {
+      assertTrue(url.contains(URLEncoder.encode(e.getKey(), "UTF-8") + "="
+        + URLEncoder.encode(e.getValue(), "UTF-8")));
+    }
+    assertEquals(map, MessageParser.urlEncodedToMap(url));
+
+    sb = new StringBuilder();
+    req.writePostString(sb);
+    assertEquals(req.toPostString(), sb.toString());
+  }
+
   @Test
   public void testAssociationLifeLength() throws Exception {
     Association a = new Association();
@@ -185,6 +324,1164 @@ public class JoidTest {
     assertTrue(a.hasExpired());
   }
 
+  @Test
+  public void testStoreFindAndDeleteAssociation() throws Exception {
+    Association a = new Association();
+    a.setHandle(Crypto.generateHandle());
+    a.setIssuedDate(new Date());
+    a.setLifetime(new Long(1));
+    store.saveAssociation(a);
+    assertSame(a, store.findAssociation(a.getHandle()));
+    assertFalse(a.hasExpired(a.getExpiresAt()));
+    assertTrue(a.hasExpired(a.getExpiresAt() + 1));
+    store.deleteAssociation(a);
+    assertNull(store.findAssociation(a.getHandle()));
+    assertNull(store.findAssociation(null));
+  }
+
+  @Test
+  public void testStoreSweeper() throws Exception {
+    Store s = new MemoryStoreImpl();
+    for (int i = 0; i < 5; i++) {
+      Association a = new Association();
+      a.setHandle("sweep-" + i);
+      a.setIssuedDate(new Date(System.currentTimeMillis() - 20000));
+      a.setLifetime(new Long(10));
+      s.saveAssociation(a);
+    }
+    assertEquals(2, s.deleteExpired(System.currentTimeMillis(), 2));
+
+    StoreSweeper sweeper = new StoreSweeper(s, 2);
+    assertTrue(sweeper.sweep() >= 3);
+    assertNull(s.findAssociation("sweep-4"));
+    assertEquals(1, sweeper.getSweeps());
+    assertEquals(sweeper.getLastRemoved(), sweeper.getTotalRemoved());
+    assertTrue(sweeper.getLastSweep() > 0);
+    assertEquals(0, sweeper.sweep());
+
+    // saving started the default sweeper, which an explicit one replaces
+    assertNotNull(new MemoryStoreImpl().getSweeper());
+    sweeper = s.startSweeper(3600, 10);
+    assertSame(sweeper, s.getSweeper());
+    assertNull(new MemoryStoreImpl().getSweeper());
+    s.stopSweeper();
+    assertNull(s.getSweeper());
+  }
+
+  @Test
+  public void testExpiringCache() throws Exception {
+    ExpiringCache<String, String> cache = new ExpiringCache<String, String>(2);
+    cache.put("a", "1", 1000);
+    cache.put("b", "2", 2000);
+    assertEquals("1", cache.get("a", 999));
+    assertNull(cache.get("a", 1000));
+    assertEquals(1, cache.size());
+
+    // "b" is the least recently used once "a" is read again
+    cache.put("a", "1", 3000);
+    cache.get("a", 0);
+    cache.put("c", null, 3000);
+    assertNull(cache.get("b", 0));
+    assertTrue(cache.containsKey("c", 0));
+    assertFalse(cache.containsKey("c", 3000));
+
+    assertEquals(1, cache.size());
+    assertEquals(1, cache.removeExpired(3000));
+    assertEquals(0, cache.size());
+  }
+
+  /**
+   * Hands out stub contexts whose operations fail with a connection error
+   * once the pool is marked dead, and whose binds fail for a password of
+   * "bad".
+   */
+  private static class StubPool extends DirContextPool {
+
+    int created;
+    int closed;
+    int dead;
+    Object mechanism;
+    Object boundWith;
+
+    StubPool(long validateAfter) {
+      this(new Hashtable<String, String>(), validateAfter);
+    }
+
+    StubPool(Hashtable<?, ?> environment, long validateAfter) {
+      super("stub", environment, 1, 50, validateAfter);
+    }
+
+    @Override
+    protected LdapContext create() throws NamingException {
+      final int generation = dead;
+      created++;
+      return (LdapContext) Proxy.newProxyInstance(
+        LdapContext.class.getClassLoader(), new Class[]{LdapContext.class},
+        new InvocationHandler() {
+
+          private Object credentials;
+
+          @Override
+          public Object invoke(Object proxy, Method m, Object[] args)
+            throws Throwable {
+            String name = m.getName();
+            if (name.equals("close")) {
+              closed++;
+            } else if (generation != dead) {
+              throw new CommunicationException("connection reset");
+            } else if (name.equals("lookup")) {
+              return "found " + args[0];
+            } else if (name.equals("reconnect")
+              && "bad".equals(credentials)) {
+              throw new AuthenticationException("invalid credentials");
+            } else if (name.equals("reconnect")) {
+              boundWith = mechanism;
+            } else if (name.equals("addToEnvironment")
+              && Context.SECURITY_AUTHENTICATION.equals(args[0])) {
+              mechanism = args[1];
+            } else if (name.equals("addToEnvironment")
+              && Context.SECURITY_CREDENTIALS.equals(args[0])) {
+              credentials = args[1];
+            } else if (name.equals("hashCode")) {
+              return System.identityHashCode(proxy);
+            } else if (name.equals("equals")) {
+              return proxy == args[0];
+            }
+            return null;
+          }
+        });
+    }
+  }
+
+  @Test
+  public void testDirContextPool() throws Exception {
+    final StubPool pool = new StubPool(0);
+    DirContextPool.Work<Object> lookup = new DirContextPool.Work<Object>() {
+
+      @Override
+      public Object run(LdapContext ctx) throws NamingException {
+        return ctx.lookup("cn=a");
+      }
+    };
+    assertEquals("found cn=a", pool.execute(lookup));
+    assertEquals("found cn=a", pool.execute(lookup));
+    assertEquals(1, pool.created);
+    assertEquals(1, pool.getIdle());
+    assertEquals(0, pool.getActive());
+
+    // the only connection is in use, so a second borrower gives up
+    Object nested = pool.execute(new DirContextPool.Work<Object>() {
+
+      @Override
+      public Object run(LdapContext ctx) throws NamingException {
+        assertEquals(1, pool.getActive());
+        try {
+          pool.execute(this);
+          return "borrowed twice";
+        } catch (ServiceUnavailableException e) {
+          return "timed out";
+        }
+      }
+    });
+    assertEquals("timed out", nested);
+
+    // an idle connection that fails validation is replaced
+    pool.dead++;
+    assertEquals("found cn=a", pool.execute(lookup));
+    assertEquals(2, pool.created);
+    assertEquals(1, pool.closed);
+
+    // without validation, the work is retried on a fresh connection
+    StubPool unchecked = new StubPool(Long.MAX_VALUE);
+    unchecked.execute(lookup);
+    unchecked.dead++;
+    assertEquals("found cn=a", unchecked.execute(lookup));
+    assertEquals(2, unchecked.created);
+    assertEquals(0, unchecked.getActive());
+
+    assertTrue(pool.authenticate("uid=a", "good"));
+    assertFalse(pool.authenticate("uid=a", "bad"));
+    assertEquals(2, pool.created);
+
+    pool.close();
+    assertEquals(0, pool.getIdle());
+    assertEquals(2, pool.closed);
+  }
+
+  @Test
+  public void testBindPoolAuthenticatesWithCredentials() throws Exception {
+    Hashtable<?, ?> env = DirectoryUtil.getBindPool().getEnvironment();
+    // connections are opened anonymously...
+    assertEquals("none", env.get(Context.SECURITY_AUTHENTICATION));
+    StubPool pool = new StubPool(env, 0);
+    assertTrue(pool.authenticate("uid=a", "good"));
+    // ...but a "none" rebind would ignore the password
+    assertEquals("simple", pool.boundWith);
+    assertFalse(pool.authenticate("uid=a", "bad"));
+
+    Hashtable<String, String> digest = new Hashtable<String, String>();
+    digest.put(Context.SECURITY_AUTHENTICATION, "none");
+    digest.put(DirContextPool.BIND_AUTHENTICATION, "DIGEST-MD5");
+    pool = new StubPool(digest, 0);
+    assertTrue(pool.authenticate("uid=a", "good"));
+    assertEquals("DIGEST-MD5", pool.boundWith);
+  }
+
+  /**
+   * A pool whose contexts share one in-memory directory, enough for the
+   * directory stores: entries are keyed by the name they are bound under,
+   * and searches understand a single less-or-equal filter.
+   */
+  private static class StubDirectory extends DirContextPool {
+
+    final Map<String, Attributes> entries =
+      new LinkedHashMap<String, Attributes>();
+    final Map<String, Object> objects = new HashMap<String, Object>();
+    int searches;
+
+    StubDirectory() {
+      super("stub", new Hashtable<String, String>(), 1, 50, Long.MAX_VALUE);
+    }
+
+    @Override
+    protected LdapContext create() throws NamingException {
+      return (LdapContext) Proxy.newProxyInstance(
+        LdapContext.class.getClassLoader(), new Class[]{LdapContext.class},
+        new InvocationHandler() {
+
+          @Override
+          public Object invoke(Object proxy, Method m, Object[] args)
+            throws Throwable {
+            String name = m.getName();
+            if (name.equals("createSubcontext")) {
+              return proxy;
+            } else if (name.equals("bind")) {
+              if (entries.containsKey(args[0])) {
+                throw new NameAlreadyBoundException((String) args[0]);
+              }
+              entries.put((String) args[0], (Attributes) args[2]);
+              objects.put((String) args[0], args[1]);
+            } else if (name.equals("unbind")) {
+              entries.remove(args[0]);
+              objects.remove(args[0]);
+            } else if (name.equals("lookup")) {
+              if (!entries.containsKey(args[0])) {
+                throw new NameNotFoundException((String) args[0]);
+              }
+              return objects.get(args[0]);
+            } else if (name.equals("getAttributes")) {
+              Attributes attrs = entries.get(args[0]);
+              if (attrs == null) {
+                throw new NameNotFoundException((String) args[0]);
+              }
+              Attributes result = new BasicAttributes(true);
+              for (String id : (String[]) args[1]) {
+                if (attrs.get(id) != null) {
+                  result.put(attrs.get(id));
+                }
+              }
+              return result;
+            } else if (name.equals("search")) {
+              return search((String) args[0], (String) args[1],
+                (Object[]) args[2], (SearchControls) args[3]);
+            } else if (name.equals("hashCode")) {
+              return System.identityHashCode(proxy);
+            } else if (name.equals("equals")) {
+              return proxy == args[0];
+            }
+            return null;
+          }
+        });
+    }
+
+    private NamingEnumeration<SearchResult> search(String context,
+      String filter, Object[] args, SearchControls ctls) {
+      searches++;
+      Matcher m = Pattern.compile("\\((\\w+)<=\\{0\\}\\)").matcher(filter);
+      assertTrue(filter, m.matches());
+      long max = Long.parseLong((String) args[0]);
+      final List<SearchResult> results = new ArrayList<SearchResult>();
+      for (Map.Entry<String, Attributes> e : entries.entrySet()) {
+        Attribute attr = e.getValue().get(m.group(1));
+        try {
+          if (e.getKey().endsWith("," + context) && attr != null
+            && Long.parseLong((String) attr.get()) <= max) {
+            String rdn = e.getKey().substring(0,
+              e.getKey().length() - context.length() - 1);
+            results.add(new SearchResult(rdn, null, new BasicAttributes()));
+          }
+        } catch (NamingException ex) {
+          throw new IllegalStateException(ex);
+        }
+      }
+      final long limit = ctls.getCountLimit();
+      return new NamingEnumeration<SearchResult>() {
+
+        int i;
+
+        @Override
+        public boolean hasMore() throws NamingException {
+          if (i < results.size() && i == limit) {
+            throw new SizeLimitExceededException();
+          }
+          return i < results.size();
+        }
+
+        @Override
+        public SearchResult next() throws NamingException {
+          return results.get(i++);
+        }
+
+        @Override
+        public boolean hasMoreElements() {
+          return i < results.size();
+        }
+
+        @Override
+        public SearchResult nextElement() {
+          return results.get(i++);
+        }
+
+        @Override
+        public void close() {
+        }
+      };
+    }
+  }
+
+  @Test
+  public void testDirectoryAttributeStore() throws Exception {
+    StubDirectory directory = new StubDirectory();
+    Store s = new DirectoryAttributeStoreImpl(directory) {
+    };
+    long now = System.currentTimeMillis();
+    Association a = new Association();
+    a.setHandle("a+b=c,d");
+    a.setSecret("c2VjcmV0");
+    a.setIssuedDate(new Date(now - 20000));
+    a.setLifetime(new Long(10));
+    a.setAssociationType(AssociationRequest.HMAC_SHA256);
+    a.setSessionType(AssociationRequest.DH_SHA256);
+    s.saveAssociation(a);
+
+    // each property is an attribute, and the handle is escaped in the name
+    Attributes attrs = directory.entries.get(
+      "cn=a\\+b\\=c\\,d,ou=association,ou=openid");
+    assertEquals("joidAssociation", attrs.get("objectClass").get());
+    assertEquals("a+b=c,d", attrs.get("cn").get());
+    assertEquals("c2VjcmV0", attrs.get("joidSecret").get());
+    assertEquals(Long.toString(now - 20000), attrs.get("joidIssuedAt").get());
+    assertEquals("10", attrs.get("joidLifetime").get());
+    assertEquals(Long.toString(now - 10000), attrs.get("joidExpiresAt").get());
+    assertEquals(AssociationRequest.HMAC_SHA256,
+      attrs.get("joidAssociationType").get());
+
+    // another instance has to read it back from the directory
+    Association b = new DirectoryAttributeStoreImpl(directory) {
+    }.findAssociation("a+b=c,d");
+    assertEquals(a.getSecret(), b.getSecret());
+    assertEquals(a.getIssuedDate(), b.getIssuedDate());
+    assertEquals(a.getLifetime(), b.getLifetime());
+    assertEquals(a.getExpiresAt(), b.getExpiresAt());
+    assertEquals(a.getAssociationType(), b.getAssociationType());
+    assertEquals(a.getSessionType(), b.getSessionType());
+    assertNull(s.findAssociation("unknown"));
+
+    assertTrue(s.recordNonce("2007-12-01T12:00:00Zfresh"));
+    assertFalse(s.recordNonce("2007-12-01T12:00:00Zfresh"));
+    Nonce stale = new Nonce();
+    stale.setNonce("2007-12-01T12:00:00Zstale");
+    stale.setCheckedDate(new Date(now - (s.getNonceSkew() + 1) * 1000));
+    s.saveNonce(stale);
+    assertEquals(stale.getCheckedDate(),
+      s.findNonce("2007-12-01T12:00:00Zstale").getCheckedDate());
+    Association fresh = new Association();
+    fresh.setHandle("fresh");
+    fresh.setSecret("c2VjcmV0");
+    fresh.setIssuedDate(new Date(now));
+    fresh.setLifetime(new Long(3600));
+    s.saveAssociation(fresh);
+
+    // the filter finds the expired association, then the stale nonce
+    assertEquals(1, s.deleteExpired(now, 1));
+    assertNull(s.findAssociation("a+b=c,d"));
+    assertEquals(1, s.deleteExpired(now, 10));
+    assertNull(s.findNonce("2007-12-01T12:00:00Zstale"));
+    assertEquals(0, s.deleteExpired(now, 10));
+    assertNotNull(s.findAssociation("fresh"));
+    assertNotNull(s.findNonce("2007-12-01T12:00:00Zfresh"));
+    assertEquals(2, directory.entries.size());
+  }
+
+  @Test
+  public void testDirectoryStore() throws Exception {
+    StubDirectory directory = new StubDirectory();
+    Store s = new DirectoryStoreImpl(directory) {
+    };
+    long now = System.currentTimeMillis();
+    Association a = new Association();
+    a.setHandle("expired");
+    a.setIssuedDate(new Date(now - 20000));
+    a.setLifetime(new Long(10));
+    s.saveAssociation(a);
+    assertEquals(Long.toString(a.getExpiresAt()), directory.entries.get(
+      "cn=expired,ou=association,ou=openid").get("joidExpiresAt").get());
+
+    // entries bound under an unescaped name are still found and deleted
+    Association legacy = new Association();
+    legacy.setHandle("a+b=c");
+    legacy.setIssuedDate(new Date(now));
+    legacy.setLifetime(new Long(3600));
+    String legacyName = "cn=a+b=c,ou=association,ou=openid";
+    directory.entries.put(legacyName, new BasicAttributes(true));
+    directory.objects.put(legacyName, legacy);
+    assertSame(legacy, s.findAssociation("a+b=c"));
+    s.deleteAssociation(legacy);
+    assertFalse(directory.entries.containsKey(legacyName));
+
+    // expired entries are found by a search, not by reading them all
+    assertEquals(1, s.deleteExpired(now, 10));
+    assertEquals(2, directory.searches);
+    assertTrue(directory.entries.isEmpty());
+  }
+
+  @Test
+  public void testDirectoryUserCache() throws Exception {
+    final int[] searches = new int[1];
+    DirectoryUserManagerImpl um = new DirectoryUserManagerImpl() {
+
+      @Override
+      protected User findUser(String username) throws NamingException {
+        searches[0]++;
+        if (username.equals("broken")) {
+          throw new CommunicationException("connection reset");
+        }
+        return username.equals("alice") ? new User("alice", "pw") : null;
+      }
+    };
+    assertEquals("alice", um.getUser("alice").getUsername());
+    assertEquals("alice", um.getUser("alice").getUsername());
+    assertEquals(1, searches[0]);
+
+    // unknown usernames are remembered too
+    assertNull(um.getUser("nobody"));
+    assertNull(um.getUser("nobody"));
+    assertEquals(2, searches[0]);
+    um.invalidate("nobody");
+    assertNull(um.getUser("nobody"));
+    assertEquals(3, searches[0]);
+
+    // failures are not
+    assertNull(um.getUser("broken"));
+    assertNull(um.getUser("broken"));
+    assertEquals(5, searches[0]);
+
+    um.invalidateAll();
+    um.getUser("alice");
+    assertEquals(6, searches[0]);
+  }
+
+  @Test
+  public void testIdentifierIndex() throws Exception {
+    assertEquals("http://example.com/",
+      UrlUtils.normalizeIdentifier("Example.COM#top"));
+    assertEquals("https://example.com/user/Bob?x=1",
+      UrlUtils.normalizeIdentifier(" HTTPS://example.com:443/user/Bob?x=1"));
+    assertEquals("http://example.com:8080/",
+      UrlUtils.normalizeIdentifier("http://example.com:8080"));
+
+    MemoryUserManagerImpl memory = new MemoryUserManagerImpl();
+    User bob = new User("bob", "pw");
+    bob.setOpenIDs(new HashSet<String>(Arrays.asList("http://Bob.example.com")));
+    memory.save(bob);
+    assertEquals("bob", memory.findUsername("http://bob.example.com/"));
+    assertTrue(memory.canClaim(bob, "bob.example.com"));
+    // the path convention still applies to identifiers not indexed
+    assertTrue(memory.canClaim("alice", "http://localhost/joid/user/alice"));
+    assertFalse(memory.canClaim(bob, "http://localhost/joid/user/alice"));
+    // re-saving drops identifiers the user no longer has
+    User carl = new User("carl", "pw");
+    carl.setOpenIDs(new HashSet<String>(Arrays.asList("bob.example.com")));
+    bob.setOpenIDs(new HashSet<String>(Arrays.asList("bob.example.org")));
+    memory.save(bob);
+    assertFalse(memory.canClaim(bob, "http://bob.example.com/"));
+    assertEquals("bob", memory.findUsername("http://bob.example.org/"));
+    // ...but not those another user has taken over
+    memory.save(carl);
+    bob.setOpenIDs(null);
+    memory.save(bob);
+    assertEquals("carl", memory.findUsername("http://bob.example.com/"));
+    assertNull(memory.findUsername("http://bob.example.org/"));
+
+    final int[] searches = new int[1];
+    DirectoryUserManagerImpl directory = new DirectoryUserManagerImpl() {
+
+      @Override
+      protected User findUser(String username) throws NamingException {
+        User user = new User(username, "pw");
+        user.setOpenIDs(new HashSet<String>(Arrays.asList(
+          UrlUtils.normalizeIdentifier("http://example.com/" + username))));
+        return user;
+      }
+
+      @Override
+      protected String findUsername(String claimedId, String id)
+        throws NamingException {
+        searches[0]++;
+        return id.endsWith("/carol") ? "carol" : null;
+      }
+    };
+    User carol = directory.getUser("carol");
+    assertTrue(directory.canClaim(carol, "HTTP://EXAMPLE.COM:80/carol#me"));
+    assertFalse(directory.canClaim(carol, "http://example.com/dave"));
+    assertEquals("carol", directory.findUsername("example.com/carol"));
+    assertEquals(0, searches[0]);
+    assertNull(directory.findUsername("http://example.com/dave"));
+    assertNull(directory.findUsername("http://example.com/dave"));
+    assertEquals(1, searches[0]);
+    directory.invalidateAll();
+    assertEquals("carol", directory.findUsername("example.com/carol"));
+    assertEquals(2, searches[0]);
+  }
+
+  @Test
+  public void testNonceWindow() throws Exception {
+    assertEquals(0L, NonceWindow.parseTime("1970-01-01T00:00:00Z"));
+    assertEquals(1196510400000L, NonceWindow.parseTime("2007-12-01T12:00:00ZabC="));
+    assertEquals(-1L, NonceWindow.parseTime("42"));
+    assertEquals(-1L, NonceWindow.parseTime("2007-13-01T12:00:00Z"));
+
+    long now = 1196510400000L;
+    NonceWindow window = new NonceWindow(300);
+    String nonce = "2007-12-01T11:58:00Zcrumb";
+    assertTrue(window.isInWindow(nonce, now));
+    assertFalse(window.contains(nonce, now));
+    assertTrue(window.add(nonce, now));
+    assertTrue(window.contains(nonce, now));
+    assertFalse(window.add(nonce, now));
+    // a nonce older than the skew is rejected, even if never seen
+    assertFalse(window.add("2007-12-01T11:54:59Zcrumb", now));
+    // once the window has moved on, the old nonce cannot be replayed
+    now += 3600 * 1000;
+    assertFalse(window.contains(nonce, now));
+    assertFalse(window.add(nonce, now));
+    assertTrue(window.add("2007-12-01T12:58:00Zcrumb", now));
+  }
+
+  @Test
+  public void testStoreRecordNonce() throws Exception {
+    SimpleDateFormat dateTime = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+    dateTime.setTimeZone(TimeZone.getTimeZone("UTC"));
+    String nonce = dateTime.format(new Date()) + Crypto.generateCrumb();
+    assertTrue(store.isNonceInWindow(nonce));
+    assertTrue(store.recordNonce(nonce));
+    assertFalse(store.recordNonce(nonce));
+    assertNotNull(store.findNonce(nonce));
+  }
+
+  @Test
+  public void testNonceSkewKeepsNonces() throws Exception {
+    SimpleDateFormat dateTime = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+    dateTime.setTimeZone(TimeZone.getTimeZone("UTC"));
+    String nonce = dateTime.format(new Date()) + Crypto.generateCrumb();
+    Store s = new MemoryStoreImpl();
+    assertTrue(s.recordNonce(nonce));
+    try {
+      // a nonce seen before the skew changes cannot be replayed after
+      s.setNonceSkew(Store.DEFAULT_NONCE_SKEW * 2);
+      assertFalse(s.recordNonce(nonce));
+      // the window, and so the skew, is shared by all memory stores
+      assertEquals(Store.DEFAULT_NONCE_SKEW * 2,
+        new MemoryStoreImpl().getNonceSkew());
+      try {
+        s.recordNonce("2000-01-01T00:00:00Z" + Crypto.generateCrumb());
+        fail("should have refused a nonce outside the window");
+      } catch (OpenIdException expected) {
+        assertTrue(expected.getMessage().contains("window"));
+      }
+    } finally {
+      s.setNonceSkew(Store.DEFAULT_NONCE_SKEW);
+    }
+    assertFalse(s.recordNonce(nonce));
+  }
+
+  @Test
+  public void testDiffieHellmanPool() throws Exception {
+    BigInteger mod = BigInteger.probablePrime(256, new SecureRandom());
+    BigInteger gen = BigInteger.valueOf(2);
+    assertEquals(0, DiffieHellmanPool.available(mod, gen));
+
+    DiffieHellmanPool.register(mod, gen, 4);
+    for (int i = 0; i < 100 && DiffieHellmanPool.available(mod, gen) < 4; i++) {
+      Thread.sleep(50);
+    }
+    assertEquals(4, DiffieHellmanPool.available(mod, gen));
+
+    DiffieHellman a = DiffieHellmanPool.take(mod, gen);
+    DiffieHellman b = DiffieHellmanPool.take(mod, gen);
+    assertFalse(a.getPrivateKey().equals(b.getPrivateKey()));
+    assertEquals(gen.modPow(a.getPrivateKey(), mod), a.getPublicKey());
+    assertEquals(a.getSharedSecret(b.getPublicKey()),
+      b.getSharedSecret(a.getPublicKey()));
+
+    DiffieHellmanPool.register(mod, gen, 0);
+    assertEquals(0, DiffieHellmanPool.available(mod, gen));
+    assertNotNull(DiffieHellmanPool.take(mod, gen));
+  }
+
+  @Test
+  public void testDiffieHellmanPoolDisabled() throws Exception {
+    DiffieHellmanPool.register(null, null, 0);
+    try {
+      // taking a key pair must not bring back the default pool
+      DiffieHellman dh = DiffieHellmanPool.take(null, null);
+      assertEquals(DiffieHellman.DEFAULT_GENERATOR.modPow(dh.getPrivateKey(),
+        DiffieHellman.DEFAULT_MODULUS), dh.getPublicKey());
+      Thread.sleep(200);
+      assertEquals(0, DiffieHellmanPool.available(null, null));
+    } finally {
+      DiffieHellmanPool.register(null, null, DiffieHellmanPool.DEFAULT_SIZE);
+    }
+  }
+
+  @Test
+  public void testConcurrentAssociations() throws Exception {
+    final Collection<String> failures =
+      Collections.synchronizedList(new ArrayList<String>());
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 10; i++) {
+              DiffieHellman dh = DiffieHellman.getDefault();
+              AssociationRequest req = AssociationRequest.create(dh);
+              Association a = store.generateAssociation(req, crypto);
+              byte[] clear = crypto.decryptSecret(dh, a.getPublicDhKey(),
+                a.getEncryptedMacKey());
+              if (!Arrays.equals(a.getMacKey(), clear)) {
+                failures.add(a.getHandle());
+              }
+            }
+          } catch (Exception e) {
+            failures.add(e.toString());
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertTrue(failures.toString(), failures.isEmpty());
+  }
+
+  /**
+   * Associates with the test server, counting the associations made.
+   */
+  private static Callable<ConsumerAssociation> associator(
+    final ServerInfo server, final AtomicInteger count) {
+    return new Callable<ConsumerAssociation>() {
+
+      @Override
+      public ConsumerAssociation call() throws Exception {
+        count.incrementAndGet();
+        Thread.sleep(50);
+        DiffieHellman dh = DiffieHellman.getDefault();
+        AssociationResponse resp = (AssociationResponse) AssociationRequest.
+          create(dh).processUsing(server);
+        return new ConsumerAssociation(server.getUrlEndPoint(), resp, dh,
+          System.currentTimeMillis());
+      }
+    };
+  }
+
+  @Test
+  public void testAssociationCache() throws Exception {
+    final AssociationCache cache = new AssociationCache();
+    final AtomicInteger count = new AtomicInteger();
+    final Callable<ConsumerAssociation> associate =
+      associator(serverInfo, count);
+
+    // concurrent logins to one server share one association
+    final Collection<ConsumerAssociation> results =
+      Collections.synchronizedList(new ArrayList<ConsumerAssociation>());
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+
+        @Override
+        public void run() {
+          try {
+            results.add(cache.get("http://example.com", associate));
+          } catch (OpenIdException e) {
+            results.add(null);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertEquals(1, count.get());
+    assertEquals(1, new HashSet<ConsumerAssociation>(results).size());
+    ConsumerAssociation a = results.iterator().next();
+    assertSame(a, cache.findByHandle(a.getHandle()));
+    assertTrue(Arrays.equals(store.findAssociation(a.getHandle()).getMacKey(),
+      a.getMacKey()));
+
+    // an invalidated handle is forgotten and replaced
+    cache.invalidate(a.getHandle());
+    assertNull(cache.findByHandle(a.getHandle()));
+    assertNotSame(a, cache.get("http://example.com", associate));
+    assertEquals(2, count.get());
+
+    // a failure is not cached
+    try {
+      cache.get("http://example.org", new Callable<ConsumerAssociation>() {
+
+        @Override
+        public ConsumerAssociation call() throws Exception {
+          throw new java.io.IOException("connection refused");
+        }
+      });
+      fail("expected OpenIdException");
+    } catch (OpenIdException expected) {
+    }
+    assertNotNull(cache.get("http://example.org", associate));
+    assertEquals(3, count.get());
+
+    // associations are replaced halfway through a short lifetime, but
+    // stay known by handle until they expire
+    Store shortLived = new MemoryStoreImpl();
+    shortLived.setAssociationLifetime(1);
+    ServerInfo shortServer = new ServerInfo("http://short.example.com",
+      shortLived, crypto);
+    AtomicInteger shortCount = new AtomicInteger();
+    ConsumerAssociation first = cache.get("http://short.example.com",
+      associator(shortServer, shortCount));
+    Thread.sleep(600);
+    ConsumerAssociation second = cache.get("http://short.example.com",
+      associator(shortServer, shortCount));
+    assertNotSame(first, second);
+    assertEquals(2, shortCount.get());
+    assertSame(first, cache.findByHandle(first.getHandle()));
+
+    // and are dropped once they have, leaving the key intact for a thread
+    // still verifying with it
+    byte[] key = first.getMacKey();
+    // callers get a copy, so none of them can clear it for the others
+    first.getMacKey()[0] ^= 1;
+    Thread.sleep(500);
+    assertNull(cache.findByHandle(first.getHandle()));
+    assertEquals(0, cache.removeExpired());
+    assertTrue(Arrays.equals(key, first.getMacKey()));
+  }
+
+  @Test
+  public void testAssociationRenewal() throws Exception {
+    AssociationCache cache = new AssociationCache();
+    AtomicInteger count = new AtomicInteger();
+    Callable<ConsumerAssociation> associate = associator(serverInfo, count);
+    long now = System.currentTimeMillis();
+    assertTrue(cache.needsRefresh("http://example.com", now));
+    assertTrue(cache.getServersUsedSince(now).isEmpty());
+
+    ConsumerAssociation a = cache.get("http://example.com", associate);
+    assertFalse(cache.needsRefresh("http://example.com", now));
+    assertTrue(cache.needsRefresh("http://example.com", a.getExpiresAt()));
+    assertEquals(Collections.singleton("http://example.com"),
+      cache.getServersUsedSince(now));
+
+    // a renewal replaces the association, leaving the old one usable
+    ConsumerAssociation b = cache.renew("http://example.com", associate);
+    assertNotSame(a, b);
+    assertSame(b, cache.get("http://example.com", associate));
+    assertSame(a, cache.findByHandle(a.getHandle()));
+    assertEquals(2, count.get());
+
+    // warm-up servers are associated with straight away; this one fails
+    JoidConsumer consumer = new JoidConsumer();
+    AssociationRefresher refresher = new AssociationRefresher(consumer,
+      Collections.singleton("http://127.0.0.1:1/server"), 60);
+    assertEquals(0, refresher.refresh());
+    assertEquals(1, refresher.getRuns());
+    assertEquals(1, refresher.getFailures());
+    assertEquals(0, refresher.getRenewals());
+  }
+
+  @Test
+  public void testConsumerWithoutAssociationLifetime() throws Exception {
+    final AtomicInteger associations = new AtomicInteger();
+    final AtomicInteger checks = new AtomicInteger();
+    final ServerInfo[] op = new ServerInfo[1];
+    HttpServer server = HttpServer.create(
+      new InetSocketAddress("127.0.0.1", 0), 8);
+    server.createContext("/server", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream query = new ByteArrayOutputStream();
+        InputStream in = exchange.getRequestBody();
+        for (int c; (c = in.read()) != -1;) {
+          query.write(c);
+        }
+        String body;
+        try {
+          Request req = MessageFactory.parseRequest(query.toString("UTF-8"));
+          if (req instanceof AssociationRequest) {
+            associations.incrementAndGet();
+          } else if (req instanceof CheckAuthenticationRequest) {
+            checks.incrementAndGet();
+          }
+          // an OP that leaves expires_in out
+          body = req.processUsing(op[0]).toPostString()
+            .replaceAll("expires_in:\\d+\n", "");
+        } catch (OpenIdException e) {
+          throw new IOException(e.toString());
+        }
+        byte[] b = body.getBytes("UTF-8");
+        exchange.sendResponseHeaders(200, b.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(b);
+        out.close();
+      }
+    });
+    server.start();
+    try {
+      String dest = "http://127.0.0.1:" + server.getAddress().getPort()
+        + "/server";
+      op[0] = new ServerInfo(dest, new MemoryStoreImpl(), crypto);
+      JoidConsumer consumer = new JoidConsumer();
+
+      // used once rather than associated with over and over
+      ConsumerAssociation a = consumer.getAssociation(dest);
+      assertEquals(a.getIssuedAt(), a.getExpiresAt());
+      assertEquals(1, associations.get());
+
+      // the response comes back after it has expired, so the OP is asked
+      AuthenticationRequest ar = AuthenticationRequest.create(
+        "http://example.com/user", "http://rp.example.com/return",
+        "http://rp.example.com/", a.getHandle());
+      Response resp = ar.processUsing(op[0]);
+      AuthenticationResult result = consumer.authenticate(
+        MessageFactory.parseQuery(resp.toUrlString()));
+      assertTrue(result.isSuccessful());
+      assertEquals(1, checks.get());
+
+      // as it is when the OP invalidates the handle after it expired
+      Map<String, String> map = MessageFactory.parseQuery(
+        ar.processUsing(op[0]).toUrlString());
+      map.put(AuthenticationResponse.OPENID_INVALIDATE_HANDLE, a.getHandle());
+      assertTrue(consumer.authenticate(map).isSuccessful());
+      assertEquals(2, checks.get());
+
+      consumer.getAssociation(dest);
+      assertEquals(2, associations.get());
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void testHttpTransportReusesConnections() throws Exception {
+    final AtomicInteger requests = new AtomicInteger();
+    final byte[] body = "ns:http://specs.openid.net/auth/2.0\nis_valid:false\n"
+      .getBytes("UTF-8");
+    HttpServer server = HttpServer.create(
+      new InetSocketAddress("127.0.0.1", 0), 8);
+    server.createContext("/server", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        InputStream in = exchange.getRequestBody();
+        while (in.read() != -1) {
+          // drain the request
+        }
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+      }
+    });
+    server.start();
+    HttpTransport transport = new HttpTransport(2, 4, 5000, 5000, 60000);
+    try {
+      String dest = "http://127.0.0.1:" + server.getAddress().getPort()
+        + "/server";
+      AssociationRequest req = AssociationRequest.create(DiffieHellman.getDefault());
+      for (int i = 0; i < 3; i++) {
+        CheckAuthenticationResponse resp = (CheckAuthenticationResponse)
+          MessageFactory.send(req, dest, transport);
+        assertFalse(resp.isValid());
+      }
+      assertEquals(3, requests.get());
+      // released after each request and kept alive for the next
+      assertEquals(1, transport.getConnectionsInPool());
+    } finally {
+      transport.shutdown();
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void testHttpTransportDoesNotResendPosts() throws Exception {
+    // a server that reads each request and hangs up without answering
+    final ServerSocket listener = new ServerSocket(0, 8,
+      InetAddress.getByName("127.0.0.1"));
+    final AtomicInteger requests = new AtomicInteger();
+    Thread t = new Thread() {
+
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            Socket socket = listener.accept();
+            requests.incrementAndGet();
+            InputStream in = socket.getInputStream();
+            int n = 0;
+            for (int c; n < 4 && (c = in.read()) != -1;) {
+              n = (c == '\r' || c == '\n') ? n + 1 : 0;
+            }
+            socket.setSoLinger(true, 0);
+            socket.close();
+          }
+        } catch (IOException e) {
+          // closed
+        }
+      }
+    };
+    t.setDaemon(true);
+    t.start();
+    HttpTransport transport = new HttpTransport(2, 4, 5000, 5000, 60000);
+    try {
+      String dest = "http://127.0.0.1:" + listener.getLocalPort() + "/server";
+      PostMethod post = new PostMethod(dest);
+      post.setRequestEntity(new StringRequestEntity("openid.mode=x",
+        "application/x-www-form-urlencoded", "UTF-8"));
+      try {
+        transport.execute(post);
+        fail("should have failed");
+      } catch (IOException expected) {
+      } finally {
+        post.releaseConnection();
+      }
+      // the server may have acted on it, so it is not sent again
+      assertEquals(1, requests.get());
+
+      // unless it is safe to
+      post = new PostMethod(dest);
+      post.setRequestEntity(new StringRequestEntity("openid.mode=associate",
+        "application/x-www-form-urlencoded", "UTF-8"));
+      post.getParams().setBooleanParameter(HttpTransport.RETRY_SENT, true);
+      try {
+        transport.execute(post);
+        fail("should have failed");
+      } catch (IOException expected) {
+      } finally {
+        post.releaseConnection();
+      }
+      assertEquals(3, requests.get());
+
+      GetMethod get = new GetMethod(dest);
+      try {
+        transport.execute(get);
+        fail("should have failed");
+      } catch (IOException expected) {
+      } finally {
+        get.releaseConnection();
+      }
+      assertTrue(requests.get() > 4);
+    } finally {
+      transport.shutdown();
+      listener.close();
+    }
+  }
+
+  @Test
+  public void testDiscoveryCache() throws Exception {
+    final AtomicInteger requests = new AtomicInteger();
+    final AtomicInteger conditional = new AtomicInteger();
+    final String xrds = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+      + "<xrds:XRDS xmlns:xrds=\"xri://$xrds\" xmlns=\"xri://$xrd*($v*2.0)\">"
+      + "<XRD>%s<Service priority=\"0\">"
+      + "<Type>http://specs.openid.net/auth/2.0/server</Type>"
+      + "<URI>https://op.example.com/server</URI></Service></XRD></xrds:XRDS>";
+    HttpServer server = HttpServer.create(
+      new InetSocketAddress("127.0.0.1", 0), 8);
+    server.createContext("/", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        String path = exchange.getRequestURI().getPath();
+        String body;
+        if (path.equals("/xrds")) {
+          if ("\"v1\"".equals(
+            exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            conditional.incrementAndGet();
+            exchange.getResponseHeaders().set("Cache-Control", "max-age=60");
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+          }
+          exchange.getResponseHeaders().set("Content-Type",
+            "application/xrds+xml");
+          exchange.getResponseHeaders().set("Cache-Control", "max-age=1");
+          exchange.getResponseHeaders().set("ETag", "\"v1\"");
+          body = String.format(xrds, "");
+        } else if (path.equals("/expired")) {
+          // the XRD says it has expired, whatever the headers say
+          exchange.getResponseHeaders().set("Content-Type",
+            "application/xrds+xml");
+          exchange.getResponseHeaders().set("Cache-Control", "max-age=60");
+          body = String.format(xrds, "<Expires>2000-01-01T00:00:00Z</Expires>");
+        } else {
+          exchange.getResponseHeaders().set("Content-Type", "text/html");
+          exchange.getResponseHeaders().set("Cache-Control", "no-store");
+          body = "<html><head><link rel=\"openid.server\" "
+            + "href=\"https://op.example.com/html\"></head></html>\n";
+        }
+        byte[] b = body.getBytes("UTF-8");
+        exchange.sendResponseHeaders(200, b.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(b);
+        out.close();
+      }
+    });
+    server.start();
+    HttpTransport transport = new HttpTransport();
+    try {
+      String base = "http://127.0.0.1:" + server.getAddress().getPort();
+      Discoverer discoverer = new Discoverer(transport, new DiscoveryCache());
+      DiscoveryCache cache = discoverer.getCache();
+
+      ServerAndDelegate sad = discoverer.findIdServer(base + "/xrds");
+      assertEquals("https://op.example.com/server", sad.getServer());
+      assertEquals(1, requests.get());
+      // fresh, and found under any equivalent form of the identifier
+      sad = discoverer.findIdServer("HTTP://127.0.0.1:"
+        + server.getAddress().getPort() + "/xrds#me");
+      assertEquals("https://op.example.com/server", sad.getServer());
+      assertEquals(1, requests.get());
+      assertEquals(1, cache.getHits());
+
+      // once stale it is revalidated, not discovered again
+      Thread.sleep(1100);
+      sad = discoverer.findIdServer(base + "/xrds");
+      assertEquals("https://op.example.com/server", sad.getServer());
+      assertEquals(2, requests.get());
+      assertEquals(1, conditional.get());
+      assertEquals(1, cache.getRevalidations());
+      // and fresh again for as long as the 304 said
+      discoverer.findIdServer(base + "/xrds");
+      assertEquals(2, requests.get());
+
+      // no-store pages are fetched every time
+      sad = discoverer.findIdServer(base + "/page");
+      assertEquals("https://op.example.com/html", sad.getServer());
+      int before = requests.get();
+      discoverer.findIdServer(base + "/page");
+      assertTrue(requests.get() > before);
+
+      // as are XRDS documents that have expired
+      discoverer.findIdServer(base + "/expired");
+      before = requests.get();
+      discoverer.findIdServer(base + "/expired");
+      assertEquals(before + 1, requests.get());
+    } finally {
+      transport.shutdown();
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void testXRDSParser() throws Exception {
+    String xrds = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+      + "<xrds:XRDS xmlns:xrds=\"xri://$xrds\" xmlns=\"xri://$xrd*($v*2.0)\""
+      + " xmlns:openid=\"http://openid.net/xmlns/1.0\">"
+      + "<XRD><Service><Type>http://openid.net/signon/1.0</Type>"
+      + "<URI>http://stale.example.com/</URI></Service></XRD>"
+      + "<XRD><Expires>2030-01-01T00:00:00Z</Expires>"
+      + "<Service priority=\"20\"><Type>http://openid.net/signon/1.0</Type>"
+      + "<URI>http://v1.example.com/</URI>"
+      + "<openid:Delegate>http://me.example.com/</openid:Delegate></Service>"
+      + "<Service priority=\"10\">"
+      + "<Type>http://specs.openid.net/auth/2.0/signon</Type>"
+      + "<URI priority=\"2\">http://b.example.com/</URI>"
+      + "<URI priority=\"1\">http://a.example.com/</URI>"
+      + "<LocalID>http://local.example.com/</LocalID></Service>"
+      + "<Service><Type>http://openid.net/srv/ax/1.0</Type></Service>"
+      + "</XRD></xrds:XRDS><!-- trailing -->";
+    XRDSDocument doc = new XRDSParser().parse(
+      new ByteArrayInputStream(xrds.getBytes("UTF-8")));
+    // only the final XRD counts
+    assertEquals(3, doc.getServiceList().size());
+    assertEquals(new SimpleDateFormat("yyyy-MM-dd z").parse("2030-01-01 UTC"),
+      doc.getExpires());
+    List<XRDSService> services = doc.getServicesByPriority();
+    XRDSService first = services.get(0);
+    assertEquals(Integer.valueOf(10), first.getPriority());
+    assertEquals("http://a.example.com/", first.getUri());
+    assertEquals("http://local.example.com/", first.getLocalID());
+    assertEquals("http://me.example.com/", services.get(1).getOpenIDDelegate());
+    assertNull(services.get(2).getPriority());
+
+    // documents longer than the limit are rejected
+    try {
+      new XRDSParser(xrds.length() / 2).parse(
+        new ByteArrayInputStream(xrds.getBytes("UTF-8")));
+      fail("should have rejected a long document");
+    } catch (IOException expected) {
+    }
+    // as are entity declarations
+    String bomb = "<?xml version=\"1.0\"?><!DOCTYPE x [<!ENTITY a \"aaaa\">"
+      + "<!ENTITY b \"&a;&a;&a;&a;\">]><xrds:XRDS xmlns:xrds=\"xri://$xrds\">"
+      + "<XRD><Service><Type>&b;</Type></Service></XRD></xrds:XRDS>";
+    try {
+      new XRDSParser().parse(new ByteArrayInputStream(bomb.getBytes("UTF-8")));
+      fail("should have rejected entity references");
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test
+  public void testHmacReuse() throws Exception {
+    // RFC 2202 test case 2, twice, to exercise the cached Mac
+    for (int i = 0; i < 2; i++) {
+      byte[] b = Crypto.hmacSha1("Jefe".getBytes("US-ASCII"),
+        "what do ya want for nothing?".getBytes("US-ASCII"));
+      assertEquals("effcdf6ae5eb2fa2d27416d5f184df9c259a7c79",
+        new BigInteger(1, b).toString(16));
+    }
+    byte[] a = Crypto.sha256("abc".getBytes("US-ASCII"));
+    assertTrue(Arrays.equals(a, Crypto.sha256("abc".getBytes("US-ASCII"))));
+    assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+      new BigInteger(1, a).toString(16));
+  }
+
+  @Test
+  public void testRandomSource() throws Exception {
+    final SecureRandom[] other = new SecureRandom[1];
+    Thread t = new Thread() {
+
+      @Override
+      public void run() {
+        other[0] = RandomSource.get();
+      }
+    };
+    t.start();
+    t.join();
+    assertSame(RandomSource.get(), RandomSource.get());
+    assertNotSame(RandomSource.get(), other[0]);
+    assertEquals(RandomSource.getAlgorithm(), RandomSource.get().getAlgorithm());
+
+    try {
+      RandomSource.setAlgorithm("NoSuchPRNG");
+      fail("Should have thrown");
+    } catch (IllegalArgumentException expected) {
+    }
+    assertEquals(RandomSource.DEFAULT_ALGORITHM, RandomSource.getAlgorithm());
+  }
+
   @Test
   public void testGetSharedSecret() {
     for (int i = 0; i < 3; i++) {
@@ -231,6 +1528,24 @@ public class JoidTest {
     assertFalse(openId.isAuthenticationRequest(s));
   }
 
+  @Test
+  public void testParseRequestOnce() throws Exception {
+    String s = Utils.readFileAsString("test/data/2.txt");
+
+    OpenId openId = new OpenId(serverInfo);
+    Request req = openId.parseRequest(s);
+    assertTrue(req instanceof AssociationRequest);
+    Response resp = openId.handleRequest(req);
+    assertTrue(resp instanceof AssociationResponse);
+    assertFalse(openId.isAnErrorResponse(resp));
+
+    try {
+      openId.parseRequest("openid.mode=associate&openid.session_type=DH-SHA1");
+      fail("Should have thrown");
+    } catch (OpenIdException expected) {
+    }
+  }
+
   // Test no encryption 1.1 association request
   @Test
   public void testAssocNoEncryption() throws Exception {
@@ -1155,6 +2470,183 @@ public class JoidTest {
     }
   }
 
+  // Dumb mode associations are derived from the key ring, not stored, so
+  // any server sharing the master secret can verify them
+  @Test
+  public void testPrivateAssociation() throws Exception {
+    byte[] secret = new byte[KeyRing.MIN_SECRET_LENGTH];
+    RandomSource.nextBytes(secret);
+    Store storeA = new MemoryStoreImpl();
+    Store storeB = new MemoryStoreImpl();
+    ServerInfo nodeA = new ServerInfo("http://example.com", storeA,
+      new Crypto(), new KeyRing(secret, 60));
+    ServerInfo nodeB = new ServerInfo("http://example.com", storeB,
+      new Crypto(), new KeyRing(secret, 60));
+
+    StringBuilder s = new StringBuilder();
+    s.append("openid.identity=http%3A%2F%2Fidentity.bar.baz%2F");
+    s.append("&openid.ns=http%3A%2F%2Fspecs.openid.net%2Fauth%2F2.0");
+    s.append("&openid.mode=checkid_setup");
+    s.append("&openid.return_to=http%3A%2F%2Fwww.foo.bar%2F");
+    AuthenticationRequest areq =
+      (AuthenticationRequest) MessageFactory.parseRequest(s.toString());
+    AuthenticationResponse aresp =
+      (AuthenticationResponse) areq.processUsing(nodeA);
+    String handle = aresp.getAssociationHandle();
+    assertTrue(KeyRing.isPrivateHandle(handle));
+    assertNull(storeA.findAssociation(handle));
+
+    // verified by the other node
+    CheckAuthenticationRequest carq = new CheckAuthenticationRequest(
+      aresp.toMap(), "check_authentication");
+    CheckAuthenticationResponse carp =
+      (CheckAuthenticationResponse) carq.processUsing(nodeB);
+    assertTrue(carp.isValid());
+
+    // the same handle, recreated, carries the same key
+    Association a = nodeA.getKeyRing().findPrivateAssociation(handle);
+    Association b = nodeB.getKeyRing().findPrivateAssociation(handle);
+    assertTrue(Arrays.equals(a.getMacKey(), b.getMacKey()));
+    assertEquals(AssociationRequest.HMAC_SHA1, a.getAssociationType());
+    assertEquals(20, a.getMacKey().length);
+    assertFalse(a.hasExpired());
+
+    // a node with another secret derives another key
+    KeyRing other = new KeyRing(60);
+    assertFalse(Arrays.equals(a.getMacKey(),
+      other.findPrivateAssociation(handle).getMacKey()));
+
+    // without a key ring, private associations are kept in the store, so
+    // they survive a restart, and key ring handles are not accepted
+    ServerInfo plain = new ServerInfo("http://example.com", storeA,
+      new Crypto());
+    aresp = (AuthenticationResponse) areq.processUsing(plain);
+    assertFalse(KeyRing.isPrivateHandle(aresp.getAssociationHandle()));
+    assertNotNull(storeA.findAssociation(aresp.getAssociationHandle()));
+    carq = new CheckAuthenticationRequest(aresp.toMap(),
+      "check_authentication");
+    assertTrue(((CheckAuthenticationResponse) carq.processUsing(
+      new ServerInfo("http://example.com", storeA, new Crypto()))).isValid());
+    aresp = (AuthenticationResponse) areq.processUsing(nodeA);
+    carq = new CheckAuthenticationRequest(aresp.toMap(),
+      "check_authentication");
+    assertFalse(((CheckAuthenticationResponse) carq.processUsing(plain))
+      .isValid());
+
+    // stretching the lifetime in the handle changes the key
+    String[] parts = handle.split("\\.");
+    parts[3] = Long.toString(1000000, 36);
+    StringBuilder forged = new StringBuilder(parts[0]);
+    for (int i = 1; i < parts.length; i++) {
+      forged.append('.').append(parts[i]);
+    }
+    Association f = nodeA.getKeyRing().findPrivateAssociation(forged.toString());
+    assertFalse(Arrays.equals(a.getMacKey(), f.getMacKey()));
+
+    // claiming another period than the issue time is rejected
+    parts = handle.split("\\.");
+    parts[1] = Long.toString(Long.parseLong(parts[1], 36) - 1, 36);
+    forged = new StringBuilder(parts[0]);
+    for (int i = 1; i < parts.length; i++) {
+      forged.append('.').append(parts[i]);
+    }
+    assertNull(nodeA.getKeyRing().findPrivateAssociation(forged.toString()));
+    assertNull(nodeA.getKeyRing().findPrivateAssociation("p.garbage"));
+    assertNull(nodeA.getKeyRing().findPrivateAssociation(Crypto.generateHandle()));
+
+    // a private handle is never accepted for signing in smart mode
+    s.append("&openid.assoc_handle=").append(URLEncoder.encode(handle, "UTF-8"));
+    areq = (AuthenticationRequest) MessageFactory.parseRequest(s.toString());
+    aresp = (AuthenticationResponse) areq.processUsing(nodeA);
+    assertEquals(handle,
+      aresp.getInvalidateHandle());
+    assertFalse(handle.equals(
+      aresp.getAssociationHandle()));
+  }
+
+  // Sealed shared associations travel in their handles, so a cluster
+  // sharing the master secret needs no shared store
+  @Test
+  public void testSealedAssociation() throws Exception {
+    byte[] secret = new byte[KeyRing.MIN_SECRET_LENGTH];
+    RandomSource.nextBytes(secret);
+    KeyRing ringA = new KeyRing(secret, 60);
+    KeyRing ringB = new KeyRing(secret, 60);
+    ringA.setSealing(true);
+    ringB.setSealing(true);
+    Store storeA = new MemoryStoreImpl();
+    Store storeB = new MemoryStoreImpl();
+    ServerInfo nodeA = new ServerInfo("http://example.com", storeA,
+      new Crypto(), ringA);
+    ServerInfo nodeB = new ServerInfo("http://example.com", storeB,
+      new Crypto(), ringB);
+
+    StringBuilder s = new StringBuilder();
+    s.append("openid.dh_consumer_public=GXmne0vGvF%2Fw9RHrk4McrUgxq3dmwURoKPhkrVdtBVNZtRlulFau2SBf%2FFT7JRo5LEcqY5CrctJlk%2B7YFcAyOX9VGd%2BmPfIE6cGPCTxy26USiJgjMEFPtkIRzT1y8lC7ypXvjZ5p0Q1hSg%2FuKdz1v0RAPICrVUrZ%2FgASGuqIpvQ%3D");
+    s.append("&openid.assoc_type=HMAC-SHA1");
+    s.append("&openid.session_type=DH-SHA1");
+    s.append("&openid.ns=http%3A%2F%2Fspecs.openid.net%2Fauth%2F2.0");
+    s.append("&openid.mode=associate");
+    AssociationResponse assocResp = (AssociationResponse)
+      MessageFactory.parseRequest(s.toString()).processUsing(nodeA);
+    String handle = assocResp.getAssociationHandle();
+    assertTrue(KeyRing.isSealedHandle(handle));
+    assertTrue(handle.length() <= 255);
+    assertNull(storeA.findAssociation(handle));
+
+    // the other node signs with it
+    s = new StringBuilder();
+    s.append("openid.identity=http%3A%2F%2Fidentity.bar.baz%2F");
+    s.append("&openid.ns=http%3A%2F%2Fspecs.openid.net%2Fauth%2F2.0");
+    s.append("&openid.mode=checkid_setup");
+    s.append("&openid.return_to=http%3A%2F%2Fwww.foo.bar%2F");
+    s.append("&openid.assoc_handle=").append(URLEncoder.encode(handle, "UTF-8"));
+    AuthenticationResponse aresp = (AuthenticationResponse)
+      MessageFactory.parseRequest(s.toString()).processUsing(nodeB);
+    assertEquals(handle, aresp.getAssociationHandle());
+    assertNull(aresp.getInvalidateHandle());
+    assertNull(storeB.findAssociation(handle));
+
+    // with the key the consumer got from the first node
+    assertEquals(aresp.getSignature(), aresp.sign(assocResp.getAssociationType(),
+      ringA.openAssociation(handle).getMacKey(), aresp.getSignedList()));
+
+    // a shared association is never verified by check_authentication
+    CheckAuthenticationResponse carp = (CheckAuthenticationResponse)
+      new CheckAuthenticationRequest(aresp.toMap(), "check_authentication")
+        .processUsing(nodeA);
+    assertFalse(carp.isValid());
+    assertEquals(handle, carp.getInvalidateHandle());
+
+    // the sealed fields survive the round trip
+    Association a = new Association();
+    a.setAssociationType(AssociationRequest.HMAC_SHA256);
+    a.setMacKey(new Crypto().generateRandom(AssociationRequest.HMAC_SHA256));
+    a.setIssuedDate(new Date());
+    a.setLifetime(new Long(600));
+    String sealed = ringA.sealAssociation(a);
+    Association b = ringB.openAssociation(sealed);
+    assertEquals(sealed, b.getHandle());
+    assertEquals(AssociationRequest.HMAC_SHA256, b.getAssociationType());
+    assertTrue(Arrays.equals(a.getMacKey(), b.getMacKey()));
+    assertEquals(a.getIssuedDate().getTime() / 1000,
+      b.getIssuedDate().getTime() / 1000);
+    assertEquals(a.getLifetime(), b.getLifetime());
+    assertFalse(b.hasExpired());
+
+    // tampering, another secret or another period fail to open
+    char[] c = sealed.toCharArray();
+    int i = sealed.length() - 10;
+    c[i] = (c[i] == 'A' ? 'B' : 'A');
+    assertNull(ringA.openAssociation(new String(c)));
+    assertNull(new KeyRing(60).openAssociation(sealed));
+    int dot = sealed.indexOf('.', 2);
+    long period = Long.parseLong(sealed.substring(2, dot), 36);
+    assertNull(ringA.openAssociation("s." + Long.toString(period - 1, 36)
+      + sealed.substring(dot)));
+    assertNull(ringA.openAssociation("s.garbage"));
+  }
+
   // Make sure that check authentication responses follow the 2.0 spec
   @Test
   public void testSignatureValidation2xDumbMode() throws Exception {
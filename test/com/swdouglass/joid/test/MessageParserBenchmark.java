@@ -0,0 +1,138 @@
+/*
+ * MODIFICATIONS to the original source have been made by
+ * Scott Douglass <scott@swdouglass.com>
+ *
+ * Copyright 2009 Scott Douglass <scott@swdouglass.com>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.swdouglass.joid.test;
+
+import com.swdouglass.joid.CheckAuthenticationResponse;
+import com.swdouglass.joid.MessageFactory;
+import com.swdouglass.joid.MessageParser;
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+/**
+ * Compares {@link MessageParser} with the StringTokenizer/URLDecoder parser
+ * it replaced, on the samples in <code>test/data</code>. Run with
+ * <code>java com.swdouglass.joid.test.MessageParserBenchmark</code> from the
+ * project directory.
+ */
+public class MessageParserBenchmark {
+
+  private static final String[] SAMPLES = {"2", "3b", "3bv1", "3c", "5", "sreg"};
+
+  private static final String POSTED = "ns:http://specs.openid.net/auth/2.0\n"
+    + "is_valid:true\n"
+    + "invalidate_handle:{HMAC-SHA1}{4a5b6c7d}{qrHn2Q==}\n";
+
+  public static void main(String[] args) throws Exception {
+    final String[] queries = new String[SAMPLES.length];
+    for (int i = 0; i < SAMPLES.length; i++) {
+      queries[i] = Utils.readFileAsString("test/data/" + SAMPLES[i] + ".txt");
+    }
+    Benchmark b = new Benchmark(20000, 10, 20000);
+
+    double before = b.time("urlEncodedToMap (tokenizer)", new Benchmark.Task() {
+      public Object run() throws Exception {
+        Object o = null;
+        for (String q : queries) {
+          o = legacyUrlEncodedToMap(q);
+        }
+        return o;
+      }
+    });
+    double after = b.time("urlEncodedToMap (single pass)", new Benchmark.Task() {
+      public Object run() throws Exception {
+        Object o = null;
+        for (String q : queries) {
+          o = MessageParser.urlEncodedToMap(q);
+        }
+        return o;
+      }
+    });
+    System.out.println(String.format("speedup %.2fx", before / after));
+
+    before = b.time("parseResponse key-value (line count)", new Benchmark.Task() {
+      public Object run() throws Exception {
+        Map<String,String> map;
+        if (legacyNumberOfNewlines(POSTED) == 1) {
+          map = legacyUrlEncodedToMap(POSTED);
+        } else {
+          map = legacyPostedToMap(POSTED);
+        }
+        return new CheckAuthenticationResponse(map);
+      }
+    });
+    after = b.time("parseResponse key-value (single pass)", new Benchmark.Task() {
+      public Object run() throws Exception {
+        return MessageFactory.parseResponse(POSTED);
+      }
+    });
+    System.out.println(String.format("speedup %.2fx", before / after));
+  }
+
+  private static Map<String,String> legacyUrlEncodedToMap(String query)
+    throws Exception {
+    Map<String,String> map = new HashMap<String,String>();
+    StringTokenizer st = new StringTokenizer(query, "?&=;", true);
+    String previous = null;
+    while (st.hasMoreTokens()) {
+      String current = st.nextToken();
+      if ("?".equals(current) || "&".equals(current) || ";".equals(current)) {
+        //ignore
+      } else if ("=".equals(current)) {
+        String name = URLDecoder.decode(previous, "UTF-8");
+        if (st.hasMoreTokens()) {
+          String value = URLDecoder.decode(st.nextToken(), "UTF-8");
+          if (!"&".equals(value) && !";".equals(value)) {
+            map.put(name, value);
+          }
+        }
+      } else {
+        previous = current;
+      }
+    }
+    return map;
+  }
+
+  private static int legacyNumberOfNewlines(String query) throws Exception {
+    BufferedReader br = new BufferedReader(new StringReader(query));
+    int n = 0;
+    while (br.readLine() != null) {
+      n += 1;
+    }
+    return n;
+  }
+
+  private static Map<String,String> legacyPostedToMap(String query)
+    throws Exception {
+    Map<String,String> map = new HashMap<String,String>();
+    BufferedReader br = new BufferedReader(new StringReader(query));
+    String s = br.readLine();
+    while (s != null) {
+      int index = s.indexOf(":");
+      if (index != -1) {
+        map.put(s.substring(0, index), s.substring(index + 1, s.length()));
+      }
+      s = br.readLine();
+    }
+    return map;
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * MODIFICATIONS to the original source have been made by
+ * Scott Douglass <scott@swdouglass.com>
+ *
+ * Copyright 2009 Scott Douglass <scott@swdouglass.com>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.swdouglass.joid.test;
+
+import com.swdouglass.joid.AssociationRequest;
+import com.swdouglass.joid.Crypto;
+import java.security.SecureRandom;
+
+/**
+ * Compares one shared SHA1PRNG, as Crypto used before, with the
+ * per-thread generators of {@link com.swdouglass.joid.RandomSource}, for
+ * 1 to 2 x processors threads generating association secrets. Run with
+ * <code>java com.swdouglass.joid.test.RandomSourceBenchmark</code>; pass
+ * <code>-Djoid.random.algorithm=...</code> to try another algorithm.
+ */
+public class RandomSourceBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    final SecureRandom shared = SecureRandom.getInstance("SHA1PRNG");
+    final Crypto crypto = new Crypto();
+    Benchmark b = new Benchmark(20000, 5, 100000);
+    int max = 2 * Runtime.getRuntime().availableProcessors();
+    for (int threads = 1; threads <= max; threads *= 2) {
+      b.throughput("shared SHA1PRNG", threads, new Benchmark.Task() {
+        public Object run() throws Exception {
+          byte[] secret = new byte[20];
+          shared.nextBytes(secret);
+          return secret;
+        }
+      });
+      b.throughput("RandomSource", threads, new Benchmark.Task() {
+        public Object run() throws Exception {
+          return crypto.generateRandom(AssociationRequest.HMAC_SHA1);
+        }
+      });
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * MODIFICATIONS to the original source have been made by
+ * Scott Douglass <scott@swdouglass.com>
+ *
+ * Copyright 2009 Scott Douglass <scott@swdouglass.com>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.swdouglass.joid.test;
+
+import com.swdouglass.joid.Association;
+import com.swdouglass.joid.AssociationRequest;
+import com.swdouglass.joid.Crypto;
+import com.swdouglass.joid.Store;
+import com.swdouglass.joid.store.HibernateStoreImpl;
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Load test for a {@link Store}: grows the association table by factors of
+ * ten and, at each size, times lookups of existing and of unknown handles
+ * and the recording of new nonces. With the unique keys on handle and nonce
+ * the times should stay flat as the table grows.
+ *
+ * Run with
+ * <code>java com.swdouglass.joid.test.StoreLoadBenchmark [storeClassName [maxRows]]</code>;
+ * the defaults are {@link HibernateStoreImpl} and 1000000 rows. The
+ * Hibernate store needs a <code>hibernate.cfg.xml</code> on the class path
+ * pointing at a scratch database.
+ */
+public class StoreLoadBenchmark {
+
+  private static final int SAMPLES = 2000;
+
+  public static void main(String[] args) throws Exception {
+    String className = args.length > 0 ? args[0]
+      : HibernateStoreImpl.class.getName();
+    int max = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+    Store store = Store.getInstance(className);
+    store.setAssociationLifetime(24 * 60 * 60);
+    Crypto crypto = new Crypto();
+    Random random = new Random(42);
+    String prefix = "load-" + System.currentTimeMillis() + "-";
+
+    System.out.println(String.format("%10s %14s %14s %14s",
+      "rows", "hit us/op", "miss us/op", "nonce us/op"));
+    int rows = 0;
+    for (int size = 1000; size <= max; size *= 10) {
+      for (; rows < size; rows++) {
+        Association a = new Association();
+        a.setHandle(prefix + rows);
+        a.setSecret(Crypto.convertToString(
+          crypto.generateRandom(AssociationRequest.HMAC_SHA1)));
+        a.setAssociationType(AssociationRequest.HMAC_SHA1);
+        a.setIssuedDate(new Date());
+        a.setLifetime(Long.valueOf(store.getAssociationLifetime()));
+        store.saveAssociation(a);
+      }
+
+      long start = System.nanoTime();
+      for (int i = 0; i < SAMPLES; i++) {
+        if (store.findAssociation(prefix + random.nextInt(rows)) == null) {
+          throw new IllegalStateException("association went missing");
+        }
+      }
+      double hit = (System.nanoTime() - start) / 1000.0 / SAMPLES;
+
+      start = System.nanoTime();
+      for (int i = 0; i < SAMPLES; i++) {
+        store.findAssociation(prefix + "miss-" + i);
+      }
+      double miss = (System.nanoTime() - start) / 1000.0 / SAMPLES;
+
+      start = System.nanoTime();
+      for (int i = 0; i < SAMPLES; i++) {
+        store.recordNonce(prefix + size + "-" + i);
+      }
+      double nonce = (System.nanoTime() - start) / 1000.0 / SAMPLES;
+
+      System.out.println(String.format("%10d %14.1f %14.1f %14.1f",
+        rows, hit, miss, nonce));
+    }
+  }
+}
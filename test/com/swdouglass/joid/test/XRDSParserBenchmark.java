@@ -0,0 +1,90 @@
+/*
+ * MODIFICATIONS to the original source have been made by
+ * Scott Douglass <scott@swdouglass.com>
+ *
+ * Copyright 2009 Scott Douglass <scott@swdouglass.com>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.swdouglass.joid.test;
+
+import com.swdouglass.joid.consumer.XRDSParser;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Compares {@link XRDSParser} with building a DOM per document, as
+ * discovery used to, on a typical multi-service XRDS document. Run with
+ * <code>java com.swdouglass.joid.test.XRDSParserBenchmark</code>.
+ */
+public class XRDSParserBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+      + "<xrds:XRDS xmlns:xrds=\"xri://$xrds\" xmlns=\"xri://$xrd*($v*2.0)\""
+      + " xmlns:openid=\"http://openid.net/xmlns/1.0\"><XRD>\n");
+    String[] types = {"http://specs.openid.net/auth/2.0/signon",
+      "http://openid.net/signon/1.1", "http://openid.net/signon/1.0",
+      "http://openid.net/srv/ax/1.0", "http://openid.net/sreg/1.0"};
+    for (int i = 0; i < types.length; i++) {
+      sb.append("<Service priority=\"").append(i * 10).append("\">\n")
+        .append("  <Type>").append(types[i]).append("</Type>\n")
+        .append("  <Type>http://openid.net/extensions/sreg/1.1</Type>\n")
+        .append("  <URI>https://www.example.com/openid/server</URI>\n")
+        .append("  <LocalID>https://www.example.com/users/frank</LocalID>\n")
+        .append("  <openid:Delegate>https://www.example.com/users/frank</openid:Delegate>\n")
+        .append("</Service>\n");
+    }
+    sb.append("</XRD></xrds:XRDS>\n");
+    final byte[] xrds = sb.toString().getBytes("UTF-8");
+    final XRDSParser parser = new XRDSParser();
+    Benchmark b = new Benchmark(20000, 10, 20000);
+
+    double before = b.time("XRDS (DOM)", new Benchmark.Task() {
+      public Object run() throws Exception {
+        return domParse(xrds);
+      }
+    });
+    double after = b.time("XRDS (StAX)", new Benchmark.Task() {
+      public Object run() throws Exception {
+        return parser.parse(new ByteArrayInputStream(xrds));
+      }
+    });
+    System.out.println(String.format("speedup %.2fx", before / after));
+  }
+
+  /** The DOM walk discovery did before it streamed XRDS documents. */
+  private static List<String> domParse(byte[] xrds) throws Exception {
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    DocumentBuilder builder = factory.newDocumentBuilder();
+    Document document = builder.parse(new ByteArrayInputStream(xrds));
+    List<String> uris = new ArrayList<String>();
+    NodeList list = document.getElementsByTagName("Service");
+    for (int i = 0; i < list.getLength(); i++) {
+      NodeList children = list.item(i).getChildNodes();
+      for (int j = 0; j < children.getLength(); j++) {
+        Node child = children.item(j);
+        if (child.getNodeName().equalsIgnoreCase("URI")) {
+          uris.add(child.getTextContent());
+        }
+      }
+    }
+    return uris;
+  }
+}